@@ -0,0 +1,310 @@
+/*
+ * AbrController.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.example.wsplayer.utils.Trace;
+import com.example.wsplayer.utils.schedulers.Schedulers;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Client-driven adaptive bitrate over the socket control channel.
+ *
+ * The server offers renditions with a text message
+ * {@code {"renditions": [{"id", "bitrate"}], "rendition": id}}, and is asked
+ * to switch with {@code {"quality": id, "sequence": n}} right after the
+ * fragment {@code n - 1} arrived, so the switch lands on a fragment boundary.
+ * Over a {@link SocketMux} both carry the {@code "channel"} of the subscription.
+ *
+ * Decisions are made per fragment from the bandwidth estimate and the player
+ * buffer level (throughput only, if no player is attached). Going down is
+ * quick once the buffer runs low, or the estimate no longer covers the
+ * current bitrate and the buffer is not healthy; going up requires a healthy
+ * buffer and enough headroom for {@link #UP_FRAGMENTS} fragments in a row,
+ * and never sooner than {@link #UP_INTERVAL} after the last switch.
+ *
+ * @author Gleb Nikitenko
+ * @since 13.02.20
+ **/
+public final class AbrController implements FragmentListener, Player.EventListener {
+
+  /** Fraction of the estimate a rendition may take. */
+  public static final float SAFETY = 0.75f;
+
+  /** Buffer levels (mills): low to go down, healthy to go up. */
+  public static final long DOWN_BUFFER = 1_000L, UP_BUFFER = 3_000L;
+
+  /** Consecutive fragments with headroom before going up. */
+  public static final int UP_FRAGMENTS = 3;
+
+  /** Minimal intervals after a switch (mills). */
+  public static final long UP_INTERVAL = 10_000L, DOWN_INTERVAL = 2_000L;
+
+  /** Trace events. */
+  private static final int TRACE_SWITCH = Trace.event("abr.switch");
+
+  /** Throughput estimate. */
+  private final BandwidthMeter mMeter;
+
+  /** Offered renditions, ascending by bitrate. */
+  private volatile Rendition[] mRenditions = new Rendition[0];
+
+  /** Current and requested rendition indexes, -1 if unknown. */
+  private volatile int mCurrent = -1, mTarget = -1;
+
+  /** Control socket, null if not connected. */
+  private volatile BinaryWebSocket mSocket = null;
+
+  /** Observed player, null if not attached. */
+  private volatile Player mPlayer = null;
+
+  /** Last sampled buffer level (mills), -1 if not sampled yet. */
+  private volatile long mBuffered = -1;
+
+  /** Fragments with headroom in a row. */
+  private int mHeadroom = 0;
+
+  /** Time of the last switch and of the first fragment (nanos). */
+  private long mLastSwitch = 0, mStart = 0;
+
+  /** Player was ready since the last buffering. */
+  private boolean mReady = false;
+
+  /** Switch request, filled per switch. */
+  private final TextTemplate mSwitch = new TextTemplate("{\"quality\":\"", "\",\"sequence\":", "}");
+
+  /** Counters. */
+  private final AtomicLong
+    mUps = new AtomicLong(),
+    mDowns = new AtomicLong(),
+    mStalls = new AtomicLong();
+
+  /**
+   * Constructs a new {@link AbrController}.
+   *
+   * @param meter throughput estimate, e.g. {@link SocketBandwidthMeter}
+   */
+  public AbrController(@NonNull BandwidthMeter meter) {mMeter = meter;}
+
+  /**
+   * Samples the buffer level and counts stalls of the player.
+   *
+   * @param player observed player, null to detach
+   */
+  public final void attach(@Nullable Player player) {
+    final Player previous = mPlayer; mPlayer = player; mBuffered = -1;
+    if (previous != null) previous.removeListener(this);
+    if (player != null) player.addListener(this);
+  }
+
+  /** @param socket control socket, null if disconnected */
+  final void connected(@Nullable BinaryWebSocket socket) {
+    mSocket = socket;
+    if (socket != null) socket.receive(this::offer);
+  }
+
+  /** @param message server text message, renditions offer or anything else */
+  final void offer(@NonNull String message) {
+    try {
+      final JSONObject json = new JSONObject(message);
+      final JSONArray array = json.optJSONArray("renditions");
+      if (array == null) return;
+      final Rendition[] renditions = new Rendition[array.length()];
+      for (int i = 0; i < renditions.length; i++) {
+        final JSONObject item = array.getJSONObject(i);
+        renditions[i] = new Rendition(item.getString("id"), item.getLong("bitrate"));
+      }
+      Arrays.sort(renditions, (a, b) -> Long.compare(a.bitrate, b.bitrate));
+      final String current = json.optString("rendition", null);
+      int index = renditions.length - 1;
+      if (current != null) for (int i = 0; i < renditions.length; i++)
+        if (renditions[i].id.equals(current)) index = i;
+      mRenditions = renditions; mCurrent = mTarget = renditions.length > 0 ? index : -1;
+    } catch (JSONException ignored) {/* not an offer */}
+  }
+
+  /**
+   * @param renditions renditions known up front
+   * @param current    index of the streamed one
+   */
+  public final void offer(@NonNull Rendition[] renditions, int current) {
+    final Rendition[] sorted = renditions.clone();
+    Arrays.sort(sorted, (a, b) -> Long.compare(a.bitrate, b.bitrate));
+    mRenditions = sorted;
+    mCurrent = mTarget = current >= 0 && current < sorted.length ?
+      Arrays.asList(sorted).indexOf(renditions[current]) : -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onFragment(@NonNull Fragment fragment) {
+    final long now = fragment.arrival;
+    if (mStart == 0) mStart = now;
+    mCurrent = mTarget; sample();
+    final Rendition[] renditions = mRenditions; final int current = mCurrent;
+    if (renditions.length < 2 || current == -1) return;
+    final boolean observed = mPlayer != null; final long buffered = mBuffered;
+    if (observed && buffered == -1) return;
+    final boolean low = observed && buffered < DOWN_BUFFER;
+    final boolean healthy = !observed || buffered >= UP_BUFFER;
+    final long budget = (long) (mMeter.getBitrateEstimate() * SAFETY);
+    final long since = NANOSECONDS.toMillis(now - mLastSwitch);
+    int target = current;
+    if (low || renditions[current].bitrate > budget && (!observed || !healthy)) {
+      mHeadroom = 0;
+      if (since >= DOWN_INTERVAL || mLastSwitch == 0) target = fit(renditions, budget);
+      if (observed && buffered < DOWN_BUFFER / 2) target = 0;
+      target = Math.min(target, current);
+    } else if (current + 1 < renditions.length && renditions[current + 1].bitrate <= budget &&
+      healthy) {
+      if (++mHeadroom >= UP_FRAGMENTS && (since >= UP_INTERVAL || mLastSwitch == 0)) {
+        target = current + 1; mHeadroom = 0;
+      }
+    } else mHeadroom = 0;
+    if (target != current) request(renditions, target, fragment.sequence + 1, now);
+  }
+
+  /**
+   * @param renditions offered renditions
+   * @param budget     affordable bitrate
+   *
+   * @return index of the best rendition within the budget, or the lowest one
+   */
+  private static int fit(@NonNull Rendition[] renditions, long budget) {
+    int result = 0;
+    for (int i = 0; i < renditions.length; i++) if (renditions[i].bitrate <= budget) result = i;
+    return result;
+  }
+
+  /**
+   * @param renditions offered renditions
+   * @param target     requested index
+   * @param sequence   fragment to switch at
+   * @param now        current time (nanos)
+   */
+  private void request(@NonNull Rendition[] renditions, int target, long sequence, long now) {
+    final BinaryWebSocket socket = mSocket;
+    if (socket == null) return;
+    try {
+      socket.write(mSwitch.begin().append(renditions[target].id).append(sequence));
+    } catch (IOException exception) {return;}
+    (target > mCurrent ? mUps : mDowns).incrementAndGet();
+    Trace.trace(Trace.INFO, TRACE_SWITCH, mCurrent, target);
+    mTarget = target; mLastSwitch = now;
+  }
+
+  /** Refreshes the buffer level on the player thread. */
+  private void sample() {
+    final Player player = mPlayer; if (player == null) return;
+    Schedulers.MAIN_EXECUTOR.execute(() -> mBuffered = player.getTotalBufferedDuration());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onPlayerStateChanged(boolean playWhenReady, int state) {
+    if (state == Player.STATE_READY) mReady = true;
+    else if (state == Player.STATE_BUFFERING && mReady && playWhenReady)
+    {mReady = false; mStalls.incrementAndGet();}
+  }
+
+  /** @return offered renditions, ascending by bitrate */
+  @NonNull public final Rendition[] renditions() {return mRenditions.clone();}
+
+  /** @return streamed rendition, null if unknown */
+  @Nullable public final Rendition current() {
+    final Rendition[] renditions = mRenditions; final int current = mCurrent;
+    return current >= 0 && current < renditions.length ? renditions[current] : null;
+  }
+
+  /** @return count of switches up */
+  public final long ups() {return mUps.get();}
+
+  /** @return count of switches down */
+  public final long downs() {return mDowns.get();}
+
+  /** @return count of playback stalls */
+  public final long stalls() {return mStalls.get();}
+
+  /** @return stalls per minute since the first fragment */
+  public final float stallRate() {return perMinute(stalls());}
+
+  /** @return switches per minute since the first fragment */
+  public final float switchRate() {return perMinute(ups() + downs());}
+
+  /**
+   * @param count count of events
+   *
+   * @return events per minute since the first fragment
+   */
+  private float perMinute(long count) {
+    final long start = mStart; if (start == 0) return 0;
+    final long elapsed = System.nanoTime() - start;
+    return elapsed <= 0 ? 0 : count * (float) TimeUnit.MINUTES.toNanos(1) / elapsed;
+  }
+
+  /** @return last sampled buffer level (mills), -1 if not sampled */
+  public final long buffered() {return mBuffered;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    final Rendition current = current();
+    return "abr: " + (current != null ? current.id : "-") + ", buffer=" + buffered() +
+      "ms, up=" + ups() + ", down=" + downs() + ", stalls=" + stalls() +
+      String.format(", %.2f stalls/min, %.2f switches/min", stallRate(), switchRate());
+  }
+
+  /** Offered rendition. */
+  public static final class Rendition {
+
+    /** Rendition id. */
+    @NonNull public final String id;
+
+    /** Bitrate (bits per second). */
+    public final long bitrate;
+
+    /**
+     * Constructs a new {@link Rendition}.
+     *
+     * @param id      rendition id
+     * @param bitrate bitrate (bits per second)
+     */
+    public Rendition(@NonNull String id, long bitrate) {this.id = id; this.bitrate = bitrate;}
+
+    /** {@inheritDoc} */
+    @Override
+    public final String toString() {return id + "@" + bitrate / 1000 + "kbps";}
+  }
+}
@@ -22,17 +22,27 @@ package com.example.wsplayer.player;
 import android.net.Uri;
 
 import com.example.wsplayer.utils.Json;
+import com.example.wsplayer.utils.Trace;
+import com.example.wsplayer.utils.schedulers.Schedulers;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import okhttp3.Call;
+import okhttp3.internal.ws.PerMessageDeflate;
+import okhttp3.internal.ws.WSUtilsInternal.Binary;
 import okhttp3.logging.HttpLoggingInterceptor;
 
 
@@ -44,14 +54,27 @@ import okhttp3.logging.HttpLoggingInterceptor;
  **/
 public final class BinarySocketDataSource extends BaseDataSource {
 
+  /** Reconnect defaults. */
+  public static final int RECONNECT_ATTEMPTS = 5;
+  private static final long RECONNECT_DELAY = 250L, RECONNECT_DELAY_MAX = 4000L;
+
+  /** Reads of the frame queue pump. */
+  private static final int QUEUE_CHUNK = 16 * 1024;
+
+  /** Trace events. */
+  private static final int
+    TRACE_READ = Trace.event("source.read"),
+    TRACE_RECONNECT = Trace.event("source.reconnect"),
+    TRACE_CLOSE = Trace.event("source.close");
+
   /** OkHttp Client. */
   private final Call.Factory mSocketFactory;
 
   /** WS Logger. */
   private final HttpLoggingInterceptor.Logger mLogger;
 
-  /** Binary Socket Instance. */
-  private BinaryWebSocket mSocket = null;
+  /** Current transfer, null if closed. */
+  private volatile Transfer mTransfer = null;
 
   /** Current Uri. */
   private Uri mUri = null;
@@ -59,15 +82,69 @@ public final class BinarySocketDataSource extends BaseDataSource {
   /** Opened State. */
   private boolean mOpened = false;
 
-  /** Remaining bytes. */
-  private int mRemaining = 0;
+  /** Frames pool. */
+  private final FramePool mPool;
+
+  /** Streams payloads instead of whole frames. */
+  private final boolean mStreaming;
+
+  /** Read-ahead capacity, zero for inline reads. */
+  private final int mReadAhead;
+
+  /** Keep-alive ping interval (mills). */
+  private final long mPingInterval;
+
+  /** Offer "permessage-deflate". */
+  private final boolean mDeflate;
+
+  /** Read-ahead ring. */
+  private volatile ByteRing mRing = null;
+
+  /** Reconnect attempts per failure, zero to fail immediately. */
+  private final int mAttempts;
+
+  /** Pre-warmed sockets. */
+  private final SocketPool mSocketPool;
+
+  /** Shared sockets, null for a socket per source. */
+  private final SocketMux mMux;
 
-  /** Current frame. */
-  private byte[] mFrame = null;
+  /** Event-loop transport, null for a blocking socket per source. */
+  private final SocketLoop mLoop;
+
+  /** Box bodies parser, null if fragment events are off. */
+  private final FragmentParser mParser;
+
+  /** Timeshift window, null if disabled. */
+  private final TimeshiftBuffer mTimeshift;
+
+  /** Adaptive bitrate, null if disabled. */
+  private final AbrController mAbr;
+
+  /** Frame queue capacity, zero if disabled. */
+  private final int mQueueCapacity;
+
+  /** Frame queue overflow policy. */
+  private final FrameQueue.Policy mQueuePolicy;
+
+  /** Frame queue of the current open, null if disabled. */
+  private volatile FrameQueue mQueue = null;
+
+  /** Metrics of the current (or the last) transfer. */
+  private volatile TransferMetrics mMetrics = new TransferMetrics();
+
+  /** Metrics registry. */
+  private final MetricsRegistry mRegistry;
+
+  /** Bandwidth meter sampled at arrival, null if sampled on reads. */
+  private final SocketBandwidthMeter mMeter;
 
   private final String mToken;
   private final long mMediaId;
 
+  /** Token message, encoded on the first connect and resent as is. */
+  private byte[] mTokenMessage = null;
+
   /**
    * Constructs a new {@link BinarySocketDataSource}
    *
@@ -77,11 +154,59 @@ public final class BinarySocketDataSource extends BaseDataSource {
   public BinarySocketDataSource(@NonNull Call.Factory factory,
                                 @NonNull HttpLoggingInterceptor.Logger logger,
                                 @Nullable String token, long mediaId) {
+    this(new Factory(factory, logger, token, mediaId));
+  }
+
+  /**
+   * Constructs a new {@link BinarySocketDataSource}
+   *
+   * @param factory data source factory
+   */
+  private BinarySocketDataSource(@NonNull Factory factory) {
     super(true);
-    mSocketFactory = factory;
-    mLogger = logger;
-    mToken = token;
-    mMediaId = mediaId;
+    mSocketFactory = factory.mSocketFactory;
+    mLogger = factory.mLogger;
+    mToken = factory.mToken;
+    mMediaId = factory.mMediaId;
+    mReadAhead = factory.mReadAhead;
+    mPool = factory.mPool;
+    mStreaming = factory.mStreaming;
+    mPingInterval = factory.mPingInterval;
+    mDeflate = factory.mDeflate;
+    mAttempts = factory.mAttempts;
+    mSocketPool = factory.mSocketPool;
+    mMux = factory.mMux;
+    mLoop = factory.mLoop;
+    mRegistry = factory.mRegistry;
+    mMeter = factory.mMeter;
+    mTimeshift = factory.mTimeshift;
+    mAbr = factory.mAbr;
+    mQueueCapacity = factory.mQueueCapacity;
+    mQueuePolicy = factory.mQueuePolicy;
+    final FragmentListener queue = mQueueCapacity <= 0 ? null : fragment -> {
+      final FrameQueue current = mQueue;
+      if (current != null) current.onFragment(fragment);
+    };
+    final FragmentListener fragments =
+      listener(listener(listener(factory.mFragments, mTimeshift), mAbr), queue);
+    mParser = fragments != null ? new FragmentParser(fragments) : null;
+  }
+
+  /**
+   * @param first  fragment events listener, or null
+   * @param second fragment events listener, or null
+   *
+   * @return listener calling both, null if there are none
+   */
+  @Nullable private static FragmentListener listener
+  (@Nullable FragmentListener first, @Nullable FragmentListener second) {
+    if (first == null || second == null) return first != null ? first : second;
+    return new FragmentListener() {
+      @Override public final void onInitSegment(@NonNull byte[] init)
+      {first.onInitSegment(init); second.onInitSegment(init);}
+      @Override public final void onFragment(@NonNull Fragment fragment)
+      {first.onFragment(fragment); second.onFragment(fragment);}
+    };
   }
 
   /** {@inheritDoc} */
@@ -89,22 +214,34 @@ public final class BinarySocketDataSource extends BaseDataSource {
   public final long open(@NonNull DataSpec dataSpec) throws IOException {
     final String url = (mUri = dataSpec.uri).toString();
     transferInitializing(dataSpec);
-    mSocket = BinaryWebSocket.create(mSocketFactory, url, mLogger);
+    final TransferMetrics metrics = mMetrics = new TransferMetrics();
+    metrics.opened(); mRegistry.register(metrics);
+    if (mTimeshift != null) mTimeshift.reset();
+    if (mParser != null) mParser.reset();
+    final FrameQueue queue = mQueueCapacity <= 0 ? null :
+      new FrameQueue(mQueueCapacity, mQueuePolicy, mPool);
+    final ByteRing ring = queue != null || mReadAhead <= 0 || mLoop != null ? null :
+      ByteRing.create(mReadAhead);
+    final Transfer transfer = mTransfer = new Transfer(url, metrics, queue, ring);
+    transfer.attach(transfer.connect(true));
     mOpened = true;
-    try {
-      return C.LENGTH_UNSET;
-    } finally {
-      if (mToken != null && mMediaId != 0) sendToken();
-      transferStarted(dataSpec);
-    }
+    transferStarted(dataSpec);
+    mQueue = queue; mRing = ring;
+    if (queue != null) Schedulers.STREAM_EXECUTOR.execute(() -> transfer.enqueue(queue));
+    else if (ring != null) Schedulers.STREAM_EXECUTOR.execute(() -> transfer.readAhead(ring));
+    return C.LENGTH_UNSET;
   }
 
-  private void sendToken() {
+  private void sendToken(@NonNull BinaryWebSocket socket) {
     try {
-      JSONObject json = Json.newJson(body -> body
-        .put("token", mToken)
-        .put("mediaId", mMediaId));
-      mSocket.write(json.toString());
+      byte[] message = mTokenMessage;
+      if (message == null) {
+        JSONObject json = Json.newJson(body -> body
+          .put("token", mToken)
+          .put("mediaId", mMediaId));
+        message = mTokenMessage = json.toString().getBytes(StandardCharsets.UTF_8);
+      }
+      socket.write(message, 0, message.length);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -113,34 +250,42 @@ public final class BinarySocketDataSource extends BaseDataSource {
   /** {@inheritDoc} */
   @Override
   public final int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
-    System.out.println("BinarySocketDataSource.read: buffer = [" + buffer + "], offset = [" + offset + "], length = [" + length + "]");
     if (length == 0) return 0;
-    // We've read all of the data from the current packet. Get another.
-    if (mRemaining == 0) {
-      mRemaining = (mFrame = mSocket.read()).length;
-      if (mFrame == BinaryWebSocket.END_OF_STREAM) return C.RESULT_END_OF_INPUT;
-      bytesTransferred(mRemaining);
-    }
-    final int frameOffset = mFrame.length - mRemaining;
-    final int result = Math.min(mRemaining, length);
-    System.arraycopy(mFrame, frameOffset, buffer, offset, result);
-    mRemaining -= result;
-    return result;
+    final Transfer transfer = mTransfer;
+    if (transfer == null) throw new IOException("Data source closed");
+    final FrameQueue queue = transfer.queue; final ByteRing ring = transfer.ring;
+    final int result = queue != null ?
+      queue.read(buffer, offset, length) : ring != null ?
+      ring.read(buffer, offset, length) :
+      transfer.input(buffer, offset, length);
+    report(transfer);
+    Trace.verbose(TRACE_READ, result, length);
+    return result == -1 ? C.RESULT_END_OF_INPUT : result;
+  }
+
+  /**
+   * Reports the bytes received by the transfer so far, on the player's thread.
+   *
+   * @param transfer current transfer
+   */
+  private void report(@NonNull Transfer transfer) {
+    if (transfer.mReceived.get() == 0) return;
+    final long count = transfer.mReceived.getAndSet(0);
+    if (count > 0) bytesTransferred((int) count);
   }
 
   /** {@inheritDoc} */
   @Override
   public final void close() throws IOException {
-    System.out.println("BinarySocketDataSource.close");
-    mFrame = null;
-    mRemaining = 0;
-    mUri = null;
-    if (mSocket != null) {
-      mSocket.close();
-      mSocket = null;
-    }
+    Trace.debug(TRACE_CLOSE, mMetrics.reconnects(), 0);
+    final Transfer transfer = mTransfer;
+    mTransfer = null; mUri = null; mQueue = null; mRing = null;
+    if (transfer != null) transfer.close();
+    if (mAbr != null) mAbr.connected(null);
+    mRegistry.unregister(mMetrics);
     if (!mOpened) return;
     mOpened = false;
+    if (transfer != null) report(transfer);
     transferEnded();
   }
 
@@ -150,4 +295,678 @@ public final class BinarySocketDataSource extends BaseDataSource {
     return mUri;
   }
 
+  /** @return read-ahead ring with its watermarks and fill level, null if reads are inline */
+  @Nullable public final ByteRing getReadAhead() {
+    return mRing;
+  }
+
+  /** @return frame queue with its drops and latency, null if disabled */
+  @Nullable public final FrameQueue getFrameQueue() {
+    return mQueue;
+  }
+
+  /** @return count of transparent reconnects */
+  public final int getReconnectCount() {
+    return mMetrics.reconnects();
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return duration of the last gap between a failure and the next fragment
+   */
+  public final long getLastGap(@NonNull TimeUnit unit) {
+    return mMetrics.lastGap(unit);
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return total duration of gaps between failures and next fragments
+   */
+  public final long getTotalGap(@NonNull TimeUnit unit) {
+    return mMetrics.totalGap(unit);
+  }
+
+  /** @return cached "ftyp" and "moov" boxes, null if not received or fragment events are off */
+  @Nullable public final byte[] getInitSegment() {
+    final FragmentParser parser = mParser;
+    return parser != null ? parser.init() : null;
+  }
+
+  /** @return timeshift window, null if disabled */
+  @Nullable public final TimeshiftBuffer getTimeshift() {
+    return mTimeshift;
+  }
+
+  /** @return transfer metrics of the current (or the last) open */
+  @NonNull public final TransferMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * @param meter bandwidth meter
+   *
+   * @return true if the meter is sampled at arrival, rather than by the transfer listener
+   */
+  final boolean samples(@NonNull SocketBandwidthMeter meter) {
+    return mMeter == meter;
+  }
+
+  /** @return ping/pong round-trip time of the current socket, null if closed */
+  @Nullable public final RttMeter getRtt() {
+    final BinaryWebSocket socket = socket();
+    return socket != null ? socket.rtt() : null;
+  }
+
+  /** @return outbound frames queue of the current socket, null if closed or unqueued */
+  @Nullable public final OutboundQueue getOutbound() {
+    final BinaryWebSocket socket = socket();
+    return socket != null ? socket.outbound() : null;
+  }
+
+  /**
+   * @return compression ratio and inflate time of the current socket,
+   * null if closed or the server declined compression
+   */
+  @Nullable public final PerMessageDeflate getDeflate() {
+    final BinaryWebSocket socket = socket();
+    return socket != null ? socket.deflate() : null;
+  }
+
+  /** @return socket of the current transfer, null if closed */
+  @Nullable private BinaryWebSocket socket() {
+    final Transfer transfer = mTransfer;
+    return transfer != null ? transfer.mSocket : null;
+  }
+
+  /**
+   * State of one open, touched only by the player and the pump of that open.
+   *
+   * A pump outliving its open keeps to its own socket, ring and resync
+   * state, and stops feeding the shared timeshift and fragment listeners
+   * as soon as the transfer is closed.
+   */
+  private final class Transfer {
+
+    /** Socket url. */
+    final String url;
+
+    /** Transfer metrics. */
+    final TransferMetrics metrics;
+
+    /** Frame queue, null if disabled. */
+    @Nullable final FrameQueue queue;
+
+    /** Read-ahead ring, null if reads are inline. */
+    @Nullable final ByteRing ring;
+
+    /** Top-level boxes of the delivered stream. */
+    final BoxTracker boxes = new BoxTracker(mParser);
+
+    /** Binary socket, null if closed. */
+    volatile BinaryWebSocket mSocket = null;
+
+    /** Closed by the player. */
+    private volatile boolean mClosed = false;
+
+    /** Bytes received from the socket, not reported yet. */
+    final AtomicLong mReceived = new AtomicLong();
+
+    /** Remaining bytes. */
+    private int mRemaining = 0;
+
+    /** Current frame. */
+    private Binary mFrame = null;
+
+    /** Zero bytes left to pad the interrupted box. */
+    private long mPadding = 0;
+
+    /** Skipping up to the next fragment. */
+    private boolean mResync = false;
+
+    /** Header of the fragment found by resync. */
+    private final byte[] mHeader = new byte[16];
+    private int mHeaderOffset = 0, mHeaderLength = 0;
+
+    /** Consecutive reconnect failures. */
+    private int mFailures = 0;
+
+    /** Start of the current reconnect gap. */
+    private long mGapStart = 0;
+
+    /**
+     * Constructs a new {@link Transfer}.
+     *
+     * @param url     socket url
+     * @param metrics transfer metrics
+     * @param queue   frame queue, or null
+     * @param ring    read-ahead ring, or null
+     */
+    Transfer(@NonNull String url, @NonNull TransferMetrics metrics,
+             @Nullable FrameQueue queue, @Nullable ByteRing ring)
+    {this.url = url; this.metrics = metrics; this.queue = queue; this.ring = ring;}
+
+    /**
+     * @param adopt adopt a pre-warmed socket if there is one
+     *
+     * @return connected and authorized socket
+     *
+     * @throws IOException connection failure
+     */
+    @NonNull final BinaryWebSocket connect(boolean adopt) throws IOException {
+      if (mMux != null) {
+        final BinaryWebSocket result =
+          mMux.subscribe(url, mToken, mMediaId, mPool, mPingInterval, mDeflate);
+        if (result != null) {result.listen(metrics::frame); return result;}
+      }
+      final SocketPool pool = mSocketPool;
+      BinaryWebSocket result = adopt && pool != null && mLoop == null ?
+        pool.adopt(url, mPool, mPingInterval, mDeflate) : null;
+      if (result == null) result = mLoop != null ?
+        mLoop.connect(url, mPool, mPingInterval, mLogger) :
+        BinaryWebSocket.create(mSocketFactory, url, mLogger, mPool, mPingInterval, mDeflate);
+      result.listen(metrics::frame);
+      if (mToken != null && mMediaId != 0) sendToken(result);
+      return result;
+    }
+
+    /**
+     * @param socket connected socket
+     *
+     * @throws IOException the transfer was closed meanwhile, the socket is closed then
+     */
+    final void attach(@NonNull BinaryWebSocket socket) throws IOException {
+      synchronized (this) {
+        if (!mClosed) {
+          mSocket = socket;
+          if (mAbr != null) mAbr.connected(socket);
+          return;
+        }
+      }
+      socket.close();
+      throw new IOException("Data source closed");
+    }
+
+    /**
+     * Drains the socket into the ring on a stream thread.
+     *
+     * @param ring read-ahead ring
+     */
+    final void readAhead(@NonNull ByteRing ring) {
+      try {
+        //noinspection StatementWithEmptyBody
+        while (ring.write(this::input) != -1);
+        ring.finish();
+      } catch (IOException exception) {ring.fail(exception);}
+      finally {recycle();}
+    }
+
+    /**
+     * Drains the socket into the queue on a stream thread, box by box,
+     * so that every "moof" header starts a new unit.
+     *
+     * @param queue frame queue
+     */
+    final void enqueue(@NonNull FrameQueue queue) {
+      final BoxTracker boxes = this.boxes;
+      final byte[] buffer = new byte[QUEUE_CHUNK]; int header = 0;
+      try {
+        while (true) {
+          if (header > 0 || boxes.boundary()) {
+            final int read = input(buffer, header, (header < 8 ? 8 : 16) - header);
+            if (read == -1) break;
+            header += read;
+            if (boxes.inHeader()) continue;
+            if (boxes.box() == BoxTracker.MOOF) queue.begin();
+            queue.write(buffer, 0, header); header = 0;
+          } else {
+            final long remaining = boxes.remaining();
+            final int read = input(buffer, 0, remaining == -1 ? buffer.length :
+              (int) Math.min(buffer.length, remaining));
+            if (read == -1) break;
+            queue.write(buffer, 0, read);
+          }
+        }
+        if (header > 0) queue.write(buffer, 0, header);
+        queue.finish();
+      } catch (IOException exception) {queue.fail(exception);}
+      finally {recycle();}
+    }
+
+    /**
+     * Reads the socket, transparently reconnecting and resynchronizing on failures.
+     *
+     * @param buffer target buffer
+     * @param offset target offset
+     * @param length maximum count of bytes
+     *
+     * @return count of bytes, or -1 at the end of stream
+     *
+     * @throws IOException read failure
+     */
+    final int input(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      while (true) {
+        final BinaryWebSocket socket = mSocket;
+        if (socket == null) throw new IOException("Data source closed");
+        try {
+          final int result;
+          if (mPadding > 0) {
+            result = (int) Math.min(length, mPadding);
+            Arrays.fill(buffer, offset, offset + result, (byte) 0);
+            mPadding -= result;
+          } else if (mResync) {
+            if (!resync(socket, buffer, offset, length)) return -1;
+            continue;
+          } else if (mHeaderOffset < mHeaderLength) {
+            result = Math.min(length, mHeaderLength - mHeaderOffset);
+            System.arraycopy(mHeader, mHeaderOffset, buffer, offset, result);
+            mHeaderOffset += result;
+          } else if ((result = frames(socket, buffer, offset, length)) == -1) return -1;
+          synchronized (this) {
+            if (mClosed) throw new IOException("Data source closed");
+            if (mTimeshift != null) mTimeshift.write(buffer, offset, result);
+            boxes.update(buffer, offset, result);
+          }
+          return result;
+        } catch (IOException exception) {
+          if (mClosed) throw exception;
+          reconnect(exception);
+        }
+      }
+    }
+
+    /**
+     * @param socket binary socket
+     * @param buffer target buffer
+     * @param offset target offset
+     * @param length maximum count of bytes
+     *
+     * @return count of bytes, or -1 at the end of stream
+     *
+     * @throws IOException read failure
+     */
+    private int frames(@NonNull BinaryWebSocket socket,
+                       @NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (mStreaming) {
+        final long start = System.nanoTime();
+        final int result = socket.read(buffer, offset, length);
+        arrived(result, System.nanoTime() - start);
+        return result;
+      }
+      // We've read all of the data from the current packet. Get another.
+      if (mRemaining == 0) {
+        recycle();
+        final long start = System.nanoTime();
+        mRemaining = (mFrame = socket.read()).length;
+        arrived(mRemaining, System.nanoTime() - start);
+        if (mFrame == BinaryWebSocket.END_OF_STREAM) return -1;
+      }
+      final int frameOffset = mFrame.length - mRemaining;
+      final int result = Math.min(mRemaining, length);
+      System.arraycopy(mFrame.content, frameOffset, buffer, offset, result);
+      if ((mRemaining -= result) == 0) recycle();
+      return result;
+    }
+
+    /**
+     * Accounts bytes as they come off the socket, rather than when the player
+     * drains them, so the bandwidth meter sees the actual arrival pattern.
+     * Transfer listeners get them on the player's thread by the next read.
+     *
+     * @param count   bytes received from the socket
+     * @param blocked nanos spent blocked in the socket read
+     */
+    private void arrived(int count, long blocked) {
+      metrics.received(count, blocked);
+      if (count <= 0) return;
+      mReceived.addAndGet(count);
+      if (mMeter != null) mMeter.sample(count);
+    }
+
+    /**
+     * Skips the fresh stream up to the next fragment.
+     *
+     * @param socket binary socket
+     * @param buffer scratch buffer
+     * @param offset scratch offset
+     * @param length scratch length
+     *
+     * @return false at the end of stream
+     *
+     * @throws IOException read failure
+     */
+    private boolean resync(@NonNull BinaryWebSocket socket,
+                           @NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (!readFully(socket, mHeader, 0, mHeaderLength = 8)) return false;
+      long size = BoxTracker.readInt(mHeader, 0) & 0xffffffffL;
+      if (size == 1) {
+        if (!readFully(socket, mHeader, 8, 8)) return false;
+        size = BoxTracker.readLong(mHeader, 8); mHeaderLength = 16;
+      }
+      if (BoxTracker.readInt(mHeader, 4) == BoxTracker.MOOF) {
+        mHeaderOffset = 0; mResync = false; mFailures = 0;
+        metrics.resynced(System.nanoTime() - mGapStart); mGapStart = 0;
+        return true;
+      }
+      for (long skip = size == 0 ? Long.MAX_VALUE : size - mHeaderLength; skip > 0;) {
+        final int read = frames(socket, buffer, offset, (int) Math.min(skip, length));
+        if (read == -1) return false; skip -= read;
+      }
+      return true;
+    }
+
+    /**
+     * @param socket binary socket
+     * @param target target buffer
+     * @param offset target offset
+     * @param length count of bytes
+     *
+     * @return false at the end of stream
+     *
+     * @throws IOException read failure
+     */
+    private boolean readFully(@NonNull BinaryWebSocket socket,
+                              @NonNull byte[] target, int offset, int length) throws IOException {
+      while (length > 0) {
+        final int read = frames(socket, target, offset, length);
+        if (read == -1) return false;
+        offset += read; length -= read;
+      }
+      return true;
+    }
+
+    /**
+     * Replaces the failed socket with a new one, backing off between attempts.
+     * The interrupted media data box gets padded up to its end and the fresh
+     * stream is skipped up to the next fragment.
+     *
+     * @param cause read failure
+     *
+     * @throws IOException unable to reconnect or to resynchronize
+     */
+    private void reconnect(@NonNull IOException cause) throws IOException {
+      final BoxTracker boxes = this.boxes;
+      final boolean resumable = !boxes.inHeader() && boxes.remaining() != -1 &&
+        (boxes.boundary() || boxes.box() == BoxTracker.MDAT);
+      if (!resumable) throw cause;
+      if (mGapStart == 0) mGapStart = System.nanoTime();
+
+      final BinaryWebSocket failed = mSocket;
+      if (failed != null) try {failed.close();} catch (IOException ignored) {}
+      recycle(); mRemaining = 0;
+
+      BinaryWebSocket socket = null;
+      while (socket == null) {
+        if (mFailures >= mAttempts) throw cause;
+        final long delay = Math.min(RECONNECT_DELAY << mFailures++, RECONNECT_DELAY_MAX);
+        Trace.trace(Trace.INFO, TRACE_RECONNECT, mFailures, delay);
+        try {Thread.sleep(delay);}
+        catch (InterruptedException exception) {throw new InterruptedIOException();}
+        if (mClosed) throw cause;
+        try {socket = connect(false);}
+        catch (IOException exception) {cause.addSuppressed(exception);}
+      }
+
+      try {attach(socket);} catch (IOException exception) {throw cause;}
+      metrics.reconnected();
+      mPadding = boxes.remaining();
+      mResync = true;
+    }
+
+    /** Returns the drained frame to the pool. */
+    private void recycle() {
+      final Binary frame = mFrame; mFrame = null;
+      if (frame != null && frame != BinaryWebSocket.END_OF_STREAM) mPool.release(frame.content);
+    }
+
+    /**
+     * Closes the socket and wakes the pump up, which then stops at once.
+     *
+     * @throws IOException close failure
+     */
+    final void close() throws IOException {
+      final BinaryWebSocket socket;
+      synchronized (this) {mClosed = true; socket = mSocket; mSocket = null;}
+      if (queue != null) queue.close();
+      else if (ring != null) ring.close();
+      else {recycle(); mRemaining = 0;}
+      if (socket != null) socket.close();
+    }
+  }
+
+  /** {@link BinarySocketDataSource} factory. */
+  public static final class Factory implements DataSource.Factory {
+
+    /** OkHttp Client. */
+    final Call.Factory mSocketFactory;
+
+    /** WS Logger. */
+    final HttpLoggingInterceptor.Logger mLogger;
+
+    /** Handshake credentials. */
+    final String mToken;
+    final long mMediaId;
+
+    /** Read-ahead capacity, zero for inline reads. */
+    int mReadAhead = 0;
+
+    /** Frames pool. */
+    FramePool mPool = FramePool.SHARED;
+
+    /** Streams payloads instead of whole frames. */
+    boolean mStreaming = true;
+
+    /** Keep-alive ping interval (mills). */
+    long mPingInterval = BinaryWebSocket.PING_INTERVAL;
+
+    /** Offer "permessage-deflate". */
+    boolean mDeflate = true;
+
+    /** Reconnect attempts per failure. */
+    int mAttempts = RECONNECT_ATTEMPTS;
+
+    /** Pre-warmed sockets. */
+    SocketPool mSocketPool = null;
+
+    /** Metrics registry. */
+    MetricsRegistry mRegistry = MetricsRegistry.SHARED;
+
+    /** Bandwidth meter sampled at arrival. */
+    SocketBandwidthMeter mMeter = null;
+
+    /** Shared sockets. */
+    SocketMux mMux = null;
+
+    /** Event-loop transport. */
+    SocketLoop mLoop = null;
+
+    /** Fragment events listener. */
+    FragmentListener mFragments = null;
+
+    /** Timeshift window. */
+    TimeshiftBuffer mTimeshift = null;
+
+    /** Adaptive bitrate. */
+    AbrController mAbr = null;
+
+    /** Frame queue capacity, zero if disabled. */
+    int mQueueCapacity = 0;
+
+    /** Frame queue overflow policy. */
+    FrameQueue.Policy mQueuePolicy = FrameQueue.Policy.BLOCK;
+
+    /**
+     * Constructs a new {@link Factory}
+     *
+     * @param factory binary socket factory
+     * @param logger http logger
+     * @param token stream token
+     * @param mediaId stream media id
+     */
+    public Factory(@NonNull Call.Factory factory, @NonNull HttpLoggingInterceptor.Logger logger,
+                   @Nullable String token, long mediaId) {
+      mSocketFactory = factory;
+      mLogger = logger;
+      mToken = token;
+      mMediaId = mediaId;
+    }
+
+    /**
+     * @param capacity read-ahead ring capacity in bytes, zero to read inline
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setReadAhead(int capacity)
+    {mReadAhead = capacity; return this;}
+
+    /**
+     * @param pool frames pool
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setFramePool(@NonNull FramePool pool)
+    {mPool = pool; return this;}
+
+    /**
+     * @param streaming true to copy payloads straight from the socket buffers,
+     *                  false to read whole frames leased from the pool
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setStreaming(boolean streaming)
+    {mStreaming = streaming; return this;}
+
+    /**
+     * @param interval keep-alive ping interval (mills), zero to disable
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setPingInterval(long interval)
+    {mPingInterval = interval; return this;}
+
+    /**
+     * @param deflate offer "permessage-deflate" compression
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setDeflate(boolean deflate)
+    {mDeflate = deflate; return this;}
+
+    /**
+     * @param attempts reconnect attempts per failure, zero to fail immediately
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setReconnectAttempts(int attempts)
+    {mAttempts = attempts; return this;}
+
+    /**
+     * @param pool pre-warmed sockets to adopt on open, null to always connect
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setSocketPool(@Nullable SocketPool pool)
+    {mSocketPool = pool; return this;}
+
+    /**
+     * @param registry registry of opened transfers metrics
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setMetricsRegistry(@NonNull MetricsRegistry registry)
+    {mRegistry = registry; return this;}
+
+    /**
+     * Samples the meter as bytes come off the socket, on the pump thread,
+     * instead of when the player drains the read-ahead or the frame queue.
+     * The meter then skips the bytes this source reports to it as a
+     * transfer listener, so it should be the player's bandwidth meter.
+     *
+     * @param meter bandwidth meter, null to sample on reads
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setBandwidthMeter(@Nullable SocketBandwidthMeter meter)
+    {mMeter = meter; return this;}
+
+    /**
+     * Subscribes through one shared socket per edge host instead of
+     * opening a socket per source. The socket pool is not used then, unless
+     * the shared socket has another frames pool, ping interval or compression
+     * and the source opens a socket of its own.
+     *
+     * @param mux shared sockets, null for a socket per source
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setMultiplexer(@Nullable SocketMux mux)
+    {mMux = mux; return this;}
+
+    /**
+     * Services the sockets from the event-loop threads instead of blocking
+     * a thread per socket. The loop buffers every socket in a ring of its own,
+     * so the read-ahead, the socket pool and compression are not used then.
+     *
+     * @param loop event-loop transport, null for a blocking socket per source
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setTransport(@Nullable SocketLoop loop)
+    {mLoop = loop; return this;}
+
+    /**
+     * Enables fMP4 box parsing: the init segment gets cached and
+     * every fragment start is reported with its decode times.
+     *
+     * @param listener fragment events listener, null to disable parsing
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setFragmentListener(@Nullable FragmentListener listener)
+    {mFragments = listener; return this;}
+
+    /**
+     * Tees the delivered stream into the timeshift window, so it can be
+     * played back later with a {@link TimeshiftDataSource}. Enables fMP4
+     * box parsing. Only one data source at a time should write a window.
+     *
+     * @param timeshift timeshift window, null to disable
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setTimeshift(@Nullable TimeshiftBuffer timeshift)
+    {mTimeshift = timeshift; return this;}
+
+    /**
+     * Lets the controller request renditions over the socket at fragment
+     * boundaries. Enables fMP4 box parsing.
+     *
+     * @param abr adaptive bitrate controller, null to disable
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setAbrController(@Nullable AbrController abr)
+    {mAbr = abr; return this;}
+
+    /**
+     * Queues the stream fragment by fragment between the socket and the player,
+     * instead of the read-ahead ring. When the player lags behind, the policy
+     * either holds the socket reader or drops whole fragments. Enables fMP4
+     * box parsing.
+     *
+     * @param capacity queue capacity in bytes, zero to disable
+     * @param policy   overflow policy
+     *
+     * @return this factory
+     */
+    @NonNull public final Factory setFrameQueue(int capacity, @NonNull FrameQueue.Policy policy)
+    {mQueueCapacity = capacity; mQueuePolicy = policy; return this;}
+
+    /** {@inheritDoc} */
+    @NonNull @Override
+    public final BinarySocketDataSource createDataSource()
+    {return new BinarySocketDataSource(this);}
+  }
+
 }
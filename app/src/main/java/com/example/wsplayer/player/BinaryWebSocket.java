@@ -23,8 +23,16 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.ProtocolException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
-import java.util.function.Function;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import com.example.wsplayer.utils.Trace;
+import com.example.wsplayer.utils.schedulers.Schedulers;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -34,19 +42,25 @@ import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.internal.Internal;
 import okhttp3.internal.connection.Exchange;
+import okhttp3.internal.ws.PerMessageDeflate;
 import okhttp3.internal.ws.RealWebSocket.Streams;
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
 import okhttp3.internal.ws.WSUtilsInternal.Binary;
 import okhttp3.internal.ws.WSUtilsInternal.Close;
 import okhttp3.internal.ws.WSUtilsInternal.Frame;
-import okhttp3.internal.ws.WSUtilsInternal.IORunnable;
+import okhttp3.internal.ws.WSUtilsInternal.FrameWriter;
+import okhttp3.internal.ws.WSUtilsInternal.MessageStream;
+import okhttp3.internal.ws.WSUtilsInternal.Ping;
+import okhttp3.internal.ws.WSUtilsInternal.Pong;
 import okhttp3.internal.ws.WSUtilsInternal.Text;
 import okhttp3.logging.HttpLoggingInterceptor;
 import okio.ByteString;
+import reactor.core.Disposable;
 
 import static java.lang.Thread.currentThread;
 import static java.util.Objects.requireNonNull;
-import static okhttp3.internal.ws.WSUtilsInternal.reader;
-import static okhttp3.internal.ws.WSUtilsInternal.writer;
+import static okhttp3.internal.ws.WSUtilsInternal.frames;
+import static okhttp3.internal.ws.WSUtilsInternal.stream;
 import static okhttp3.internal.ws.WebSocketProtocol.acceptHeader;
 
 
@@ -57,16 +71,39 @@ import static okhttp3.internal.ws.WebSocketProtocol.acceptHeader;
 interface BinaryWebSocket extends Closeable {
 
   /** System constants. */
-  byte[]
-    END_OF_STREAM = {},
-    UNKNOWN_FRAME = {};
+  Binary END_OF_STREAM = new Binary(new byte[0]);
+
+  /** Default keep-alive ping interval (mills). */
+  long PING_INTERVAL = 10_000L;
+
+  /** Trace events. */
+  int
+    TRACE_READ = Trace.event("socket.read"),
+    TRACE_WRITE = Trace.event("socket.write"),
+    TRACE_CLOSE = Trace.event("socket.close");
 
   /**
-   * @return new incoming frame
+   * Control frames are handled by the socket itself and never returned.
+   *
+   * @return new incoming frame, its content is leased from the socket allocator
+   *
+   * @throws IOException read exception
+   */
+  @NonNull Binary read() throws IOException;
+
+  /**
+   * Streams binary messages payload straight into the buffer.
+   * Should not be mixed with {@link #read()} on the same socket.
+   *
+   * @param buffer target buffer
+   * @param offset target offset
+   * @param length maximum count of bytes
+   *
+   * @return count of bytes, or -1 at the end of stream
    *
    * @throws IOException read exception
    */
-  @NonNull byte[] read() throws IOException;
+  int read(@NonNull byte[] buffer, int offset, int length) throws IOException;
 
   /**
    * @param value write value
@@ -75,45 +112,223 @@ interface BinaryWebSocket extends Closeable {
    */
   void write(@NonNull String value) throws IOException;
 
+  /**
+   * Sends a pre-encoded text message, e.g. a constant or a {@link TextTemplate}.
+   *
+   * @param utf8   UTF-8 text
+   * @param offset text offset
+   * @param length text length
+   *
+   * @throws IOException write exception
+   */
+  default void write(@NonNull byte[] utf8, int offset, int length) throws IOException
+  {write(new String(utf8, offset, length, StandardCharsets.UTF_8));}
+
+  /**
+   * @param utf8 UTF-8 text, from its position to the limit
+   *
+   * @throws IOException write exception
+   */
+  default void write(@NonNull ByteBuffer utf8) throws IOException
+  {write(StandardCharsets.UTF_8.decode(utf8.duplicate()).toString());}
+
+  /**
+   * @param template filled template
+   *
+   * @throws IOException write exception
+   */
+  default void write(@NonNull TextTemplate template) throws IOException
+  {write(template.array(), 0, template.length());}
+
+  /** @return ping/pong round-trip time */
+  @NonNull RttMeter rtt();
+
+  /** @return negotiated compression, or null if messages go uncompressed */
+  @Nullable PerMessageDeflate deflate();
+
+  /** @return outbound frames queue, or null if frames go unqueued */
+  @Nullable default OutboundQueue outbound() {return null;}
+
+  /** @param listener sizes of completely read binary messages, null to stop listening */
+  void listen(@Nullable LongConsumer listener);
+
+  /**
+   * Text messages are delivered on the thread reading the socket.
+   *
+   * @param listener incoming text messages, null to stop listening
+   */
+  void receive(@Nullable Consumer<String> listener);
+
   @NonNull
   static BinaryWebSocket create(@NonNull Call.Factory client, @NonNull String url,
                                 @NonNull HttpLoggingInterceptor.Logger logger) throws IOException {
-    final Frame[] frames = new Frame[1]; final Request request = request(url);
+    return create(client, url, logger, Allocator.HEAP, PING_INTERVAL, true);
+  }
+
+  /**
+   * @param client    http client
+   * @param url       socket url
+   * @param logger    http logger
+   * @param allocator binary frames allocator
+   * @param ping      keep-alive ping interval (mills), zero to disable
+   *
+   * @return connected socket
+   *
+   * @throws IOException connection failure
+   */
+  @NonNull
+  static BinaryWebSocket create(@NonNull Call.Factory client, @NonNull String url,
+                                @NonNull HttpLoggingInterceptor.Logger logger,
+                                @NonNull Allocator allocator, long ping) throws IOException {
+    return create(client, url, logger, allocator, ping, true);
+  }
+
+  /**
+   * @param client    http client
+   * @param url       socket url
+   * @param logger    http logger
+   * @param allocator binary frames allocator
+   * @param ping      keep-alive ping interval (mills), zero to disable
+   * @param compress  offer "permessage-deflate" extension
+   *
+   * @return connected socket
+   *
+   * @throws IOException connection failure
+   */
+  @NonNull
+  static BinaryWebSocket create(@NonNull Call.Factory client, @NonNull String url,
+                                @NonNull HttpLoggingInterceptor.Logger logger,
+                                @NonNull Allocator allocator, long ping,
+                                boolean compress) throws IOException {
+    final Frame[] frames = new Frame[1]; final Request request = request(url, compress);
     final Call call = client.newCall(request); try (final Response response = call.execute()) {
       checkUpgrade(response.headers(), requireNonNull(request.tag(String.class)));
+      final PerMessageDeflate deflate = PerMessageDeflate.negotiate(response.headers());
+      if (deflate != null && !compress) throw new ProtocolException("Unexpected extension");
       final Streams streams = streams(exchange(response), logger);
-      final Random random = requireNonNull(request.tag(Random.class));
-      final Function<Frame, IORunnable> writer = writer(streams.client, streams.sink, random);
-      final IORunnable reader = reader(streams.client, streams.source, v -> frames[0] = v);
+      final OutboundQueue outbound = new OutboundQueue(frames(streams.sink, deflate), allocator);
+      final RttMeter rtt = new RttMeter();
+      final AtomicReference<Consumer<String>> texts = new AtomicReference<>();
+      final IOConsumer<Frame> send = f -> {
+        outbound.send(f);
+        log(logger, true, f);
+      };
+      final MessageStream reader = stream(streams.source, allocator, deflate, frame -> {
+        if (frame instanceof Ping || frame instanceof Pong) {
+          log(logger, false, frame);
+          if (frame instanceof Pong) rtt.pong(((Pong) frame).content);
+          else try {send.accept(new Pong(((Ping) frame).content));}
+          catch (IOException ignored) {/* the reader will fail on its own */}
+        } else if (frame instanceof Text) {
+          log(logger, false, frame);
+          final Consumer<String> listener = texts.get();
+          if (listener != null) listener.accept(((Text) frame).content);
+        } else frames[0] = frame;
+      });
+      final byte[] stamp = new byte[Long.BYTES];
+      final Disposable keepAlive = ping <= 0 ? null : Schedulers.io_ping(() -> {
+        try {outbound.send(FrameWriter.PING, rtt.ping(stamp), 0, stamp.length);}
+        catch (IOException ignored) {/* the reader will fail on its own */}
+      }, ping);
       return new BinaryWebSocket() {
+
+        /** Binary message is being streamed. */
+        private boolean mStreaming = false;
+
+        /** Bytes of the streamed message. */
+        private long mMessage = 0;
+
+        /** Messages listener. */
+        private volatile LongConsumer mListener = null;
+
         @Override
         public final void write(@NonNull String value) throws IOException {
-          System.out.println("BinaryWebSocket.write: value = [" + value + "]");
-          final Frame f = new Text(value);
-          writer.apply(f).run();
-          log(logger, true, f);
+          Trace.debug(TRACE_WRITE, value.length(), 0);
+          outbound.send(FrameWriter.TEXT, value);
+          log(logger, true, value);
+        }
+
+        @Override
+        public final void write(@NonNull byte[] utf8, int offset, int length) throws IOException {
+          Trace.debug(TRACE_WRITE, length, 0);
+          outbound.send(FrameWriter.TEXT, utf8, offset, length);
+          if (Trace.on(Trace.DEBUG))
+            log(logger, true, new String(utf8, offset, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public final void write(@NonNull ByteBuffer utf8) throws IOException {
+          Trace.debug(TRACE_WRITE, utf8.remaining(), 0);
+          outbound.send(FrameWriter.TEXT, utf8);
+          if (Trace.on(Trace.DEBUG))
+            log(logger, true, StandardCharsets.UTF_8.decode(utf8.duplicate()));
         }
 
         @NonNull
         @Override
-        public final byte[] read() throws IOException {
-          System.out.println("BinaryWebSocket.read");
-          reader.run();
-          final Frame frame = frames[0];
-          frames[0] = null;
-          log(logger, false, frame);
-          if (frame instanceof Binary) return ((Binary) frame).content;
-          else if (frame instanceof Close) return END_OF_STREAM;
-          else return UNKNOWN_FRAME;
+        public final Binary read() throws IOException {
+          while (true) {
+            reader.run();
+            final Frame frame = frames[0];
+            if (frame == null) continue;
+            frames[0] = null;
+            log(logger, false, frame);
+            if (frame instanceof Binary) {
+              final Binary result = (Binary) frame;
+              Trace.verbose(TRACE_READ, result.length, 0);
+              final LongConsumer listener = mListener;
+              if (listener != null) listener.accept(result.length);
+              return result;
+            }
+            else if (frame instanceof Close) return END_OF_STREAM;
+          }
+        }
+
+        @Override
+        public final int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+          while (true) {
+            if (!mStreaming) {
+              if (!(mStreaming = reader.next())) {
+                final Frame frame = frames[0];
+                frames[0] = null;
+                if (frame != null) log(logger, false, frame);
+                if (reader.closed()) return -1;
+                continue;
+              }
+            }
+            final int result = reader.read(buffer, offset, length);
+            Trace.verbose(TRACE_READ, result, length);
+            if (result != -1) {mMessage += result; return result;}
+            final LongConsumer listener = mListener;
+            if (listener != null) listener.accept(mMessage);
+            mStreaming = false; mMessage = 0;
+          }
         }
 
+        @NonNull
+        @Override
+        public final RttMeter rtt() {return rtt;}
+
+        @Nullable
+        @Override
+        public final PerMessageDeflate deflate() {return deflate;}
+
+        @Nullable
+        @Override
+        public final OutboundQueue outbound() {return outbound;}
+
+        @Override
+        public final void listen(@Nullable LongConsumer listener) {mListener = listener;}
+
+        @Override
+        public final void receive(@Nullable Consumer<String> listener) {texts.set(listener);}
+
         @Override
         public final void close() throws IOException {
-          System.out.println("BinaryWebSocket.close");
+          Trace.debug(TRACE_CLOSE, 0, 0);
+          if (keepAlive != null) keepAlive.dispose();
           try {
-            final Frame f = new Close(1000, null);
-            writer.apply(f).run();
-            log(logger, true, f);
+            send.accept(new Close(1000, null));
           } catch (IOException ignored) {} finally {
             try {streams.close();} finally {frames[0] = null;}
           }
@@ -123,25 +338,41 @@ interface BinaryWebSocket extends Closeable {
   }
 
   /**
-   * @param url connect url
+   * Input/Output consumer.
+   *
+   * @param <T> type of value
+   */
+  @FunctionalInterface
+  interface IOConsumer<T> {
+
+    /**
+     * @param value consumed value
+     *
+     * @throws IOException io failure
+     */
+    void accept(@NonNull T value) throws IOException;
+  }
+
+  /**
+   * @param url      connect url
+   * @param compress offer "permessage-deflate" extension
    *
-   * @return http request
+   * @return http request, tagged with the accept key
    */
-  @NonNull static Request request(@NonNull String url) {
-    final Random random = new Random();
-    final String key = key(random);
-    return
+  @NonNull static Request request(@NonNull String url, boolean compress) {
+    final String key = key(ThreadLocalRandom.current());
+    final Request.Builder builder =
       new Request.Builder().url(url)
         .header("Upgrade", "websocket")
         .header("Connection", "Upgrade")
         .header("Sec-WebSocket-Key", key)
         .header("Sec-WebSocket-Version", "13")
-        .header("Sec-WebSocket-Extensions", "permessage-deflate; client_max_window_bits")
         .header("Accept-Encoding", "gzip, deflate, br")
         .header("Accept-Language", "ru-RU,ru;q=0.9,en-US;q=0.8,en;q=0.7")
-        .tag(String.class, acceptHeader(key))
-        .tag(Random.class, random)
-        .build();
+        .tag(String.class, acceptHeader(key));
+    if (compress) builder.header("Sec-WebSocket-Extensions",
+      PerMessageDeflate.NAME + "; client_max_window_bits");
+    return builder.build();
   }
 
   /**
@@ -223,11 +454,14 @@ interface BinaryWebSocket extends Closeable {
   }
 
   /**
+   * Frames are logged at {@link Trace#DEBUG} level only.
+   *
    * @param logger websocket logger
    * @param send  transport direction
-   * @param frame transported frame
+   * @param frame transported frame or text
    */
-  static void log(@NonNull HttpLoggingInterceptor.Logger logger, boolean send, @NonNull Frame frame) {
+  static void log(@NonNull HttpLoggingInterceptor.Logger logger, boolean send, @NonNull Object frame) {
+    if (!Trace.on(Trace.DEBUG)) return;
     final StringBuilder result = new StringBuilder(currentThread().getName());
     result.append(" | ").append(send ? "-->" : "<--").append('\t').append(frame);
     logger.log(result.toString()); result.setLength(0);
@@ -0,0 +1,153 @@
+/*
+ * BoxTracker.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+
+/**
+ * Tracks top-level ISO-BMFF box boundaries of a passing byte stream.
+ *
+ * @author Gleb Nikitenko
+ * @since 06.02.20
+ **/
+final class BoxTracker {
+
+  /** Box types. */
+  static final int
+    MOOF = type("moof"),
+    MDAT = type("mdat");
+
+  /** Box header bytes. */
+  private final byte[] mHeader = new byte[16];
+
+  /** Collected header bytes. */
+  private int mHeaderLength = 0;
+
+  /** Type of the current box. */
+  private int mType = 0;
+
+  /** Body bytes left in the current box, -1 if it lasts up to the end. */
+  private long mRemaining = 0;
+
+  /** Stream position of the current box and of the next byte. */
+  private long mStart = 0, mPosition = 0;
+
+  /** Box bodies parser, null if not needed. */
+  private final FragmentParser mParser;
+
+  /** Constructs a new {@link BoxTracker}. */
+  BoxTracker() {this(null);}
+
+  /**
+   * Constructs a new {@link BoxTracker}.
+   *
+   * @param parser box bodies parser, or null
+   */
+  BoxTracker(@Nullable FragmentParser parser) {mParser = parser;}
+
+  /**
+   * @param name four-character code
+   *
+   * @return box type
+   */
+  static int type(@NonNull String name) {
+    return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+  }
+
+  /**
+   * @param source passed bytes
+   * @param offset source offset
+   * @param length count of bytes
+   */
+  final void update(@NonNull byte[] source, int offset, int length) {
+    final FragmentParser parser = mParser;
+    mPosition += length;
+    while (length > 0) {
+      if (mRemaining == -1) return;
+      if (mRemaining > 0) {
+        final int count = (int) Math.min(length, mRemaining);
+        if (parser != null) parser.body(source, offset, count);
+        mRemaining -= count; offset += count; length -= count;
+        if (mRemaining == 0 && parser != null) parser.end();
+        continue;
+      }
+      if (mHeaderLength == 0) mStart = mPosition - length;
+      mHeader[mHeaderLength++] = source[offset++]; length--;
+      if (mHeaderLength == 8 || mHeaderLength == 16) header();
+    }
+  }
+
+  /** Parses the collected header. */
+  private void header() {
+    final long size = mHeaderLength == 16 ? readLong(mHeader, 8) : readInt(mHeader, 0) & 0xffffffffL;
+    if (size == 1 && mHeaderLength == 8) return;
+    mType = readInt(mHeader, 4);
+    mRemaining = size == 0 ? -1 : Math.max(0, size - mHeaderLength);
+    final FragmentParser parser = mParser;
+    if (parser != null) {
+      parser.start(mType, mStart, mHeader, mHeaderLength, size == 0 ? -1 : size);
+      if (mRemaining == 0) parser.end();
+    }
+    mHeaderLength = 0;
+  }
+
+  /** @return true if the stream stays between two top-level boxes */
+  final boolean boundary() {return mHeaderLength == 0 && mRemaining == 0;}
+
+  /** @return true if the box header is being collected */
+  final boolean inHeader() {return mHeaderLength != 0;}
+
+  /** @return type of the current (or the last) box */
+  final int box() {return mType;}
+
+  /** @return body bytes left in the current box, -1 if it lasts up to the end */
+  final long remaining() {return mRemaining;}
+
+  /** @return box bodies parser, null if not set */
+  @Nullable final FragmentParser parser() {return mParser;}
+
+  /** Forgets the current box and rewinds the position. */
+  final void reset() {
+    mHeaderLength = 0; mRemaining = 0; mType = 0; mStart = mPosition = 0;
+    if (mParser != null) mParser.reset();
+  }
+
+  /**
+   * @param data   source bytes
+   * @param offset source offset
+   *
+   * @return big-endian int
+   */
+  static int readInt(@NonNull byte[] data, int offset) {
+    return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+      (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+  }
+
+  /**
+   * @param data   source bytes
+   * @param offset source offset
+   *
+   * @return big-endian long
+   */
+  static long readLong(@NonNull byte[] data, int offset)
+  {return (long) readInt(data, offset) << 32 | readInt(data, offset + 4) & 0xffffffffL;}
+}
@@ -0,0 +1,286 @@
+/*
+ * ByteRing.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import androidx.annotation.NonNull;
+
+
+/**
+ * Bounded, pre-allocated single-producer/single-consumer byte ring.
+ *
+ * The producer pauses as soon as the fill level reaches the high watermark
+ * and resumes only when the consumer has drained it down to the low one.
+ *
+ * @author Gleb Nikitenko
+ * @since 03.02.20
+ **/
+public final class ByteRing {
+
+  /** Ring storage. */
+  private final byte[] mBuffer;
+
+  /** Watermarks. */
+  private final int mHigh, mLow;
+
+  /** Ring lock. */
+  private final ReentrantLock mLock = new ReentrantLock();
+
+  /** Ring conditions. */
+  private final Condition
+    mNotEmpty = mLock.newCondition(),
+    mNotFull = mLock.newCondition();
+
+  /** Read position. */
+  private int mHead = 0;
+
+  /** Fill level. */
+  private volatile int mSize = 0;
+
+  /** Producer paused by high watermark. */
+  private boolean mPaused = false;
+
+  /** End of stream reached. */
+  private boolean mFinished = false;
+
+  /** Ring was closed. */
+  private boolean mClosed = false;
+
+  /** Producer failure. */
+  private IOException mError = null;
+
+  /**
+   * Constructs a new {@link ByteRing}.
+   *
+   * @param capacity ring capacity
+   * @param high     high watermark
+   * @param low      low watermark
+   */
+  ByteRing(int capacity, int high, int low) {
+    if (capacity <= 0 || high <= 0 || high > capacity || low < 0 || low >= high)
+      throw new IllegalArgumentException
+        ("capacity = " + capacity + ", high = " + high + ", low = " + low);
+    mBuffer = new byte[capacity]; mHigh = high; mLow = low;
+  }
+
+  /**
+   * @param capacity ring capacity
+   *
+   * @return ring with 3/4 and 1/4 watermarks
+   */
+  @NonNull static ByteRing create(int capacity)
+  {return new ByteRing(capacity, capacity - (capacity >> 2), capacity >> 2);}
+
+  /** @return ring capacity */
+  public final int capacity() {return mBuffer.length;}
+
+  /** @return high watermark */
+  public final int high() {return mHigh;}
+
+  /** @return low watermark */
+  public final int low() {return mLow;}
+
+  /** @return current fill level */
+  public final int level() {return mSize;}
+
+  /**
+   * Blocks until the whole chunk is stored.
+   *
+   * @param source source bytes
+   * @param offset source offset
+   * @param length source length
+   *
+   * @throws IOException ring closed or producer interrupted
+   */
+  final void write(@NonNull byte[] source, int offset, int length) throws IOException {
+    final ReentrantLock lock = lock();
+    try {
+      while (length > 0) {
+        while (!mClosed && (mPaused || mSize == mBuffer.length))
+          mNotFull.await();
+        if (mClosed) throw new IOException("Ring closed");
+        final int size = mSize;
+        final int capacity = mBuffer.length, tail = (mHead + size) % capacity;
+        final int count = Math.min(length, Math.min(capacity - size, capacity - tail));
+        System.arraycopy(source, offset, mBuffer, tail, count);
+        offset += count; length -= count;
+        if ((mSize = size + count) >= mHigh) mPaused = true;
+        mNotEmpty.signal();
+      }
+    } catch (InterruptedException exception) {
+      throw new InterruptedIOException();
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * Stores as much of the chunk as fits, ignoring the watermarks, never blocks.
+   *
+   * @param source source bytes
+   * @param offset source offset
+   * @param length source length
+   *
+   * @return count of stored bytes
+   *
+   * @throws IOException ring closed or producer interrupted
+   */
+  final int offer(@NonNull byte[] source, int offset, int length) throws IOException {
+    final ReentrantLock lock = lock();
+    try {
+      if (mClosed) throw new IOException("Ring closed");
+      int result = 0;
+      while (length > 0 && mSize < mBuffer.length) {
+        final int size = mSize;
+        final int capacity = mBuffer.length, tail = (mHead + size) % capacity;
+        final int count = Math.min(length, Math.min(capacity - size, capacity - tail));
+        System.arraycopy(source, offset, mBuffer, tail, count);
+        offset += count; length -= count; result += count;
+        if ((mSize = size + count) >= mHigh) mPaused = true;
+      }
+      if (result > 0) mNotEmpty.signal();
+      return result;
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * Reads the input straight into the free region of the ring.
+   * The consumer never touches that region, so the input is read outside the lock.
+   *
+   * @param input source of bytes
+   *
+   * @return count of bytes, or -1 at the end of input
+   *
+   * @throws IOException ring closed, input failed or producer interrupted
+   */
+  final int write(@NonNull Input input) throws IOException {
+    final int tail, count;
+    ReentrantLock lock = lock();
+    try {
+      while (!mClosed && (mPaused || mSize == mBuffer.length))
+        mNotFull.await();
+      if (mClosed) throw new IOException("Ring closed");
+      final int size = mSize, capacity = mBuffer.length;
+      tail = (mHead + size) % capacity;
+      count = Math.min(capacity - size, capacity - tail);
+    } catch (InterruptedException exception) {
+      throw new InterruptedIOException();
+    } finally {lock.unlock();}
+
+    final int result = input.read(mBuffer, tail, count);
+    if (result <= 0) return result;
+
+    lock = lock();
+    try {
+      if (mClosed) throw new IOException("Ring closed");
+      if ((mSize += result) >= mHigh) mPaused = true;
+      mNotEmpty.signal();
+      return result;
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * Blocks until at least one byte is available.
+   *
+   * @param target target buffer
+   * @param offset target offset
+   * @param length target length
+   *
+   * @return count of bytes, or -1 at the end of stream
+   *
+   * @throws IOException producer failed or consumer interrupted
+   */
+  final int read(@NonNull byte[] target, int offset, int length) throws IOException {
+    final ReentrantLock lock = lock();
+    try {
+      int size;
+      while ((size = mSize) == 0 && !mFinished && !mClosed && mError == null)
+        mNotEmpty.await();
+      if (size == 0) {
+        if (mError != null) throw mError;
+        if (mClosed) throw new IOException("Ring closed");
+        return -1;
+      }
+      final int capacity = mBuffer.length, head = mHead;
+      final int count = Math.min(length, Math.min(size, capacity - head));
+      System.arraycopy(mBuffer, head, target, offset, count);
+      mHead = (head + count) % capacity;
+      if ((mSize = size - count) <= mLow) mPaused = false;
+      mNotFull.signal();
+      return count;
+    } catch (InterruptedException exception) {
+      throw new InterruptedIOException();
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * @return acquired ring lock
+   *
+   * @throws InterruptedIOException thread was interrupted
+   */
+  @NonNull private ReentrantLock lock() throws InterruptedIOException {
+    try {mLock.lockInterruptibly(); return mLock;}
+    catch (InterruptedException exception) {throw new InterruptedIOException();}
+  }
+
+  /** Marks the end of stream, buffered bytes remain readable. */
+  final void finish() {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {mFinished = true; mNotEmpty.signalAll();}
+    finally {lock.unlock();}
+  }
+
+  /** @param error producer failure, thrown after buffered bytes */
+  final void fail(@NonNull IOException error) {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {if (mError == null) mError = error; mNotEmpty.signalAll();}
+    finally {lock.unlock();}
+  }
+
+  /** Releases both sides. */
+  final void close() {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {mClosed = true; mSize = 0; mNotEmpty.signalAll(); mNotFull.signalAll();}
+    finally {lock.unlock();}
+  }
+
+  /** Source of ring bytes. */
+  @FunctionalInterface
+  interface Input {
+
+    /**
+     * @param target target buffer
+     * @param offset target offset
+     * @param length maximum count of bytes
+     *
+     * @return count of bytes, or -1 at the end of input
+     *
+     * @throws IOException read failure
+     */
+    int read(@NonNull byte[] target, int offset, int length) throws IOException;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString()
+  {return "ring:" + mSize + "/" + mBuffer.length + " [" + mLow + ".." + mHigh + "]";}
+}
@@ -0,0 +1,339 @@
+/*
+ * ConnectionSetup.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.example.wsplayer.utils.Trace;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.internal.Util;
+import okhttp3.internal.platform.Platform;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Connection setup layer of the sockets.
+ *
+ * Applied to the http client builder, it resolves the edge hosts with the
+ * {@link SocketDns} cache, keeps one TLS context, whose session cache lets
+ * reconnects to the same edge resume the session instead of a full
+ * handshake, and times every phase of the socket upgrade calls:
+ * resolution, TCP connect, TLS handshake and the HTTP upgrade.
+ *
+ * The same context can be passed to the {@link SocketLoop}.
+ *
+ * @author Gleb Nikitenko
+ * @since 15.02.20
+ **/
+public final class ConnectionSetup {
+
+  /** Cached TLS sessions. */
+  public static final int SESSION_CACHE = 64;
+
+  /** Lifetime of cached TLS sessions (seconds). */
+  public static final int SESSION_TIMEOUT = 60 * 60;
+
+  /** Trace events. */
+  private static final int TRACE_SETUP = Trace.event("setup.socket");
+
+  /** Edge hosts resolver. */
+  private final SocketDns mDns;
+
+  /** TLS context. */
+  private final SSLContext mContext;
+
+  /** Trust manager of the context. */
+  private final X509TrustManager mTrust;
+
+  /** Report logger, or null. */
+  private final HttpLoggingInterceptor.Logger mLogger;
+
+  /** Timings of the last setup. */
+  private volatile Timings mLast = null;
+
+  /** Counters. */
+  private final AtomicLong
+    mSetups = new AtomicLong(),
+    mFailures = new AtomicLong(),
+    mResumed = new AtomicLong();
+
+  /** Total phase durations (nanos). */
+  private final AtomicLong
+    mDnsTime = new AtomicLong(),
+    mConnectTime = new AtomicLong(),
+    mTlsTime = new AtomicLong(),
+    mUpgradeTime = new AtomicLong();
+
+  /**
+   * Constructs a new {@link ConnectionSetup}.
+   *
+   * @param logger report logger, or null
+   */
+  public ConnectionSetup(@Nullable HttpLoggingInterceptor.Logger logger)
+  {this(new SocketDns(), logger);}
+
+  /**
+   * Constructs a new {@link ConnectionSetup}.
+   *
+   * @param dns    edge hosts resolver
+   * @param logger report logger, or null
+   */
+  public ConnectionSetup(@NonNull SocketDns dns, @Nullable HttpLoggingInterceptor.Logger logger) {
+    mDns = dns; mLogger = logger;
+    mTrust = Util.platformTrustManager();
+    mContext = Platform.get().getSSLContext();
+    try {mContext.init(null, new TrustManager[] {mTrust}, null);}
+    catch (GeneralSecurityException exception) {throw new AssertionError(exception);}
+    final SSLSessionContext sessions = mContext.getClientSessionContext();
+    sessions.setSessionCacheSize(SESSION_CACHE);
+    sessions.setSessionTimeout(SESSION_TIMEOUT);
+  }
+
+  /**
+   * @param builder http client builder
+   *
+   * @return the same builder, with the resolver, the TLS context and the timings
+   */
+  @NonNull public final OkHttpClient.Builder apply(@NonNull OkHttpClient.Builder builder) {
+    return builder
+      .dns(mDns)
+      .sslSocketFactory(mContext.getSocketFactory(), mTrust)
+      .eventListenerFactory(call -> "websocket".equalsIgnoreCase(call.request().header("Upgrade")) ?
+        new Listener(call.request().url().host()) : EventListener.NONE);
+  }
+
+  /** @return edge hosts resolver */
+  @NonNull public final SocketDns dns() {return mDns;}
+
+  /** @return shared TLS context */
+  @NonNull public final SSLContext context() {return mContext;}
+
+  /** @return timings of the last socket setup, null if none completed */
+  @Nullable public final Timings last() {return mLast;}
+
+  /** @return count of completed socket setups */
+  public final long setups() {return mSetups.get();}
+
+  /** @return count of failed socket setups */
+  public final long failures() {return mFailures.get();}
+
+  /** @return count of setups with a resumed TLS session */
+  public final long resumed() {return mResumed.get();}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average resolution time
+   */
+  public final long dnsTime(@NonNull TimeUnit unit) {return average(mDnsTime, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average TCP connect time
+   */
+  public final long connectTime(@NonNull TimeUnit unit) {return average(mConnectTime, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average TLS handshake time
+   */
+  public final long tlsTime(@NonNull TimeUnit unit) {return average(mTlsTime, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average HTTP upgrade time
+   */
+  public final long upgradeTime(@NonNull TimeUnit unit) {return average(mUpgradeTime, unit);}
+
+  /**
+   * @param total total phase duration (nanos)
+   * @param unit  time unit
+   *
+   * @return average phase duration
+   */
+  private long average(@NonNull AtomicLong total, @NonNull TimeUnit unit) {
+    final long setups = setups();
+    return setups == 0 ? 0 : unit.convert(total.get() / setups, NANOSECONDS);
+  }
+
+  /** @param timings timings of a completed setup */
+  private void report(@NonNull Timings timings) {
+    mLast = timings; mSetups.incrementAndGet();
+    if (timings.resumed) mResumed.incrementAndGet();
+    mDnsTime.addAndGet(timings.dns); mConnectTime.addAndGet(timings.connect);
+    mTlsTime.addAndGet(timings.tls); mUpgradeTime.addAndGet(timings.upgrade);
+    Trace.debug(TRACE_SETUP, NANOSECONDS.toMillis(timings.total), timings.resumed ? 1 : 0);
+    final HttpLoggingInterceptor.Logger logger = mLogger;
+    if (logger != null) logger.log(timings.toString());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "setup: " + setups() + " (failed " + failures() + ", resumed " + resumed() +
+      "), dns=" + dnsTime(TimeUnit.MILLISECONDS) + "ms, tcp=" + connectTime(TimeUnit.MILLISECONDS) +
+      "ms, tls=" + tlsTime(TimeUnit.MILLISECONDS) + "ms, upgrade=" +
+      upgradeTime(TimeUnit.MILLISECONDS) + "ms, " + mDns;
+  }
+
+  /** Timings of one socket setup, durations in nanos. */
+  public static final class Timings {
+
+    /** Edge host. */
+    @NonNull public final String host;
+
+    /** Connected address, null if the connection was reused. */
+    @Nullable public final InetAddress address;
+
+    /** Phase durations, zero if skipped. */
+    public final long dns, connect, tls, upgrade, total;
+
+    /** TLS session was resumed. */
+    public final boolean resumed;
+
+    /**
+     * Constructs a new {@link Timings}.
+     *
+     * @param host    edge host
+     * @param address connected address
+     * @param dns     resolution
+     * @param connect TCP connect
+     * @param tls     TLS handshake
+     * @param upgrade HTTP upgrade
+     * @param total   whole setup
+     * @param resumed TLS session was resumed
+     */
+    Timings(@NonNull String host, @Nullable InetAddress address, long dns, long connect,
+            long tls, long upgrade, long total, boolean resumed) {
+      this.host = host; this.address = address; this.dns = dns; this.connect = connect;
+      this.tls = tls; this.upgrade = upgrade; this.total = total; this.resumed = resumed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final String toString() {
+      return "setup " + host + (address != null ? " (" + address.getHostAddress() + ")" : "") +
+        ": dns=" + NANOSECONDS.toMillis(dns) + "ms, tcp=" + NANOSECONDS.toMillis(connect) +
+        "ms, tls=" + NANOSECONDS.toMillis(tls) + "ms" + (resumed ? " (resumed)" : "") +
+        ", upgrade=" + NANOSECONDS.toMillis(upgrade) + "ms, total=" +
+        NANOSECONDS.toMillis(total) + "ms";
+    }
+  }
+
+  /** Phases of one upgrade call, the call runs on a single thread. */
+  private final class Listener extends EventListener {
+
+    /** Edge host. */
+    private final String mHost;
+
+    /** Phase marks (nanos). */
+    private long mStart, mDnsStart, mDnsEnd, mConnectStart, mTlsStart, mTlsEnd,
+      mConnectEnd, mRequestStart;
+
+    /** Wall time of the connect start (mills). */
+    private long mConnectWall = 0;
+
+    /** Connected address. */
+    private InetAddress mAddress = null;
+
+    /** TLS session was resumed. */
+    private boolean mResumed = false;
+
+    /**
+     * Constructs a new {@link Listener}.
+     *
+     * @param host edge host
+     */
+    Listener(@NonNull String host) {mHost = host;}
+
+    @Override public final void callStart(@NonNull Call call) {mStart = System.nanoTime();}
+
+    @Override public final void dnsStart(@NonNull Call call, @NonNull String domain)
+    {mDnsStart = System.nanoTime();}
+
+    @Override public final void dnsEnd(@NonNull Call call, @NonNull String domain,
+                                       @NonNull List<InetAddress> addresses)
+    {mDnsEnd = System.nanoTime();}
+
+    @Override public final void connectStart(@NonNull Call call, @NonNull InetSocketAddress address,
+                                             @NonNull Proxy proxy) {
+      mConnectStart = System.nanoTime(); mConnectWall = System.currentTimeMillis();
+      mTlsStart = mTlsEnd = 0; mAddress = address.getAddress();
+    }
+
+    @Override public final void secureConnectStart(@NonNull Call call)
+    {mTlsStart = System.nanoTime();}
+
+    @Override public final void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake)
+    {mTlsEnd = System.nanoTime();}
+
+    @Override public final void connectEnd(@NonNull Call call, @NonNull InetSocketAddress address,
+                                           @NonNull Proxy proxy, @Nullable Protocol protocol)
+    {mConnectEnd = System.nanoTime();}
+
+    @Override public final void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+      final Socket socket = connection.socket();
+      mResumed = mConnectWall != 0 && socket instanceof SSLSocket &&
+        ((SSLSocket) socket).getSession().getCreationTime() < mConnectWall;
+    }
+
+    @Override public final void requestHeadersStart(@NonNull Call call)
+    {mRequestStart = System.nanoTime();}
+
+    @Override public final void responseHeadersEnd(@NonNull Call call, @NonNull Response response) {
+      final long now = System.nanoTime();
+      final long tls = mTlsEnd - mTlsStart;
+      final long connect = mConnectEnd - mConnectStart - tls;
+      report(new Timings(mHost, mAddress, mDnsEnd - mDnsStart, mConnectStart == 0 ? 0 : connect,
+        tls, now - mRequestStart, now - mStart, mResumed));
+    }
+
+    @Override public final void callFailed(@NonNull Call call, @NonNull IOException exception)
+    {mFailures.incrementAndGet();}
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * FirstFrameMeter.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.example.wsplayer.utils.Trace;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.video.VideoListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Time from the data source open() to the first rendered video frame.
+ *
+ * Listens to the data source as a {@link TransferListener} (open starts
+ * the measurement) and to the player as a {@link VideoListener}.
+ *
+ * @author Gleb Nikitenko
+ * @since 11.02.20
+ **/
+public final class FirstFrameMeter implements TransferListener, VideoListener {
+
+  /** Trace events. */
+  private static final int TRACE_FIRST_FRAME = Trace.event("player.first_frame");
+
+  /** Result callback (mills), or null. */
+  private final LongConsumer mCallback;
+
+  /** Open time (nanos), zero if not opened. */
+  private volatile long mOpened = 0;
+
+  /** Last measured value (nanos), -1 if none. */
+  private volatile long mValue = -1;
+
+  /** Constructs a new {@link FirstFrameMeter}. */
+  public FirstFrameMeter() {this(null);}
+
+  /**
+   * Constructs a new {@link FirstFrameMeter}.
+   *
+   * @param callback result callback (mills), or null
+   */
+  public FirstFrameMeter(@Nullable LongConsumer callback) {mCallback = callback;}
+
+  /**
+   * @param unit time unit
+   *
+   * @return last time to first frame, -1 if not measured yet
+   */
+  public final long get(@NonNull TimeUnit unit) {
+    final long value = mValue;
+    return value == -1 ? -1 : unit.convert(value, NANOSECONDS);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onTransferInitializing(@NonNull DataSource source,
+                                           @NonNull DataSpec spec, boolean network)
+  {mOpened = System.nanoTime();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onTransferStart(@NonNull DataSource source,
+                                    @NonNull DataSpec spec, boolean network) {}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onBytesTransferred(@NonNull DataSource source,
+                                       @NonNull DataSpec spec, boolean network, int bytes) {}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onTransferEnd(@NonNull DataSource source,
+                                  @NonNull DataSpec spec, boolean network) {}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onRenderedFirstFrame() {
+    final long opened = mOpened; if (opened == 0) return;
+    final long value = mValue = System.nanoTime() - opened; mOpened = 0;
+    final long mills = NANOSECONDS.toMillis(value);
+    Trace.trace(Trace.INFO, TRACE_FIRST_FRAME, mills, 0);
+    if (mCallback != null) mCallback.accept(mills);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {return "first frame: " + get(TimeUnit.MILLISECONDS) + "ms";}
+}
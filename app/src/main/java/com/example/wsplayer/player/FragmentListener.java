@@ -0,0 +1,118 @@
+/*
+ * FragmentListener.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+
+/**
+ * Fragmented MP4 stream events.
+ *
+ * Called on the thread reading the socket, so should return quickly.
+ *
+ * @author Gleb Nikitenko
+ * @since 11.02.20
+ **/
+public interface FragmentListener {
+
+  /** @param init "ftyp" and "moov" boxes of the stream */
+  default void onInitSegment(@NonNull byte[] init) {}
+
+  /** @param fragment parsed "moof" box, the fragment start */
+  void onFragment(@NonNull Fragment fragment);
+
+  /** Parsed "moof" box. */
+  final class Fragment {
+
+    /** Sequence number of "mfhd". */
+    public final long sequence;
+
+    /** Stream position of the "moof" box. */
+    public final long position;
+
+    /** Size of the "moof" box. */
+    public final long size;
+
+    /** Track ids of "traf" boxes. */
+    @NonNull public final int[] tracks;
+
+    /** Base media decode times of "tfdt", in track timescales (-1 if absent). */
+    @NonNull public final long[] decodeTimes;
+
+    /** Track timescales from the init segment (0 if unknown). */
+    @NonNull public final long[] timescales;
+
+    /** Every track starts with a sync sample ("trun", "tfhd" or "trex" flags). */
+    public final boolean keyframe;
+
+    /** Arrival time (nanos). */
+    public final long arrival;
+
+    /**
+     * Constructs a new {@link Fragment}.
+     *
+     * @param sequence    sequence number
+     * @param position    stream position
+     * @param size        box size
+     * @param tracks      track ids
+     * @param decodeTimes base media decode times
+     * @param timescales  track timescales
+     * @param keyframe    starts with sync samples
+     * @param arrival     arrival time (nanos)
+     */
+    Fragment(long sequence, long position, long size, @NonNull int[] tracks,
+             @NonNull long[] decodeTimes, @NonNull long[] timescales,
+             boolean keyframe, long arrival) {
+      this.sequence = sequence; this.position = position; this.size = size;
+      this.tracks = tracks; this.decodeTimes = decodeTimes; this.timescales = timescales;
+      this.keyframe = keyframe; this.arrival = arrival;
+    }
+
+    /**
+     * @param index track index
+     *
+     * @return decode time of the track in micros, -1 if unknown
+     */
+    public final long decodeTimeUs(int index) {
+      final long time = decodeTimes[index], scale = timescales[index];
+      if (time < 0 || scale <= 0) return -1;
+      return time / scale * 1_000_000L + time % scale * 1_000_000L / scale;
+    }
+
+    /** @return decode time of the first track with a known one in micros, -1 if unknown */
+    public final long decodeTimeUs() {
+      for (int i = 0; i < tracks.length; i++) {
+        final long result = decodeTimeUs(i);
+        if (result != -1) return result;
+      }
+      return -1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final String toString() {
+      return "moof #" + sequence + " @" + position + ", " + size + "B, tracks=" +
+        Arrays.toString(tracks) + ", tfdt=" + Arrays.toString(decodeTimes) +
+        (keyframe ? ", key" : "");
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * FragmentParser.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.example.wsplayer.player.BoxTracker.MOOF;
+import static com.example.wsplayer.player.BoxTracker.readInt;
+import static com.example.wsplayer.player.BoxTracker.readLong;
+import static com.example.wsplayer.player.BoxTracker.type;
+
+
+/**
+ * Collects "ftyp", "moov" and "moof" top-level boxes reported
+ * by a {@link BoxTracker}, caches the init segment and parses
+ * fragment headers into {@link FragmentListener} events.
+ *
+ * Media data ("mdat") is never copied.
+ *
+ * @author Gleb Nikitenko
+ * @since 11.02.20
+ **/
+final class FragmentParser {
+
+  /** Box types. */
+  static final int
+    FTYP = type("ftyp"),
+    MOOV = type("moov"),
+    TRAK = type("trak"),
+    TKHD = type("tkhd"),
+    MDIA = type("mdia"),
+    MDHD = type("mdhd"),
+    MFHD = type("mfhd"),
+    TRAF = type("traf"),
+    TFHD = type("tfhd"),
+    TFDT = type("tfdt"),
+    TRUN = type("trun"),
+    MVEX = type("mvex"),
+    TREX = type("trex");
+
+  /** "sample_is_non_sync_sample" bit of sample flags. */
+  private static final int NON_SYNC = 0x10000;
+
+  /** Largest collected box. */
+  private static final int MAX_BOX_SIZE = 1 << 20;
+
+  /** Events listener. */
+  private final FragmentListener mListener;
+
+  /** Collected box: type, position, bytes. */
+  private int mType = 0;
+  private long mPosition = 0;
+  private byte[] mBox = new byte[4096];
+  private int mLength = -1, mHeaderLength = 8;
+
+  /** Cached "ftyp" box. */
+  private byte[] mFtyp = null;
+
+  /** Cached init segment. */
+  private volatile byte[] mInit = null;
+
+  /** Timescales by track id. */
+  private final SparseArray<Long> mTimescales = new SparseArray<>();
+
+  /** Default sample flags of "trex" by track id. */
+  private final SparseArray<Integer> mFlags = new SparseArray<>();
+
+  /**
+   * Constructs a new {@link FragmentParser}.
+   *
+   * @param listener events listener
+   */
+  FragmentParser(@NonNull FragmentListener listener) {mListener = listener;}
+
+  /**
+   * @param type     box type
+   * @param position stream position of the box
+   * @param header   box header
+   * @param length   header length
+   * @param size     box size, -1 if it lasts up to the end
+   */
+  final void start(int type, long position, @NonNull byte[] header, int length, long size) {
+    mLength = -1;
+    if (type != FTYP && type != MOOV && type != MOOF) return;
+    if (size < 0 || size > MAX_BOX_SIZE) return;
+    if (mBox.length < size) mBox = new byte[(int) size];
+    System.arraycopy(header, 0, mBox, 0, length);
+    mType = type; mPosition = position; mLength = mHeaderLength = length;
+  }
+
+  /**
+   * @param source body bytes
+   * @param offset source offset
+   * @param length count of bytes
+   */
+  final void body(@NonNull byte[] source, int offset, int length) {
+    if (mLength == -1) return;
+    System.arraycopy(source, offset, mBox, mLength, length);
+    mLength += length;
+  }
+
+  /** The current box is complete. */
+  final void end() {
+    final int length = mLength; mLength = -1;
+    if (length == -1) return;
+    try {
+      if (mType == FTYP) mFtyp = Arrays.copyOf(mBox, length);
+      else if (mType == MOOV) init(length);
+      else if (mType == MOOF) fragment(length);
+    } catch (ArrayIndexOutOfBoundsException exception) {/* malformed box, skip it */}
+  }
+
+  /** Forgets the current box. */
+  final void reset() {mLength = -1;}
+
+  /** @return cached init segment, null if none was received yet */
+  @Nullable final byte[] init() {return mInit;}
+
+  /** @param length "moov" box length */
+  private void init(int length) {
+    final byte[] ftyp = mFtyp, box = mBox;
+    final int prefix = ftyp != null ? ftyp.length : 0;
+    final byte[] init = new byte[prefix + length];
+    if (ftyp != null) System.arraycopy(ftyp, 0, init, 0, prefix);
+    System.arraycopy(box, 0, init, prefix, length);
+
+    mTimescales.clear();
+    for (int trak = child(box, mHeaderLength, length, TRAK); trak != -1; trak = next(box, trak, length, TRAK)) {
+      final int end = trak + size(box, trak);
+      final int tkhd = child(box, trak + 8, end, TKHD);
+      final int mdia = child(box, trak + 8, end, MDIA);
+      final int mdhd = mdia == -1 ? -1 : child(box, mdia + 8, mdia + size(box, mdia), MDHD);
+      if (tkhd == -1 || mdhd == -1) continue;
+      final boolean tkhd1 = box[tkhd + 8] == 1, mdhd1 = box[mdhd + 8] == 1;
+      final int track = readInt(box, tkhd + 12 + (tkhd1 ? 16 : 8));
+      final long scale = readInt(box, mdhd + 12 + (mdhd1 ? 16 : 8)) & 0xffffffffL;
+      mTimescales.put(track, scale);
+    }
+    mFlags.clear();
+    final int mvex = child(box, mHeaderLength, length, MVEX);
+    if (mvex != -1) {
+      final int end = mvex + size(box, mvex);
+      for (int trex = child(box, mvex + 8, end, TREX); trex != -1; trex = next(box, trex, end, TREX))
+        mFlags.put(readInt(box, trex + 12), readInt(box, trex + 28));
+    }
+    mInit = init;
+    mListener.onInitSegment(init);
+  }
+
+  /** @param length "moof" box length */
+  private void fragment(int length) {
+    final byte[] box = mBox;
+    final int mfhd = child(box, mHeaderLength, length, MFHD);
+    final long sequence = mfhd == -1 ? -1 : readInt(box, mfhd + 12) & 0xffffffffL;
+    int count = 0;
+    for (int traf = child(box, mHeaderLength, length, TRAF); traf != -1; traf = next(box, traf, length, TRAF))
+      count++;
+    final int[] tracks = new int[count];
+    final long[] times = new long[count], scales = new long[count];
+    int index = 0; boolean keyframe = true;
+    for (int traf = child(box, mHeaderLength, length, TRAF); traf != -1; traf = next(box, traf, length, TRAF)) {
+      final int end = traf + size(box, traf);
+      final int tfhd = child(box, traf + 8, end, TFHD), tfdt = child(box, traf + 8, end, TFDT);
+      final int track = tfhd == -1 ? 0 : readInt(box, tfhd + 12);
+      tracks[index] = track;
+      times[index] = tfdt == -1 ? -1 :
+        box[tfdt + 8] == 1 ? readLong(box, tfdt + 12) : readInt(box, tfdt + 12) & 0xffffffffL;
+      final Long scale = mTimescales.get(track);
+      scales[index++] = scale != null ? scale : 0;
+      final int flags = tfhd == -1 ? -1 : firstSampleFlags(box, tfhd, child(box, traf + 8, end, TRUN));
+      if (flags != -1 && (flags & NON_SYNC) != 0) keyframe = false;
+    }
+    mListener.onFragment(new FragmentListener.Fragment(sequence, mPosition, length,
+      tracks, times, scales, keyframe, System.nanoTime()));
+  }
+
+  /**
+   * @param box  box bytes
+   * @param tfhd offset of "tfhd"
+   * @param trun offset of "trun", or -1
+   *
+   * @return flags of the first sample of the run, -1 if unknown
+   */
+  private int firstSampleFlags(@NonNull byte[] box, int tfhd, int trun) {
+    if (trun != -1) {
+      final int flags = readInt(box, trun + 8) & 0xffffff;
+      final int count = readInt(box, trun + 12);
+      int offset = trun + 16 + ((flags & 0x1) != 0 ? 4 : 0);
+      if ((flags & 0x4) != 0) return readInt(box, offset);
+      offset += (flags & 0x100) != 0 ? 4 : 0;
+      offset += (flags & 0x200) != 0 ? 4 : 0;
+      if ((flags & 0x400) != 0 && count > 0) return readInt(box, offset);
+    }
+    final int flags = readInt(box, tfhd + 8) & 0xffffff;
+    if ((flags & 0x20) != 0) {
+      int offset = tfhd + 16;
+      if ((flags & 0x1) != 0) offset += 8;
+      if ((flags & 0x2) != 0) offset += 4;
+      if ((flags & 0x8) != 0) offset += 4;
+      if ((flags & 0x10) != 0) offset += 4;
+      return readInt(box, offset);
+    }
+    final Integer defaults = mFlags.get(readInt(box, tfhd + 12));
+    return defaults != null ? defaults : -1;
+  }
+
+  /**
+   * @param box   box bytes
+   * @param start offset of the box
+   *
+   * @return box size, clamped to the minimal header
+   */
+  private static int size(@NonNull byte[] box, int start)
+  {return Math.max(8, readInt(box, start));}
+
+  /**
+   * @param box   box bytes
+   * @param from  offset of the first child
+   * @param to    end of children
+   * @param type  child type
+   *
+   * @return offset of the first child of the type, -1 if there is no one
+   */
+  private static int child(@NonNull byte[] box, int from, int to, int type) {
+    for (int offset = from; offset + 8 <= to; offset += size(box, offset))
+      if (readInt(box, offset + 4) == type)
+        return offset + size(box, offset) <= to ? offset : -1;
+    return -1;
+  }
+
+  /**
+   * @param box    box bytes
+   * @param child  offset of the current child
+   * @param to     end of children
+   * @param type   child type
+   *
+   * @return offset of the next sibling of the type, -1 if there is no one
+   */
+  private static int next(@NonNull byte[] box, int child, int to, int type)
+  {return child(box, child + size(box, child), to, type);}
+}
@@ -0,0 +1,148 @@
+/*
+ * FramePool.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import androidx.annotation.NonNull;
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
+
+
+/**
+ * Size-classed pool of frame buffers.
+ *
+ * Each class holds power-of-two arrays in a small lock-free slot table,
+ * so leasing and releasing never allocates once the pool is warmed up.
+ * Requests beyond the largest class are served from the heap.
+ *
+ * @author Gleb Nikitenko
+ * @since 04.02.20
+ **/
+public final class FramePool implements Allocator {
+
+  /** Shared pool: 1KB..4MB classes, 8 arrays each. */
+  public static final FramePool SHARED = new FramePool(10, 22, 8);
+
+  /** Size classes bounds (log2). */
+  private final int mMinShift, mMaxShift;
+
+  /** Free arrays per class. */
+  private final AtomicReferenceArray<byte[]>[] mClasses;
+
+  /** Counters. */
+  private final AtomicLong
+    mLeases = new AtomicLong(),
+    mHits = new AtomicLong(),
+    mAllocations = new AtomicLong(),
+    mAllocatedBytes = new AtomicLong(),
+    mReleases = new AtomicLong(),
+    mDrops = new AtomicLong();
+
+  /**
+   * Constructs a new {@link FramePool}.
+   *
+   * @param minShift smallest class (log2)
+   * @param maxShift largest class (log2)
+   * @param slots    pooled arrays per class
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public FramePool(int minShift, int maxShift, int slots) {
+    if (minShift < 0 || maxShift > 30 || minShift > maxShift || slots <= 0)
+      throw new IllegalArgumentException
+        ("minShift = " + minShift + ", maxShift = " + maxShift + ", slots = " + slots);
+    mMinShift = minShift; mMaxShift = maxShift;
+    mClasses = new AtomicReferenceArray[maxShift - minShift + 1];
+    for (int i = 0; i < mClasses.length; i++) mClasses[i] = new AtomicReferenceArray<>(slots);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final byte[] lease(int size) {
+    mLeases.incrementAndGet();
+    final int shift = shift(size);
+    if (shift > mMaxShift) return allocate(size);
+    final AtomicReferenceArray<byte[]> slots = mClasses[shift - mMinShift];
+    for (int i = 0; i < slots.length(); i++) {
+      final byte[] result = slots.getAndSet(i, null);
+      if (result != null) {mHits.incrementAndGet(); return result;}
+    }
+    return allocate(1 << shift);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void release(byte[] array) {
+    mReleases.incrementAndGet();
+    final int length = array.length, shift = shift(length);
+    if (length == 1 << shift && shift <= mMaxShift && length >= 1 << mMinShift) {
+      final AtomicReferenceArray<byte[]> slots = mClasses[shift - mMinShift];
+      for (int i = 0; i < slots.length(); i++)
+        if (slots.compareAndSet(i, null, array)) return;
+    }
+    mDrops.incrementAndGet();
+  }
+
+  /**
+   * @param size array size
+   *
+   * @return new array
+   */
+  @NonNull private byte[] allocate(int size) {
+    mAllocations.incrementAndGet();
+    mAllocatedBytes.addAndGet(size);
+    return new byte[size];
+  }
+
+  /**
+   * @param size requested size
+   *
+   * @return size class (log2), never less than the smallest one
+   */
+  private int shift(int size) {
+    final int result = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    return Math.max(result, mMinShift);
+  }
+
+  /** @return total leases */
+  public final long leases() {return mLeases.get();}
+
+  /** @return leases served from the pool */
+  public final long hits() {return mHits.get();}
+
+  /** @return leases served from the heap */
+  public final long allocations() {return mAllocations.get();}
+
+  /** @return bytes allocated from the heap */
+  public final long allocatedBytes() {return mAllocatedBytes.get();}
+
+  /** @return total releases */
+  public final long releases() {return mReleases.get();}
+
+  /** @return released arrays left to the garbage collector */
+  public final long drops() {return mDrops.get();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "pool: leases=" + leases() + ", hits=" + hits() + ", allocations=" + allocations() +
+      " (" + allocatedBytes() + "B), releases=" + releases() + ", drops=" + drops();
+  }
+}
@@ -0,0 +1,432 @@
+/*
+ * FrameQueue.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import androidx.annotation.NonNull;
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Bounded queue of fragments between the socket reader and the player.
+ *
+ * Every "moof" starts a new unit, which lasts up to the next one, the bytes
+ * before the first fragment (the init segment) are never dropped. When the
+ * queued bytes exceed the capacity, the {@link Policy} decides whether the
+ * reader waits or whole queued fragments are dropped. A fragment that the
+ * player has started to read is never dropped.
+ *
+ * @author Gleb Nikitenko
+ * @since 14.02.20
+ **/
+public final class FrameQueue implements FragmentListener {
+
+  /** Size of leased chunks. */
+  private static final int CHUNK = 16 * 1024;
+
+  /** Overflow policies. */
+  public enum Policy {
+
+    /** The reader waits for the player. */
+    BLOCK,
+
+    /** The oldest queued fragments are dropped. */
+    DROP_OLDEST,
+
+    /**
+     * Queued fragments up to the newest keyframe one are dropped, if that
+     * is not enough, all of them are and the next ones are skipped until a keyframe.
+     */
+    DROP_TO_KEYFRAME
+  }
+
+  /** Capacity in bytes. */
+  private final int mCapacity;
+
+  /** Overflow policy. */
+  private final Policy mPolicy;
+
+  /** Chunks allocator. */
+  private final Allocator mAllocator;
+
+  /** Queue lock. */
+  private final ReentrantLock mLock = new ReentrantLock();
+
+  /** Queue conditions. */
+  private final Condition
+    mNotEmpty = mLock.newCondition(),
+    mNotFull = mLock.newCondition();
+
+  /** Queued units, the head is being read, the tail is being written. */
+  private final ArrayDeque<Unit> mUnits = new ArrayDeque<>();
+
+  /** Read position within the head unit. */
+  private int mChunk = 0, mOffset = 0;
+
+  /** Queued bytes. */
+  private volatile int mSize = 0;
+
+  /** Incoming fragments are skipped until a keyframe. */
+  private boolean mSkipping = false;
+
+  /** End of stream reached. */
+  private boolean mFinished = false;
+
+  /** Queue was closed. */
+  private boolean mClosed = false;
+
+  /** Producer failure. */
+  private IOException mError = null;
+
+  /** Counters. */
+  private final AtomicLong
+    mFragments = new AtomicLong(),
+    mDrops = new AtomicLong(),
+    mDroppedBytes = new AtomicLong(),
+    mStalls = new AtomicLong();
+
+  /**
+   * Constructs a new {@link FrameQueue}.
+   *
+   * @param capacity  capacity in bytes
+   * @param policy    overflow policy
+   * @param allocator chunks allocator
+   */
+  FrameQueue(int capacity, @NonNull Policy policy, @NonNull Allocator allocator) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity = " + capacity);
+    mCapacity = capacity; mPolicy = policy; mAllocator = allocator;
+    mUnits.add(new Unit(false));
+  }
+
+  /** Starts a new fragment unit, the "moof" comes next. */
+  final void begin() {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {
+      mUnits.getLast().complete = true;
+      mUnits.add(new Unit(true));
+      mFragments.incrementAndGet();
+    } finally {lock.unlock();}
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onFragment(@NonNull Fragment fragment) {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {
+      final Unit tail = mUnits.getLast();
+      if (!tail.fragment) return;
+      tail.keyframe = fragment.keyframe; tail.known = true;
+      if (!mSkipping) return;
+      if (fragment.keyframe) mSkipping = false;
+      else if (untouched(tail)) drop(tail);
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * Blocks only with the {@link Policy#BLOCK} policy.
+   *
+   * @param source source bytes
+   * @param offset source offset
+   * @param length source length
+   *
+   * @throws IOException queue closed or producer interrupted
+   */
+  final void write(@NonNull byte[] source, int offset, int length) throws IOException {
+    final ReentrantLock lock = lock();
+    try {
+      if (mClosed) throw new IOException("Queue closed");
+      final Unit tail = mUnits.getLast();
+      if (tail.dropped) {mDroppedBytes.addAndGet(length); return;}
+      if (tail.arrival == 0) tail.arrival = System.nanoTime();
+      while (length > 0) {
+        final ArrayList<Chunk> chunks = tail.chunks;
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.length == chunk.data.length)
+          chunks.add(chunk = new Chunk(mAllocator.lease(CHUNK)));
+        final int count = Math.min(length, chunk.data.length - chunk.length);
+        System.arraycopy(source, offset, chunk.data, chunk.length, count);
+        chunk.length += count; tail.size += count; mSize += count;
+        offset += count; length -= count;
+      }
+      mNotEmpty.signal();
+      if (mSize > mCapacity) overflow();
+    } catch (InterruptedException exception) {
+      throw new InterruptedIOException();
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * Applies the policy to the overflowed queue.
+   *
+   * @throws InterruptedException producer interrupted
+   */
+  private void overflow() throws InterruptedException {
+    if (mPolicy == Policy.DROP_OLDEST) {
+      for (final Iterator<Unit> iterator = mUnits.iterator();
+           iterator.hasNext() && mSize > mCapacity;) {
+        final Unit unit = iterator.next();
+        if (droppable(unit)) {drop(unit); iterator.remove();}
+      }
+    } else if (mPolicy == Policy.DROP_TO_KEYFRAME) {
+      Unit keyframe = null;
+      for (final Unit unit : mUnits)
+        if (unit.fragment && unit.keyframe && !unit.dropped) keyframe = unit;
+      for (final Iterator<Unit> iterator = mUnits.iterator(); iterator.hasNext();) {
+        final Unit unit = iterator.next();
+        if (unit == keyframe) break;
+        if (droppable(unit)) {drop(unit); iterator.remove();}
+      }
+      if (mSize > mCapacity) {
+        for (final Iterator<Unit> iterator = mUnits.iterator(); iterator.hasNext();) {
+          final Unit unit = iterator.next();
+          if (droppable(unit)) {drop(unit); iterator.remove();}
+        }
+        final Unit tail = mUnits.getLast();
+        if (tail.fragment && !tail.dropped && !tail.keyframe) {
+          mSkipping = true;
+          if (tail.known && untouched(tail)) drop(tail);
+        }
+      }
+    }
+    if (mSize <= mCapacity) return;
+    mStalls.incrementAndGet();
+    while (mSize > mCapacity && !mClosed) mNotFull.await();
+  }
+
+  /**
+   * @param unit queued unit
+   *
+   * @return true if the unit is a whole fragment the player has not started to read
+   */
+  private boolean droppable(@NonNull Unit unit)
+  {return unit.fragment && unit.complete && !unit.dropped && untouched(unit);}
+
+  /**
+   * @param unit queued unit
+   *
+   * @return true if the player has not started to read the unit
+   */
+  private boolean untouched(@NonNull Unit unit)
+  {return unit != mUnits.peekFirst() || mChunk == 0 && mOffset == 0;}
+
+  /** @param unit dropped unit, the tail one stays in the queue to swallow its bytes */
+  private void drop(@NonNull Unit unit) {
+    unit.dropped = true; mSize -= unit.size;
+    mDrops.incrementAndGet(); mDroppedBytes.addAndGet(unit.size);
+    for (final Chunk chunk : unit.chunks) if (chunk != null) mAllocator.release(chunk.data);
+    unit.chunks.clear(); unit.size = 0;
+  }
+
+  /**
+   * Blocks until at least one byte is available.
+   *
+   * @param target target buffer
+   * @param offset target offset
+   * @param length target length
+   *
+   * @return count of bytes, or -1 at the end of stream
+   *
+   * @throws IOException producer failed or consumer interrupted
+   */
+  final int read(@NonNull byte[] target, int offset, int length) throws IOException {
+    final ReentrantLock lock = lock();
+    try {
+      while (true) {
+        if (mClosed) throw new IOException("Queue closed");
+        final Unit head = mUnits.getFirst();
+        if (mChunk < head.chunks.size()) {
+          final Chunk chunk = head.chunks.get(mChunk);
+          if (mOffset < chunk.length) {
+            final int count = Math.min(length, chunk.length - mOffset);
+            System.arraycopy(chunk.data, mOffset, target, offset, count);
+            mOffset += count; head.size -= count; mSize -= count;
+            if (mOffset == chunk.data.length) {
+              mAllocator.release(chunk.data); head.chunks.set(mChunk++, null); mOffset = 0;
+            }
+            mNotFull.signal();
+            return count;
+          }
+        }
+        if (head != mUnits.getLast()) {next(); continue;}
+        if (mError != null) throw mError;
+        if (mFinished) return -1;
+        mNotEmpty.await();
+      }
+    } catch (InterruptedException exception) {
+      throw new InterruptedIOException();
+    } finally {lock.unlock();}
+  }
+
+  /** Moves to the next unit, the whole head was read or dropped. */
+  private void next() {
+    final Unit head = mUnits.removeFirst();
+    for (final Chunk chunk : head.chunks) if (chunk != null) mAllocator.release(chunk.data);
+    mChunk = 0; mOffset = 0;
+  }
+
+  /**
+   * @return acquired queue lock
+   *
+   * @throws InterruptedIOException thread was interrupted
+   */
+  @NonNull private ReentrantLock lock() throws InterruptedIOException {
+    try {mLock.lockInterruptibly(); return mLock;}
+    catch (InterruptedException exception) {throw new InterruptedIOException();}
+  }
+
+  /** Marks the end of stream, queued bytes remain readable. */
+  final void finish() {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {mFinished = true; mUnits.getLast().complete = true; mNotEmpty.signalAll();}
+    finally {lock.unlock();}
+  }
+
+  /** @param error producer failure, thrown after queued bytes */
+  final void fail(@NonNull IOException error) {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {if (mError == null) mError = error; mNotEmpty.signalAll();}
+    finally {lock.unlock();}
+  }
+
+  /** Releases both sides and the queued chunks. */
+  final void close() {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {
+      mClosed = true;
+      for (final Unit unit : mUnits) for (final Chunk chunk : unit.chunks)
+        if (chunk != null) mAllocator.release(chunk.data);
+      mUnits.clear(); mUnits.add(new Unit(false)); mSize = 0;
+      mNotEmpty.signalAll(); mNotFull.signalAll();
+    } finally {lock.unlock();}
+  }
+
+  /** @return capacity in bytes */
+  public final int capacity() {return mCapacity;}
+
+  /** @return overflow policy */
+  @NonNull public final Policy policy() {return mPolicy;}
+
+  /** @return queued bytes */
+  public final int size() {return mSize;}
+
+  /** @return count of queued fragments */
+  public final int fragments() {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {
+      int result = 0;
+      for (final Unit unit : mUnits) if (unit.fragment && !unit.dropped) result++;
+      return result;
+    } finally {lock.unlock();}
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return time the oldest unread bytes wait in the queue
+   */
+  public final long latency(@NonNull TimeUnit unit) {
+    final ReentrantLock lock = mLock; lock.lock();
+    try {
+      for (final Unit queued : mUnits) if (queued.size > 0 && !queued.dropped)
+        return unit.convert(System.nanoTime() - queued.arrival, NANOSECONDS);
+      return 0;
+    } finally {lock.unlock();}
+  }
+
+  /** @return count of fragments entered the queue */
+  public final long total() {return mFragments.get();}
+
+  /** @return count of dropped fragments */
+  public final long drops() {return mDrops.get();}
+
+  /** @return count of dropped bytes */
+  public final long droppedBytes() {return mDroppedBytes.get();}
+
+  /** @return count of times the reader waited for the player */
+  public final long stalls() {return mStalls.get();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "queue: " + mPolicy + ", " + size() + "/" + mCapacity + "B, " + fragments() +
+      " fragments, " + latency(TimeUnit.MILLISECONDS) + "ms, drops=" + drops() + "/" +
+      total() + " (" + droppedBytes() + "B), stalls=" + stalls();
+  }
+
+  /** Queued bytes of a fragment, or of the init segment. */
+  private static final class Unit {
+
+    /** Leased chunks, consumed ones are nulled. */
+    final ArrayList<Chunk> chunks = new ArrayList<>(4);
+
+    /** Starts with a "moof". */
+    final boolean fragment;
+
+    /** Starts with sync samples, known once the "moof" is parsed. */
+    boolean keyframe = false, known = false;
+
+    /** Whole unit is written. */
+    boolean complete = false;
+
+    /** Unit was dropped. */
+    boolean dropped = false;
+
+    /** Unread bytes. */
+    int size = 0;
+
+    /** Arrival time of the first byte (nanos). */
+    long arrival = 0;
+
+    /**
+     * Constructs a new {@link Unit}.
+     *
+     * @param fragment starts with a "moof"
+     */
+    Unit(boolean fragment) {this.fragment = fragment;}
+  }
+
+  /** Leased chunk. */
+  private static final class Chunk {
+
+    /** Chunk storage. */
+    final byte[] data;
+
+    /** Written bytes. */
+    int length = 0;
+
+    /**
+     * Constructs a new {@link Chunk}.
+     *
+     * @param data chunk storage
+     */
+    Chunk(@NonNull byte[] data) {this.data = data;}
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * MetricsRegistry.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+import static java.util.Collections.unmodifiableList;
+
+
+/**
+ * Aggregates {@link TransferMetrics} of all opened data sources.
+ *
+ * Totals include the transfers that were already closed.
+ *
+ * @author Gleb Nikitenko
+ * @since 10.02.20
+ **/
+public final class MetricsRegistry {
+
+  /** Shared registry. */
+  public static final MetricsRegistry SHARED = new MetricsRegistry();
+
+  /** Active transfers. */
+  private final List<TransferMetrics> mActive = new CopyOnWriteArrayList<>();
+
+  /** Totals of closed transfers. */
+  private final AtomicLong
+    mBytes = new AtomicLong(),
+    mFrames = new AtomicLong(),
+    mBlocked = new AtomicLong(),
+    mReconnects = new AtomicLong(),
+    mClosed = new AtomicLong();
+
+  /** @param metrics opened transfer */
+  final void register(@NonNull TransferMetrics metrics) {mActive.add(metrics);}
+
+  /** @param metrics closed transfer */
+  final void unregister(@NonNull TransferMetrics metrics) {
+    if (!mActive.remove(metrics)) return;
+    mBytes.addAndGet(metrics.bytes());
+    mFrames.addAndGet(metrics.frames());
+    mBlocked.addAndGet(metrics.blocked(TimeUnit.NANOSECONDS));
+    mReconnects.addAndGet(metrics.reconnects());
+    mClosed.incrementAndGet();
+  }
+
+  /** @return metrics of active transfers */
+  @NonNull public final List<TransferMetrics> active() {return unmodifiableList(mActive);}
+
+  /** @return count of closed transfers */
+  public final long closed() {return mClosed.get();}
+
+  /** @return total bytes received */
+  public final long bytes() {
+    long result = mBytes.get();
+    for (final TransferMetrics metrics : mActive) result += metrics.bytes();
+    return result;
+  }
+
+  /** @return summary throughput of active transfers */
+  public final long bytesPerSecond() {
+    long result = 0;
+    for (final TransferMetrics metrics : mActive) result += metrics.bytesPerSecond();
+    return result;
+  }
+
+  /** @return total binary messages received */
+  public final long frames() {
+    long result = mFrames.get();
+    for (final TransferMetrics metrics : mActive) result += metrics.frames();
+    return result;
+  }
+
+  /** @return message sizes histogram of active transfers */
+  @NonNull public final long[] frameSizes() {
+    final long[] result = new long[TransferMetrics.BUCKETS];
+    for (final TransferMetrics metrics : mActive) add(result, metrics.frameSizes());
+    return result;
+  }
+
+  /** @return gaps between messages histogram of active transfers */
+  @NonNull public final long[] frameGaps() {
+    final long[] result = new long[TransferMetrics.BUCKETS];
+    for (final TransferMetrics metrics : mActive) add(result, metrics.frameGaps());
+    return result;
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return total time spent blocked in socket reads
+   */
+  public final long blocked(@NonNull TimeUnit unit) {
+    long result = mBlocked.get();
+    for (final TransferMetrics metrics : mActive) result += metrics.blocked(TimeUnit.NANOSECONDS);
+    return unit.convert(result, TimeUnit.NANOSECONDS);
+  }
+
+  /** @return total transparent reconnects */
+  public final long reconnects() {
+    long result = mReconnects.get();
+    for (final TransferMetrics metrics : mActive) result += metrics.reconnects();
+    return result;
+  }
+
+  /**
+   * @param target target histogram
+   * @param source source histogram
+   */
+  private static void add(@NonNull long[] target, @NonNull long[] source)
+  {for (int i = 0; i < target.length; i++) target[i] += source[i];}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "metrics: active=" + mActive.size() + ", closed=" + closed() + ", " + bytes() + "B, " +
+      bytesPerSecond() + "B/s, frames=" + frames() + ", blocked=" +
+      blocked(TimeUnit.MILLISECONDS) + "ms, reconnects=" + reconnects();
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * OutboundQueue.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
+import okhttp3.internal.ws.WSUtilsInternal.Frame;
+import okhttp3.internal.ws.WSUtilsInternal.FrameWriter;
+import okhttp3.internal.ws.WSUtilsInternal.Ping;
+import okhttp3.internal.ws.WSUtilsInternal.Pong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Outbound frames of a websocket, sent from any thread.
+ *
+ * Senders never block on each other: a frame goes to a lock-free queue,
+ * and the sender that finds no one writing becomes the single writer,
+ * draining every pending frame into the sink with one flush at the end.
+ * Pings and pongs are drained ahead of the data, so the keep-alive and
+ * the round-trip samples do not wait behind queued messages; a close
+ * stays in order with the data, as nothing may follow it.
+ *
+ * An uncontended frame is written straight from the caller's buffer,
+ * only a queued one is copied into an array leased from the allocator.
+ *
+ * @author Gleb Nikitenko
+ * @since 16.02.20
+ **/
+public final class OutboundQueue {
+
+  /** Frames writer, owned by the draining thread. */
+  private final FrameWriter mWriter;
+
+  /** Queued payloads allocator. */
+  private final Allocator mAllocator;
+
+  /** Pending frames. */
+  private final Queue<Entry>
+    mControl = new ConcurrentLinkedQueue<>(),
+    mData = new ConcurrentLinkedQueue<>();
+
+  /** Some thread is draining the queues. */
+  private final AtomicBoolean mDraining = new AtomicBoolean();
+
+  /** Count of pending frames. */
+  private final AtomicInteger mDepth = new AtomicInteger();
+
+  /** Counters. */
+  private final AtomicLong
+    mFrames = new AtomicLong(),
+    mQueued = new AtomicLong(),
+    mFlushes = new AtomicLong(),
+    mLatency = new AtomicLong(),
+    mMaxLatency = new AtomicLong(),
+    mMaxDepth = new AtomicLong();
+
+  /** Write failure, fails all the following frames. */
+  private volatile IOException mFailure = null;
+
+  /**
+   * Constructs a new {@link OutboundQueue}.
+   *
+   * @param writer    frames writer
+   * @param allocator queued payloads allocator
+   */
+  OutboundQueue(@NonNull FrameWriter writer, @NonNull Allocator allocator)
+  {mWriter = writer.autoFlush(false); mAllocator = allocator;}
+
+  /**
+   * @param op     frame opcode
+   * @param source payload source
+   * @param offset payload offset
+   * @param length payload length
+   *
+   * @throws IOException the socket failed
+   */
+  final void send(int op, @NonNull byte[] source, int offset, int length) throws IOException {
+    check();
+    if (idle()) {
+      try {mWriter.write(op, source, offset, length); written(0L); drain(true);}
+      catch (IOException exception) {fail(exception); throw exception;}
+      finally {release();}
+    } else {
+      final byte[] copy = mAllocator.lease(length);
+      System.arraycopy(source, offset, copy, 0, length);
+      enqueue(new Entry(op, copy, length, null));
+    }
+  }
+
+  /**
+   * @param op      frame opcode
+   * @param payload payload, from its position to the limit
+   *
+   * @throws IOException the socket failed
+   */
+  final void send(int op, @NonNull ByteBuffer payload) throws IOException {
+    check();
+    if (idle()) {
+      try {mWriter.write(op, payload); written(0L); drain(true);}
+      catch (IOException exception) {fail(exception); throw exception;}
+      finally {release();}
+    } else {
+      final int length = payload.remaining();
+      final byte[] copy = mAllocator.lease(length);
+      payload.duplicate().get(copy, 0, length);
+      enqueue(new Entry(op, copy, length, null));
+    }
+  }
+
+  /**
+   * @param op    frame opcode
+   * @param value text payload
+   *
+   * @throws IOException the socket failed
+   */
+  final void send(int op, @NonNull String value) throws IOException {
+    check();
+    if (idle()) {
+      try {mWriter.write(op, value); written(0L); drain(true);}
+      catch (IOException exception) {fail(exception); throw exception;}
+      finally {release();}
+    } else enqueue(new Entry(op, null, 0, value));
+  }
+
+  /**
+   * @param frame immutable frame
+   *
+   * @throws IOException the socket failed
+   */
+  final void send(@NonNull Frame frame) throws IOException {
+    check();
+    if (idle()) {
+      try {mWriter.write(frame); written(0L); drain(true);}
+      catch (IOException exception) {fail(exception); throw exception;}
+      finally {release();}
+    } else enqueue(new Entry(frame instanceof Ping || frame instanceof Pong ?
+      FrameWriter.PING : FrameWriter.CLOSE, null, 0, frame));
+  }
+
+  /** @throws IOException the socket failed */
+  private void check() throws IOException {
+    final IOException failure = mFailure;
+    if (failure != null) throw new IOException("Socket failed", failure);
+  }
+
+  /** @return true if the caller became the writer of an empty queue */
+  private boolean idle() {return mDepth.get() == 0 && mDraining.compareAndSet(false, true);}
+
+  /**
+   * @param entry pending frame
+   *
+   * @throws IOException the socket failed
+   */
+  private void enqueue(@NonNull Entry entry) throws IOException {
+    mMaxDepth.accumulateAndGet(mDepth.incrementAndGet(), Math::max);
+    (control(entry.op) ? mControl : mData).offer(entry); mQueued.incrementAndGet();
+    while (mDepth.get() != 0 && mDraining.compareAndSet(false, true))
+      try {drain(false);} finally {mDraining.set(false);}
+  }
+
+  /** Releases the writer, and drains the frames queued meanwhile. */
+  private void release() {
+    mDraining.set(false);
+    while (mDepth.get() != 0 && mDraining.compareAndSet(false, true))
+      try {drain(false);} catch (IOException ignored) {/* stays in failure */}
+      finally {mDraining.set(false);}
+  }
+
+  /**
+   * Writes the pending frames, control ones first, and flushes them at once.
+   *
+   * @param flush the writer has already written a frame
+   *
+   * @throws IOException the socket failed
+   */
+  private void drain(boolean flush) throws IOException {
+    try {
+      for (Entry entry; (entry = poll()) != null; flush = true) {
+        mDepth.decrementAndGet();
+        try {
+          if (entry.payload instanceof Frame) mWriter.write((Frame) entry.payload);
+          else if (entry.payload != null) mWriter.write(entry.op, (String) entry.payload);
+          else mWriter.write(entry.op, entry.bytes, 0, entry.length);
+        } finally {if (entry.bytes != null) mAllocator.release(entry.bytes);}
+        written(System.nanoTime() - entry.time);
+      }
+      if (flush) {mWriter.flush(); mFlushes.incrementAndGet();}
+    } catch (IOException exception) {fail(exception); throw exception;}
+  }
+
+  /**
+   * Drops the pending frames, the following sends will fail.
+   *
+   * @param exception write failure
+   */
+  private void fail(@NonNull IOException exception) {
+    if (mFailure == null) mFailure = exception;
+    for (Entry entry; (entry = poll()) != null; ) {
+      mDepth.decrementAndGet();
+      if (entry.bytes != null) mAllocator.release(entry.bytes);
+    }
+  }
+
+  /** @return next pending frame, null if none */
+  @Nullable private Entry poll() {
+    final Entry entry = mControl.poll();
+    return entry != null ? entry : mData.poll();
+  }
+
+  /** @param latency queue latency of a written frame (nanos) */
+  private void written(long latency) {
+    mFrames.incrementAndGet(); mLatency.addAndGet(latency);
+    mMaxLatency.accumulateAndGet(latency, Math::max);
+  }
+
+  /**
+   * @param op frame opcode
+   *
+   * @return true for the frames drained ahead of the data
+   */
+  private static boolean control(int op) {return op == FrameWriter.PING || op == FrameWriter.PONG;}
+
+  /** @return count of pending frames */
+  public final int depth() {return mDepth.get();}
+
+  /** @return maximum count of pending frames */
+  public final long maxDepth() {return mMaxDepth.get();}
+
+  /** @return count of written frames */
+  public final long frames() {return mFrames.get();}
+
+  /** @return count of frames that waited in the queue */
+  public final long queued() {return mQueued.get();}
+
+  /** @return count of flushes, each one after a drain of all pending frames */
+  public final long flushes() {return mFlushes.get();}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average time from a send to the write of a frame
+   */
+  public final long latency(@NonNull TimeUnit unit) {
+    final long frames = frames();
+    return frames == 0 ? 0 : unit.convert(mLatency.get() / frames, NANOSECONDS);
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return maximum time from a send to the write of a frame
+   */
+  public final long maxLatency(@NonNull TimeUnit unit)
+  {return unit.convert(mMaxLatency.get(), NANOSECONDS);}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "outbound: " + frames() + " frames, " + flushes() + " flushes, queued=" + queued() +
+      ", depth=" + depth() + " (max " + maxDepth() + "), latency=" +
+      latency(TimeUnit.MICROSECONDS) + "us (max " + maxLatency(TimeUnit.MICROSECONDS) + "us)" +
+      (mFailure != null ? ", failed" : "");
+  }
+
+  /** Pending frame. */
+  private static final class Entry {
+
+    /** Frame opcode. */
+    final int op;
+
+    /** Leased payload, or null. */
+    @Nullable final byte[] bytes;
+
+    /** Length of the leased payload. */
+    final int length;
+
+    /** Text payload or an immutable frame, if not leased. */
+    @Nullable final Object payload;
+
+    /** Send time (nanos). */
+    final long time = System.nanoTime();
+
+    /**
+     * Constructs a new {@link Entry}.
+     *
+     * @param op      frame opcode
+     * @param bytes   leased payload
+     * @param length  length of the leased payload
+     * @param payload text payload or an immutable frame
+     */
+    Entry(int op, @Nullable byte[] bytes, int length, @Nullable Object payload)
+    {this.op = op; this.bytes = bytes; this.length = length; this.payload = payload;}
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * RttMeter.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import okio.Buffer;
+import okio.ByteString;
+
+
+/**
+ * Round-trip time of the websocket ping/pong exchange.
+ *
+ * Written by the socket reader only, readable from any thread.
+ *
+ * @author Gleb Nikitenko
+ * @since 05.02.20
+ **/
+public final class RttMeter {
+
+  /** Time unit of samples. */
+  private static final TimeUnit TIME_UNIT = TimeUnit.NANOSECONDS;
+
+  /** Samples. */
+  private volatile long
+    mLast = -1L,
+    mMin = -1L,
+    mMax = -1L,
+    mSmoothed = -1L;
+
+  /** Count of samples. */
+  private volatile long mSamples = 0L;
+
+  /** Count of sent pings. */
+  private volatile long mPings = 0L;
+
+  /** Package-private constructor. */
+  RttMeter() {}
+
+  /** @return ping payload, carrying the send time */
+  @NonNull final ByteString ping() {
+    mPings++;
+    return new Buffer().writeLong(System.nanoTime()).readByteString();
+  }
+
+  /**
+   * @param payload target of the ping payload, {@link Long#BYTES} long
+   *
+   * @return the payload
+   */
+  @NonNull final byte[] ping(@NonNull byte[] payload) {
+    mPings++;
+    final long now = System.nanoTime();
+    for (int i = 0; i < Long.BYTES; i++) payload[i] = (byte) (now >> 56 - 8 * i);
+    return payload;
+  }
+
+  /** @param payload pong payload */
+  final void pong(@NonNull ByteString payload) {
+    if (payload.size() != Long.BYTES) return;
+    final long sent = new Buffer().write(payload).readLong();
+    sample(System.nanoTime() - sent);
+  }
+
+  /** @param value rtt sample */
+  private void sample(long value) {
+    if (value < 0) return;
+    mLast = value;
+    if (mMin == -1L || value < mMin) mMin = value;
+    if (value > mMax) mMax = value;
+    // Smoothed like TCP srtt (RFC 6298).
+    mSmoothed = mSmoothed == -1L ? value : mSmoothed - (mSmoothed >> 3) + (value >> 3);
+    mSamples++;
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return last sample, or -1 if there were no samples yet
+   */
+  public final long last(@NonNull TimeUnit unit) {return convert(mLast, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return minimal sample, or -1 if there were no samples yet
+   */
+  public final long min(@NonNull TimeUnit unit) {return convert(mMin, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return maximal sample, or -1 if there were no samples yet
+   */
+  public final long max(@NonNull TimeUnit unit) {return convert(mMax, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return smoothed rtt, or -1 if there were no samples yet
+   */
+  public final long smoothed(@NonNull TimeUnit unit) {return convert(mSmoothed, unit);}
+
+  /** @return count of samples */
+  public final long samples() {return mSamples;}
+
+  /** @return count of sent pings */
+  public final long pings() {return mPings;}
+
+  /**
+   * @param value sample value
+   * @param unit  target unit
+   *
+   * @return converted sample
+   */
+  private static long convert(long value, @NonNull TimeUnit unit)
+  {return value == -1L ? -1L : unit.convert(value, TIME_UNIT);}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    final TimeUnit ms = TimeUnit.MILLISECONDS;
+    return "rtt: last=" + last(ms) + "ms, min=" + min(ms) + "ms, max=" + max(ms) +
+      "ms, smoothed=" + smoothed(ms) + "ms, samples=" + mSamples + "/" + mPings;
+  }
+}
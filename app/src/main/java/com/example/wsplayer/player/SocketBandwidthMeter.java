@@ -0,0 +1,194 @@
+/*
+ * SocketBandwidthMeter.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Clock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+
+/**
+ * Sliding-window bandwidth estimator for never-ending socket transfers.
+ *
+ * {@link com.google.android.exoplayer2.upstream.DefaultBandwidthMeter}
+ * samples a transfer when it ends, which a live socket never does.
+ * This meter counts bytes into fixed time slices as they come off
+ * the wire (see {@link BinarySocketDataSource.Factory#setBandwidthMeter})
+ * and estimates the bitrate
+ * over the last window of slices, so the estimate follows the stream
+ * steadily instead of jumping per frame.
+ *
+ * @author Gleb Nikitenko
+ * @since 11.02.20
+ **/
+public final class SocketBandwidthMeter implements BandwidthMeter, TransferListener {
+
+  /** Defaults. */
+  public static final long DEFAULT_INITIAL_ESTIMATE = 1_000_000L;
+  public static final long DEFAULT_WINDOW = 3_000L;
+  public static final long SLICE = 100L;
+
+  /** Listeners. */
+  private final EventListener.EventDispatcher mDispatcher = new EventListener.EventDispatcher();
+
+  /** Time source. */
+  private final Clock mClock;
+
+  /** Estimate before the first sample (bits/s). */
+  private final long mInitialEstimate;
+
+  /** Window (mills). */
+  private final long mWindow;
+
+  /** Bytes per slice, a ring over the window. */
+  private final long[] mSlices;
+
+  /** Absolute index of the newest slice, -1 before the first sample. */
+  private long mHead = -1;
+
+  /** Time of the first sample. */
+  private long mFirst = -1;
+
+  /** Time and bytes since the last listeners report. */
+  private long mReported = 0, mUnreported = 0;
+
+  /** Total bytes. */
+  private long mTotal = 0;
+
+  /** Constructs a new {@link SocketBandwidthMeter}. */
+  public SocketBandwidthMeter() {this(DEFAULT_INITIAL_ESTIMATE, DEFAULT_WINDOW, Clock.DEFAULT);}
+
+  /**
+   * Constructs a new {@link SocketBandwidthMeter}.
+   *
+   * @param initial estimate before the first sample (bits/s)
+   * @param window  window (mills), rounded up to {@link #SLICE}
+   * @param clock   time source
+   */
+  public SocketBandwidthMeter(long initial, long window, @NonNull Clock clock) {
+    mInitialEstimate = initial; mClock = clock;
+    mSlices = new long[(int) Math.max(1, (window + SLICE - 1) / SLICE)];
+    mWindow = mSlices.length * SLICE;
+  }
+
+  /**
+   * @param bytes bytes arrived
+   */
+  public final void sample(int bytes) {
+    final long now = mClock.elapsedRealtime();
+    final long elapsed, reported, estimate;
+    synchronized (this) {
+      if (mFirst == -1) mFirst = mReported = now;
+      advance(now);
+      mSlices[(int) (mHead % mSlices.length)] += bytes;
+      mTotal += bytes; mUnreported += bytes;
+      if ((elapsed = now - mReported) < mWindow) return;
+      reported = mUnreported; estimate = estimate(now);
+      mReported = now; mUnreported = 0;
+    }
+    mDispatcher.bandwidthSample((int) Math.min(Integer.MAX_VALUE, elapsed), reported, estimate);
+  }
+
+  /** @param now current time */
+  private void advance(long now) {
+    final long head = now / SLICE;
+    if (mHead == -1) {mHead = head; return;}
+    final int length = mSlices.length;
+    for (long i = Math.max(mHead + 1, head - length + 1); i <= head; i++)
+      mSlices[(int) (i % length)] = 0;
+    if (head > mHead) mHead = head;
+  }
+
+  /**
+   * @param now current time
+   *
+   * @return bitrate over the window
+   */
+  private long estimate(long now) {
+    if (mFirst == -1) return mInitialEstimate;
+    long bytes = 0; for (final long slice : mSlices) bytes += slice;
+    final long span = Math.max(SLICE, Math.min(mWindow, now - mFirst));
+    return bytes * 8000L / span;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final long getBitrateEstimate() {
+    final long now = mClock.elapsedRealtime();
+    synchronized (this) {
+      if (mHead != -1) advance(now);
+      return estimate(now);
+    }
+  }
+
+  /** @return total bytes sampled */
+  public final synchronized long getTotalBytes() {return mTotal;}
+
+  /** {@inheritDoc} */
+  @Nullable @Override
+  public final TransferListener getTransferListener() {return this;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void addEventListener(@NonNull Handler handler, @NonNull EventListener listener)
+  {mDispatcher.addListener(handler, listener);}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void removeEventListener(@NonNull EventListener listener)
+  {mDispatcher.removeListener(listener);}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onTransferInitializing(@NonNull DataSource source,
+                                           @NonNull DataSpec spec, boolean network) {}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onTransferStart(@NonNull DataSource source,
+                                    @NonNull DataSpec spec, boolean network) {}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onBytesTransferred(@NonNull DataSource source,
+                                       @NonNull DataSpec spec, boolean network, int bytes) {
+    if (!network || source instanceof BinarySocketDataSource &&
+      ((BinarySocketDataSource) source).samples(this)) return;
+    sample(bytes);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onTransferEnd(@NonNull DataSource source,
+                                  @NonNull DataSpec spec, boolean network) {}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "bandwidth: " + getBitrateEstimate() + "bit/s, total=" + getTotalBytes() + "B";
+  }
+}
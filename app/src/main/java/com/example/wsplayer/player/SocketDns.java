@@ -0,0 +1,189 @@
+/*
+ * SocketDns.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.example.wsplayer.utils.schedulers.Schedulers;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Dns;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+
+/**
+ * Caching resolver of the edge hosts.
+ *
+ * Entries live for the {@link #TTL}, and are refreshed on the io-threads
+ * once they are 3/4 that old, so lookups of a hot host never wait for
+ * the system resolver. If a refresh fails, the stale addresses are served.
+ *
+ * When a host has both IPv6 and IPv4 addresses, the families are
+ * interleaved, IPv6 first (RFC 8305), so a broken family costs one
+ * fallback instead of a connect timeout per address. No connects are
+ * made here: the resolver only orders the addresses the caller tries.
+ *
+ * @author Gleb Nikitenko
+ * @since 15.02.20
+ **/
+public final class SocketDns implements Dns {
+
+  /** Lifetime of resolved addresses (mills). */
+  public static final long TTL = 60_000L;
+
+  /** System resolver. */
+  private final Dns mSystem;
+
+  /** Lifetime of resolved addresses (nanos). */
+  private final long mTtl;
+
+  /** Cached entries by host. */
+  private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+  /** Counters. */
+  private final AtomicLong
+    mHits = new AtomicLong(),
+    mMisses = new AtomicLong(),
+    mRefreshes = new AtomicLong(),
+    mStale = new AtomicLong();
+
+  /** Constructs a new {@link SocketDns}. */
+  public SocketDns() {this(Dns.SYSTEM, TTL);}
+
+  /**
+   * Constructs a new {@link SocketDns}.
+   *
+   * @param system system resolver
+   * @param ttl    lifetime of resolved addresses (mills)
+   */
+  public SocketDns(@NonNull Dns system, long ttl) {
+    if (ttl <= 0) throw new IllegalArgumentException("ttl = " + ttl);
+    mSystem = system; mTtl = MILLISECONDS.toNanos(ttl);
+  }
+
+  /** {@inheritDoc} */
+  @NonNull @Override
+  public final List<InetAddress> lookup(@NonNull String host) throws UnknownHostException {
+    final Entry entry = mEntries.get(host);
+    if (entry == null) {mMisses.incrementAndGet(); return resolve(host, null);}
+    final long age = System.nanoTime() - entry.resolved;
+    if (age >= mTtl) {mMisses.incrementAndGet(); return resolve(host, entry);}
+    mHits.incrementAndGet();
+    if (age >= mTtl - (mTtl >> 2) && entry.refreshing.compareAndSet(false, true))
+      Schedulers.IO_EXECUTOR.execute(() -> {
+        mRefreshes.incrementAndGet();
+        try {resolve(host, entry);}
+        catch (UnknownHostException ignored) {/* stale addresses stay */}
+        finally {entry.refreshing.set(false);}
+      });
+    return entry.addresses;
+  }
+
+  /**
+   * @param host  host name
+   * @param stale previous entry, served if the resolution fails
+   *
+   * @return ordered addresses
+   *
+   * @throws UnknownHostException resolution failed and nothing is cached
+   */
+  @NonNull private List<InetAddress> resolve(@NonNull String host, @Nullable Entry stale)
+    throws UnknownHostException {
+    final List<InetAddress> addresses;
+    try {addresses = order(mSystem.lookup(host));}
+    catch (UnknownHostException exception) {
+      if (stale == null) throw exception;
+      mStale.incrementAndGet();
+      return stale.addresses;
+    }
+    mEntries.put(host, new Entry(addresses));
+    return addresses;
+  }
+
+  /**
+   * @param addresses resolved addresses
+   *
+   * @return addresses with interleaved families, IPv6 first
+   */
+  @NonNull private static List<InetAddress> order(@NonNull List<InetAddress> addresses) {
+    final List<InetAddress> ipv6 = new ArrayList<>(), ipv4 = new ArrayList<>();
+    for (final InetAddress address : addresses)
+      (address instanceof Inet6Address ? ipv6 : ipv4).add(address);
+    if (ipv6.isEmpty() || ipv4.isEmpty()) return Collections.unmodifiableList(addresses);
+    final List<InetAddress> result = new ArrayList<>(addresses.size());
+    for (int i = 0; i < Math.max(ipv6.size(), ipv4.size()); i++) {
+      if (i < ipv6.size()) result.add(ipv6.get(i));
+      if (i < ipv4.size()) result.add(ipv4.get(i));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /** Forgets the cached hosts, e.g. on network change. */
+  public final void clear() {mEntries.clear();}
+
+  /** @return count of lookups served from the cache */
+  public final long hits() {return mHits.get();}
+
+  /** @return count of lookups that waited for the resolver */
+  public final long misses() {return mMisses.get();}
+
+  /** @return count of background refreshes */
+  public final long refreshes() {return mRefreshes.get();}
+
+  /** @return count of stale addresses served after a failure */
+  public final long stale() {return mStale.get();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "dns: " + mEntries.size() + " hosts, hits=" + hits() + ", misses=" + misses() +
+      ", refreshes=" + refreshes() + ", stale=" + stale();
+  }
+
+  /** Cached addresses of a host. */
+  private static final class Entry {
+
+    /** Ordered addresses. */
+    final List<InetAddress> addresses;
+
+    /** Resolution time (nanos). */
+    final long resolved = System.nanoTime();
+
+    /** Background refresh is running. */
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * Constructs a new {@link Entry}.
+     *
+     * @param addresses ordered addresses
+     */
+    Entry(@NonNull List<InetAddress> addresses) {this.addresses = addresses;}
+  }
+}
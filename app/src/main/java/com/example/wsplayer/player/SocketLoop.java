@@ -0,0 +1,950 @@
+/*
+ * SocketLoop.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.example.wsplayer.utils.Trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Dns;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.internal.Util;
+import okhttp3.internal.ws.PerMessageDeflate;
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
+import okhttp3.internal.ws.WSUtilsInternal.Binary;
+import okhttp3.logging.HttpLoggingInterceptor;
+import okio.ByteString;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static okhttp3.internal.ws.WebSocketProtocol.acceptHeader;
+
+
+/**
+ * Event-loop transport: many sockets serviced by one or two selector threads.
+ *
+ * Connect, TLS and the upgrade run non-blocking on the loop, and payloads of
+ * binary messages are copied straight into a per-socket {@link ByteRing}, so
+ * an open socket costs no thread of its own. When a ring is full the loop
+ * stops reading that socket (TCP backpressure) until the consumer drained it
+ * to the low watermark. Keep-alive pings are sent by the loop as well.
+ *
+ * "permessage-deflate" is not offered on these sockets. Hosts are resolved,
+ * and TLS sessions resumed, through the {@link ConnectionSetup} if given.
+ * Text messages longer than {@link #MAX_TEXT} are dropped whole.
+ *
+ * @author Gleb Nikitenko
+ * @since 13.02.20
+ **/
+public final class SocketLoop implements Closeable {
+
+  /** Default per-socket ring capacity. */
+  public static final int RING_CAPACITY = 256 * 1024;
+
+  /** Connect, TLS and upgrade timeout (mills). */
+  public static final long CONNECT_TIMEOUT = 10_000L;
+
+  /** Timers resolution (mills). */
+  private static final long TICK = 250L;
+
+  /** Plain-text input buffer, at least. */
+  private static final int BUFFER = 32 * 1024;
+
+  /** Chunk of frame-mode reads. */
+  private static final int CHUNK = 16 * 1024;
+
+  /** Reads per readiness, so one busy socket does not starve the others. */
+  private static final int READS = 4;
+
+  /** Longest delivered text message. */
+  public static final int MAX_TEXT = 64 * 1024;
+
+  /** Opcodes. */
+  private static final int
+    OPCODE_CONTINUATION = 0x0, OPCODE_TEXT = 0x1, OPCODE_BINARY = 0x2,
+    OPCODE_CLOSE = 0x8, OPCODE_PING = 0x9, OPCODE_PONG = 0xa;
+
+  /** Connection states. */
+  private static final int CONNECTING = 0, HANDSHAKING = 1, UPGRADING = 2, OPEN = 3, CLOSED = 4;
+
+  /** Trace events. */
+  private static final int
+    TRACE_CONNECT = Trace.event("loop.connect"),
+    TRACE_STALL = Trace.event("loop.stall");
+
+  /** Empty buffer of handshake wraps. */
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /** Selector threads. */
+  private final Loop[] mLoops;
+
+  /** TLS context. */
+  private final SSLContext mContext;
+
+  /** Hosts resolver. */
+  private final Dns mDns;
+
+  /** Per-socket ring capacity. */
+  private final int mCapacity;
+
+  /** Next loop. */
+  private final AtomicInteger mNext = new AtomicInteger();
+
+  /** Transport was closed. */
+  private volatile boolean mClosed = false;
+
+  /** Counters. */
+  private final AtomicLong
+    mConnected = new AtomicLong(),
+    mBytes = new AtomicLong(),
+    mMessages = new AtomicLong(),
+    mStalls = new AtomicLong(),
+    mSelects = new AtomicLong(),
+    mTextDrops = new AtomicLong();
+
+  /**
+   * Constructs a new {@link SocketLoop}.
+   *
+   * @param threads count of selector threads
+   *
+   * @throws IOException selector or TLS setup failed
+   */
+  public SocketLoop(int threads) throws IOException {this(threads, RING_CAPACITY, null);}
+
+  /**
+   * Constructs a new {@link SocketLoop}.
+   *
+   * @param threads  count of selector threads
+   * @param capacity per-socket ring capacity
+   * @param setup    shared resolver and TLS context, null for the system ones
+   *
+   * @throws IOException selector or TLS setup failed
+   */
+  public SocketLoop(int threads, int capacity, @Nullable ConnectionSetup setup) throws IOException {
+    if (threads <= 0) throw new IllegalArgumentException("threads = " + threads);
+    if (setup != null) {mContext = setup.context(); mDns = setup.dns();}
+    else {
+      try {mContext = SSLContext.getDefault();}
+      catch (NoSuchAlgorithmException exception) {throw new IOException(exception);}
+      mDns = Dns.SYSTEM;
+    }
+    mCapacity = capacity; mLoops = new Loop[threads];
+    for (int i = 0; i < threads; i++) (mLoops[i] = new Loop(i)).start();
+  }
+
+  /**
+   * Blocks until the socket is connected and upgraded.
+   *
+   * @param url       socket url
+   * @param allocator frame-mode reads allocator
+   * @param ping      keep-alive ping interval (mills), zero to disable
+   * @param logger    http logger, or null
+   *
+   * @return connected socket
+   *
+   * @throws IOException connection failure
+   */
+  @NonNull final BinaryWebSocket connect(@NonNull String url, @NonNull Allocator allocator,
+                                         long ping, @Nullable HttpLoggingInterceptor.Logger logger)
+    throws IOException {
+    if (mClosed) throw new IOException("Loop closed");
+    final HttpUrl http;
+    if (url.regionMatches(true, 0, "ws:", 0, 3)) http = HttpUrl.get("http:" + url.substring(3));
+    else if (url.regionMatches(true, 0, "wss:", 0, 4)) http = HttpUrl.get("https:" + url.substring(4));
+    else http = HttpUrl.get(url);
+    final List<InetAddress> addresses = mDns.lookup(http.host());
+    if (addresses.isEmpty()) throw new UnknownHostException(http.host());
+    final InetSocketAddress address = new InetSocketAddress(addresses.get(0), http.port());
+    final Loop loop = mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+    final Connection result = new Connection(loop, http, address, allocator, ping, logger);
+    loop.execute(result::start);
+    result.await();
+    mConnected.incrementAndGet();
+    return result;
+  }
+
+  /** @return count of selector threads */
+  public final int threads() {return mLoops.length;}
+
+  /** @return count of open sockets */
+  public final int sockets() {
+    int result = 0;
+    for (final Loop loop : mLoops) result += loop.size;
+    return result;
+  }
+
+  /** @return count of connected sockets */
+  public final long connected() {return mConnected.get();}
+
+  /** @return total bytes read off the sockets */
+  public final long bytes() {return mBytes.get();}
+
+  /** @return count of binary messages received */
+  public final long messages() {return mMessages.get();}
+
+  /** @return count of full rings that paused reading a socket */
+  public final long stalls() {return mStalls.get();}
+
+  /** @return count of selector wake-ups */
+  public final long selects() {return mSelects.get();}
+
+  /** @return count of text messages dropped for exceeding {@link #MAX_TEXT} */
+  public final long textDrops() {return mTextDrops.get();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    mClosed = true;
+    for (final Loop loop : mLoops) loop.selector.wakeup();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "loop: threads=" + threads() + ", sockets=" + sockets() + ", bytes=" + bytes() +
+      ", messages=" + messages() + ", stalls=" + stalls() + ", selects=" + selects() + ", text drops=" + textDrops();
+  }
+
+  /** Selector thread. */
+  private final class Loop extends Thread {
+
+    /** Selector. */
+    final Selector selector;
+
+    /** Pending tasks. */
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    /** Registered connections, loop thread only. */
+    private final List<Connection> mConnections = new ArrayList<>();
+
+    /** Count of registered connections. */
+    volatile int size = 0;
+
+    /**
+     * Constructs a new {@link Loop}.
+     *
+     * @param index loop index
+     *
+     * @throws IOException selector failure
+     */
+    Loop(int index) throws IOException
+    {super("socket-loop-" + index); setDaemon(true); selector = Selector.open();}
+
+    /** @param task loop task */
+    final void execute(@NonNull Runnable task) {mTasks.add(task); selector.wakeup();}
+
+    /** @param connection registered connection */
+    final void add(@NonNull Connection connection)
+    {mConnections.add(connection); size = mConnections.size();}
+
+    /** @param connection closed connection */
+    final void remove(@NonNull Connection connection)
+    {mConnections.remove(connection); size = mConnections.size();}
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      long tick = System.nanoTime();
+      while (!mClosed) {
+        try {selector.select(TICK);}
+        catch (IOException exception) {break;}
+        mSelects.incrementAndGet();
+        Runnable task; while ((task = mTasks.poll()) != null) task.run();
+        for (final SelectionKey key : selector.selectedKeys())
+          ((Connection) key.attachment()).ready(key);
+        selector.selectedKeys().clear();
+        final long now = System.nanoTime();
+        if (now - tick < MILLISECONDS.toNanos(TICK)) continue;
+        tick = now;
+        for (int i = mConnections.size() - 1; i >= 0; i--) mConnections.get(i).tick(now);
+      }
+      for (int i = mConnections.size() - 1; i >= 0; i--)
+        mConnections.get(i).fail(new IOException("Loop closed"));
+      try {selector.close();} catch (IOException ignored) {}
+    }
+  }
+
+  /** Socket serviced by a loop. */
+  private final class Connection implements BinaryWebSocket {
+
+    /** Owner loop. */
+    private final Loop mLoop;
+
+    /** Socket url. */
+    private final HttpUrl mUrl;
+
+    /** Resolved address. */
+    private final InetSocketAddress mAddress;
+
+    /** Frame-mode reads allocator. */
+    private final Allocator mAllocator;
+
+    /** Keep-alive ping interval (nanos), zero if disabled. */
+    private final long mPing;
+
+    /** Http logger, or null. */
+    private final HttpLoggingInterceptor.Logger mLogger;
+
+    /** Payloads ring. */
+    private final ByteRing mRing = ByteRing.create(mCapacity);
+
+    /** Round-trip time. */
+    private final RttMeter mRtt = new RttMeter();
+
+    /** Expected "Sec-WebSocket-Accept". */
+    private String mAccept = null;
+
+    /** Outgoing frames. */
+    private final Queue<ByteBuffer> mOutbound = new ConcurrentLinkedQueue<>();
+
+    /** Opened or failed. */
+    private final CountDownLatch mReady = new CountDownLatch(1);
+
+    /** Failure, null if none. */
+    private volatile IOException mFailure = null;
+
+    /** Reading paused by a full ring. */
+    private volatile boolean mStalled = false;
+
+    /** Messages listener. */
+    private volatile LongConsumer mListener = null;
+
+    /** Text messages listener. */
+    private volatile Consumer<String> mTexts = null;
+
+    /** Text message being received, loop thread only. */
+    private final ByteArrayOutputStream mText = new ByteArrayOutputStream();
+
+    /** Text message being received is too long, loop thread only. */
+    private boolean mTextDropped = false;
+
+    /** Opening was logged. */
+    private boolean mLogged = false;
+
+    /** Loop thread state. */
+    private SocketChannel mChannel = null;
+    private SelectionKey mKey = null;
+    private SSLEngine mEngine = null;
+    private ByteBuffer mNetIn = null, mNetOut = null, mAppIn = null;
+    private int mState = CONNECTING;
+    private long mDeadline = 0, mNextPing = 0;
+
+    /** Frame parser state. */
+    private int mOpcode = -1, mMessageOp = -1;
+    private boolean mFin = false;
+    private long mRemaining = -1, mMessage = 0;
+    private final byte[] mControl = new byte[125];
+
+    /**
+     * Constructs a new {@link Connection}.
+     *
+     * @param loop      owner loop
+     * @param url       socket url
+     * @param address   resolved address
+     * @param allocator frame-mode reads allocator
+     * @param ping      keep-alive ping interval (mills), zero to disable
+     * @param logger    http logger, or null
+     */
+    Connection(@NonNull Loop loop, @NonNull HttpUrl url, @NonNull InetSocketAddress address,
+               @NonNull Allocator allocator, long ping,
+               @Nullable HttpLoggingInterceptor.Logger logger) {
+      mLoop = loop; mUrl = url; mAddress = address; mAllocator = allocator;
+      mPing = MILLISECONDS.toNanos(Math.max(ping, 0)); mLogger = logger;
+    }
+
+    /**
+     * Blocks until the socket is open.
+     *
+     * @throws IOException connection failure
+     */
+    final void await() throws IOException {
+      try {
+        if (!mReady.await(CONNECT_TIMEOUT + TICK, MILLISECONDS))
+          mFailure = new SocketTimeoutException("Connect timed out");
+      } catch (InterruptedException exception) {mFailure = new InterruptedIOException();}
+      final IOException failure = mFailure;
+      if (failure == null) return;
+      close(); throw failure;
+    }
+
+    /** Starts connecting, on the loop. */
+    final void start() {
+      try {
+        mDeadline = System.nanoTime() + MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.socket().setTcpNoDelay(true);
+        mKey = mChannel.register(mLoop.selector, 0, this);
+        mLoop.add(this);
+        Trace.debug(TRACE_CONNECT, mLoop.size, 0);
+        if (mChannel.connect(mAddress)) connected(); else interest();
+      } catch (IOException | RuntimeException exception) {fail(exception);}
+    }
+
+    /** @param key ready selection key */
+    final void ready(@NonNull SelectionKey key) {
+      try {
+        if (key.isConnectable() && mChannel.finishConnect()) connected();
+        if (key.isValid() && key.isWritable()) {
+          if (mState == HANDSHAKING) {if (flushNet() && handshake()) upgrade();}
+          else flush();
+        }
+        if (key.isValid() && key.isReadable()) input();
+        if (key.isValid()) interest();
+      } catch (CancelledKeyException ignored) {/* closed meanwhile */}
+      catch (IOException | RuntimeException exception) {fail(exception);}
+    }
+
+    /** @param now current time (nanos) */
+    final void tick(long now) {
+      if (mState < OPEN && now - mDeadline > 0)
+        fail(new SocketTimeoutException("Connect timed out"));
+      else if (mState == CLOSED && now - mDeadline > 0) shutdown();
+      else if (mState == OPEN && mPing > 0 && now - mNextPing >= 0) {
+        mNextPing = now + mPing;
+        final ByteString payload = mRtt.ping();
+        send(OPCODE_PING, payload.toByteArray());
+      }
+    }
+
+    /**
+     * TCP is connected.
+     *
+     * @throws IOException TLS failure
+     */
+    private void connected() throws IOException {
+      if (!mUrl.isHttps()) {
+        mAppIn = ByteBuffer.allocate(BUFFER);
+        upgrade(); return;
+      }
+      final SSLEngine engine = mEngine = mContext.createSSLEngine(mUrl.host(), mUrl.port());
+      engine.setUseClientMode(true);
+      final SSLParameters parameters = engine.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      engine.setSSLParameters(parameters);
+      final SSLSession session = engine.getSession();
+      mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+      mNetOut = ByteBuffer.allocate(session.getPacketBufferSize()); mNetOut.flip();
+      mAppIn = ByteBuffer.allocate(Math.max(BUFFER, session.getApplicationBufferSize() * 2));
+      mState = HANDSHAKING; engine.beginHandshake();
+      if (handshake()) upgrade();
+    }
+
+    /**
+     * Drives the TLS handshake as far as the socket allows.
+     *
+     * @return true if finished
+     *
+     * @throws IOException TLS failure
+     */
+    private boolean handshake() throws IOException {
+      while (true) {
+        switch (mEngine.getHandshakeStatus()) {
+          case NEED_TASK:
+            Runnable task; while ((task = mEngine.getDelegatedTask()) != null) task.run();
+            break;
+          case NEED_WRAP:
+            mNetOut.compact();
+            final SSLEngineResult result;
+            try {result = mEngine.wrap(EMPTY, mNetOut);} finally {mNetOut.flip();}
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+              throw new EOFException("TLS closed");
+            if (!flushNet()) return false;
+            break;
+          case NEED_UNWRAP:
+            if (!unwrap()) return false;
+            break;
+          default:
+            return true;
+        }
+      }
+    }
+
+    /**
+     * Unwraps the socket input into the plain-text buffer.
+     *
+     * @return false if nothing could be made of the input yet
+     *
+     * @throws IOException read or TLS failure
+     */
+    private boolean unwrap() throws IOException {
+      boolean result = false;
+      while (true) {
+        mNetIn.flip();
+        final SSLEngineResult unwrapped;
+        try {unwrapped = mEngine.unwrap(mNetIn, mAppIn);} finally {mNetIn.compact();}
+        if (unwrapped.bytesConsumed() > 0 || unwrapped.bytesProduced() > 0) result = true;
+        switch (unwrapped.getStatus()) {
+          case CLOSED: throw new EOFException("TLS closed");
+          case BUFFER_OVERFLOW: return result;
+          case BUFFER_UNDERFLOW:
+            final int read = mChannel.read(mNetIn);
+            if (read == -1) throw new EOFException("Socket closed");
+            if (read == 0) return result;
+            mBytes.addAndGet(read);
+            break;
+          default:
+            switch (unwrapped.getHandshakeStatus()) {
+              case NOT_HANDSHAKING: case NEED_UNWRAP: break;
+              default: return true;
+            }
+        }
+      }
+    }
+
+    /**
+     * Reads the socket into the plain-text buffer.
+     *
+     * @return false if nothing was read
+     *
+     * @throws IOException read failure
+     */
+    private boolean fill() throws IOException {
+      if (mEngine == null) {
+        final int read = mChannel.read(mAppIn);
+        if (read == -1) throw new EOFException("Socket closed");
+        mBytes.addAndGet(read); return read > 0;
+      }
+      final boolean result = unwrap();
+      final SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+      if (status == SSLEngineResult.HandshakeStatus.NEED_TASK ||
+        status == SSLEngineResult.HandshakeStatus.NEED_WRAP) handshake();
+      return result;
+    }
+
+    /** Sends the upgrade request. */
+    private void upgrade() {
+      mState = UPGRADING;
+      final String key = BinaryWebSocket.key(ThreadLocalRandom.current());
+      mAccept = acceptHeader(key);
+      final String query = mUrl.encodedQuery();
+      final String request = "GET " + mUrl.encodedPath() + (query != null ? "?" + query : "") +
+        " HTTP/1.1\r\n" +
+        "Host: " + Util.hostHeader(mUrl, false) + "\r\n" +
+        "Upgrade: websocket\r\n" +
+        "Connection: Upgrade\r\n" +
+        "Sec-WebSocket-Key: " + key + "\r\n" +
+        "Sec-WebSocket-Version: 13\r\n\r\n";
+      mOutbound.add(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+      mLoop.execute(this::write);
+    }
+
+    /**
+     * Parses the upgrade response.
+     *
+     * @return false if incomplete
+     *
+     * @throws IOException unexpected response
+     */
+    private boolean response() throws IOException {
+      final ByteBuffer input = mAppIn;
+      final byte[] array = input.array(); final int start = input.arrayOffset() + input.position();
+      int end = -1;
+      for (int i = start, limit = input.arrayOffset() + input.limit() - 3; i < limit; i++)
+        if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n')
+        {end = i; break;}
+      if (end == -1) {
+        if (input.limit() == input.capacity()) throw new ProtocolException("Response too large");
+        return false;
+      }
+      final String[] lines = new String(array, start, end - start, StandardCharsets.ISO_8859_1)
+        .split("\r\n");
+      if (!lines[0].startsWith("HTTP/1.1 101"))
+        throw new ProtocolException("Expected HTTP 101 response but was '" + lines[0] + "'");
+      final Headers.Builder builder = new Headers.Builder();
+      for (int i = 1; i < lines.length; i++) builder.add(lines[i]);
+      final Headers headers = builder.build();
+      BinaryWebSocket.checkUpgrade(headers, mAccept);
+      if (PerMessageDeflate.negotiate(headers) != null)
+        throw new ProtocolException("Unexpected extension");
+      input.position(end + 4 - input.arrayOffset());
+      mState = OPEN; mNextPing = System.nanoTime() + mPing;
+      if (mLogger != null) {BinaryWebSocket.log(mLogger, true); mLogged = true;}
+      mReady.countDown();
+      return true;
+    }
+
+    /**
+     * Reads and parses the socket input. Once the budget is spent, ciphertext
+     * already taken off the channel would get no readiness, so the rest is
+     * read by a task of its own.
+     *
+     * @throws IOException read or protocol failure
+     */
+    private void input() throws IOException {
+      if (mState == HANDSHAKING) {if (handshake()) upgrade(); return;}
+      int reads = 0;
+      while (reads < READS && !mStalled && mState != CLOSED) {
+        reads++;
+        final boolean read = fill();
+        process();
+        if (!read) return;
+      }
+      if (reads == READS && !mStalled && mState != CLOSED && mEngine != null && mNetIn.position() > 0)
+        mLoop.execute(this::pending);
+    }
+
+    /** Reads the input buffered by a spent budget, on the loop. */
+    private void pending() {
+      if (mStalled || mState == CLOSED || mKey == null || !mKey.isValid()) return;
+      try {input(); interest();}
+      catch (IOException | RuntimeException exception) {fail(exception);}
+    }
+
+    /**
+     * Parses the buffered plain-text input.
+     *
+     * @throws IOException protocol failure
+     */
+    private void process() throws IOException {
+      mAppIn.flip();
+      try {
+        if (mState == UPGRADING && !response()) return;
+        if (mState == OPEN) frames();
+      } finally {mAppIn.compact();}
+    }
+
+    /**
+     * Parses frames, copying binary payloads into the ring.
+     *
+     * @throws IOException protocol failure
+     */
+    private void frames() throws IOException {
+      final ByteBuffer input = mAppIn;
+      while (mState == OPEN) {
+        if (mRemaining == -1 && !header()) return;
+        if (mOpcode >= OPCODE_CLOSE) {
+          final int length = (int) mRemaining;
+          if (input.remaining() < length) return;
+          input.get(mControl, 0, length);
+          mRemaining = -1; control(mOpcode, length);
+          continue;
+        }
+        final int count = (int) Math.min(mRemaining, input.remaining());
+        if (count > 0) {
+          final int consumed;
+          final int offset = input.arrayOffset() + input.position();
+          if (mMessageOp == OPCODE_BINARY) {
+            consumed = mRing.offer(input.array(), offset, count);
+            mMessage += consumed;
+          } else {
+            consumed = count;
+            if (mMessageOp == OPCODE_TEXT && mTexts != null && !mTextDropped) {
+              if (mText.size() + count <= MAX_TEXT) mText.write(input.array(), offset, count);
+              else {mTextDropped = true; mText.reset(); mTextDrops.incrementAndGet();}
+            }
+          }
+          input.position(input.position() + consumed);
+          mRemaining -= consumed;
+          if (consumed < count) {stall(); return;}
+        }
+        if (mRemaining > 0) return;
+        mRemaining = -1;
+        if (!mFin) continue;
+        if (mMessageOp == OPCODE_BINARY) {
+          mMessages.incrementAndGet();
+          final LongConsumer listener = mListener;
+          if (listener != null) listener.accept(mMessage);
+        } else if (mMessageOp == OPCODE_TEXT) {
+          final Consumer<String> listener = mTexts;
+          if (listener != null && !mTextDropped)
+            listener.accept(new String(mText.toByteArray(), StandardCharsets.UTF_8));
+          mText.reset(); mTextDropped = false;
+        }
+        mMessageOp = -1; mMessage = 0;
+      }
+    }
+
+    /**
+     * Parses the frame header.
+     *
+     * @return false if incomplete
+     *
+     * @throws ProtocolException malformed frame
+     */
+    private boolean header() throws ProtocolException {
+      final ByteBuffer input = mAppIn;
+      if (input.remaining() < 2) return false;
+      final int position = input.position();
+      final int b0 = input.get(position) & 0xff, b1 = input.get(position + 1) & 0xff;
+      final int length = b1 & 0x7f;
+      final int extra = length == 126 ? 2 : length == 127 ? 8 : 0;
+      if (input.remaining() < 2 + extra) return false;
+      if ((b0 & 0x70) != 0) throw new ProtocolException("Unexpected rsv bits");
+      if ((b1 & 0x80) != 0) throw new ProtocolException("Server-sent frames must not be masked");
+      input.position(position + 2);
+      final long size = length == 126 ? input.getShort() & 0xffff :
+        length == 127 ? input.getLong() : length;
+      if (size < 0) throw new ProtocolException("Frame length overflow");
+      final int opcode = b0 & 0x0f; final boolean fin = (b0 & 0x80) != 0;
+      if (opcode >= OPCODE_CLOSE) {
+        if (!fin || size > mControl.length) throw new ProtocolException("Malformed control frame");
+      } else if (opcode == OPCODE_CONTINUATION) {
+        if (mMessageOp == -1) throw new ProtocolException("Unexpected continuation");
+      } else if (mMessageOp != -1) throw new ProtocolException("Expected continuation");
+      else mMessageOp = opcode;
+      mOpcode = opcode; mFin = fin; mRemaining = size;
+      return true;
+    }
+
+    /**
+     * @param opcode control opcode
+     * @param length payload length
+     */
+    private void control(int opcode, int length) {
+      switch (opcode) {
+        case OPCODE_PING: send(OPCODE_PONG, ByteString.of(mControl, 0, length).toByteArray()); break;
+        case OPCODE_PONG: mRtt.pong(ByteString.of(mControl, 0, length)); break;
+        case OPCODE_CLOSE: mRing.finish(); closing(); break;
+        default: break;
+      }
+    }
+
+    /** Pauses reading until the ring is drained. */
+    private void stall() {
+      mStalled = true; mStalls.incrementAndGet();
+      Trace.verbose(TRACE_STALL, mRing.level(), 0);
+      if (mRing.level() <= mRing.low()) mLoop.execute(this::resume);
+    }
+
+    /** Resumes reading of the drained ring, on the loop. */
+    private void resume() {
+      if (!mStalled || mKey == null || !mKey.isValid()) return;
+      mStalled = false;
+      try {process(); if (!mStalled) input(); interest();}
+      catch (IOException | RuntimeException exception) {fail(exception);}
+    }
+
+    /** Writes pending frames, on the loop. */
+    private void write() {
+      if (mKey == null || !mKey.isValid()) return;
+      try {flush(); interest();}
+      catch (IOException | RuntimeException exception) {fail(exception);}
+    }
+
+    /**
+     * @return true if pending TLS output was written out
+     *
+     * @throws IOException write failure
+     */
+    private boolean flushNet() throws IOException {
+      final ByteBuffer output = mNetOut;
+      while (output != null && output.hasRemaining())
+        if (mChannel.write(output) == 0) return false;
+      return true;
+    }
+
+    /**
+     * Writes outgoing frames as far as the socket allows.
+     *
+     * @throws IOException write failure
+     */
+    private void flush() throws IOException {
+      if (mState < UPGRADING) return;
+      while (flushNet()) {
+        final ByteBuffer frame = mOutbound.peek();
+        if (frame == null) break;
+        if (mEngine == null) {
+          mChannel.write(frame);
+          if (frame.hasRemaining()) break;
+        } else {
+          mNetOut.compact();
+          final SSLEngineResult result;
+          try {result = mEngine.wrap(frame, mNetOut);} finally {mNetOut.flip();}
+          if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+            throw new EOFException("TLS closed");
+          if (frame.hasRemaining()) continue;
+        }
+        mOutbound.poll();
+      }
+      if (mState == CLOSED && mOutbound.isEmpty() && flushNet()) shutdown();
+    }
+
+    /** Updates the interest set. */
+    private void interest() {
+      final SelectionKey key = mKey;
+      if (key == null || !key.isValid()) return;
+      int ops = 0;
+      if (mState == CONNECTING) ops = SelectionKey.OP_CONNECT;
+      else {
+        if (!mStalled) ops |= SelectionKey.OP_READ;
+        if ((mNetOut != null && mNetOut.hasRemaining()) || !mOutbound.isEmpty())
+          ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+    }
+
+    /**
+     * Queues a masked frame, from any thread.
+     *
+     * @param opcode  frame opcode
+     * @param payload frame payload
+     */
+    private void send(int opcode, @NonNull byte[] payload)
+    {send(opcode, payload, 0, payload.length);}
+
+    /**
+     * Queues a masked frame, from any thread.
+     *
+     * @param opcode  frame opcode
+     * @param payload frame payload
+     * @param offset  payload offset
+     * @param length  payload length
+     */
+    private void send(int opcode, @NonNull byte[] payload, int offset, int length) {
+      final int extra = length <= 125 ? 0 : length <= 0xffff ? 2 : 8;
+      final ByteBuffer frame = ByteBuffer.allocate(2 + extra + 4 + length);
+      frame.put((byte) (0x80 | opcode));
+      if (extra == 0) frame.put((byte) (0x80 | length));
+      else if (extra == 2) frame.put((byte) (0x80 | 126)).putShort((short) length);
+      else frame.put((byte) (0x80 | 127)).putLong(length);
+      final int mask = ThreadLocalRandom.current().nextInt(); frame.putInt(mask);
+      for (int i = 0; i < length; i++)
+        frame.put((byte) (payload[offset + i] ^ mask >> (24 - ((i & 3) << 3))));
+      frame.flip();
+      mOutbound.add(frame);
+      mLoop.execute(this::write);
+    }
+
+    /** @param failure connection failure, on the loop */
+    final void fail(@NonNull Exception failure) {
+      final IOException exception = failure instanceof IOException ?
+        (IOException) failure : new IOException(failure);
+      if (mFailure == null) mFailure = exception;
+      mRing.fail(exception);
+      shutdown();
+    }
+
+    /** Releases the socket, on the loop. */
+    private void shutdown() {
+      mState = CLOSED; mReady.countDown();
+      if (mKey != null) mKey.cancel();
+      if (mChannel == null) return;
+      try {mChannel.close();} catch (IOException ignored) {}
+      mChannel = null; mLoop.remove(this);
+      if (mLogged) {mLogged = false; BinaryWebSocket.log(mLogger, false);}
+    }
+
+    /** Stops reading and gives the close handshake a moment, on the loop. */
+    private void closing() {
+      mState = CLOSED;
+      mDeadline = System.nanoTime() + MILLISECONDS.toNanos(TICK * 4);
+      send(OPCODE_CLOSE, new byte[] {0x03, (byte) 0xe8});
+    }
+
+    @NonNull
+    @Override
+    public final Binary read() throws IOException {
+      final byte[] content = mAllocator.lease(CHUNK);
+      final int result;
+      try {result = read(content, 0, content.length);}
+      catch (IOException | RuntimeException exception)
+      {mAllocator.release(content); throw exception;}
+      if (result != -1) return new Binary(content, result);
+      mAllocator.release(content); return END_OF_STREAM;
+    }
+
+    @Override
+    public final int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      final int result = mRing.read(buffer, offset, length);
+      if (mStalled && mRing.level() <= mRing.low()) mLoop.execute(this::resume);
+      return result;
+    }
+
+    @Override
+    public final void write(@NonNull String value) throws IOException {
+      final IOException failure = mFailure;
+      if (failure != null) throw failure;
+      Trace.debug(TRACE_WRITE, value.length(), 0);
+      send(OPCODE_TEXT, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public final void write(@NonNull byte[] utf8, int offset, int length) throws IOException {
+      final IOException failure = mFailure;
+      if (failure != null) throw failure;
+      Trace.debug(TRACE_WRITE, length, 0);
+      send(OPCODE_TEXT, utf8, offset, length);
+    }
+
+    @NonNull
+    @Override
+    public final RttMeter rtt() {return mRtt;}
+
+    @Nullable
+    @Override
+    public final PerMessageDeflate deflate() {return null;}
+
+    @Override
+    public final void listen(@Nullable LongConsumer listener) {mListener = listener;}
+
+    @Override
+    public final void receive(@Nullable Consumer<String> listener) {mTexts = listener;}
+
+    @Override
+    public final void close() {
+      Trace.debug(TRACE_CLOSE, 0, 0);
+      mRing.close();
+      mLoop.execute(() -> {if (mState == OPEN) closing(); else shutdown();});
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final String toString() {
+      return "socket: " + mUrl.host() + ", " + mRing + ", rtt=" +
+        mRtt.smoothed(TimeUnit.MILLISECONDS) + "ms";
+    }
+  }
+}
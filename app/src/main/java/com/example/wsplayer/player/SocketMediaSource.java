@@ -0,0 +1,108 @@
+/*
+ * SocketMediaSource.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.mp4.FragmentedMp4Extractor;
+import com.google.android.exoplayer2.extractor.mp4.Mp4Extractor;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+
+/**
+ * Media sources over binary sockets.
+ *
+ * The container is declared up front, so the player does not sniff
+ * the live socket with every default extractor before settling.
+ *
+ * @author Gleb Nikitenko
+ * @since 11.02.20
+ **/
+@SuppressWarnings("WeakerAccess")
+public final class SocketMediaSource {
+
+  /** Load control preset, buffer durations (mills). */
+  public static final int
+    MIN_BUFFER = 1_000,
+    MAX_BUFFER = 5_000,
+    BUFFER_FOR_PLAYBACK = 250,
+    BUFFER_FOR_PLAYBACK_AFTER_REBUFFER = 1_000;
+
+  /** Bytes loaded between checks of whether to keep loading. */
+  public static final int CONTINUE_LOADING_CHECK_INTERVAL = 64 * 1024;
+
+  /**
+   * The caller should be prevented from constructing objects of this class.
+   * Also, this prevents even the native class from calling this constructor.
+   **/
+  private SocketMediaSource() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param sources   data sources factory
+   * @param container declared container
+   * @param meter     time to first frame meter, or null
+   *
+   * @return progressive media sources factory
+   */
+  @NonNull public static ProgressiveMediaSource.Factory factory
+  (@NonNull DataSource.Factory sources, @NonNull Container container, @Nullable FirstFrameMeter meter) {
+    final DataSource.Factory factory = meter == null ? sources : () -> {
+      final DataSource result = sources.createDataSource();
+      result.addTransferListener(meter); return result;
+    };
+    return new ProgressiveMediaSource.Factory(factory, container)
+      .setContinueLoadingCheckIntervalBytes(CONTINUE_LOADING_CHECK_INTERVAL);
+  }
+
+  /** @return load control tuned for live sockets: small buffers, fast start */
+  @NonNull public static LoadControl loadControl() {
+    return new DefaultLoadControl.Builder()
+      .setBufferDurationsMs(MIN_BUFFER, MAX_BUFFER,
+        BUFFER_FOR_PLAYBACK, BUFFER_FOR_PLAYBACK_AFTER_REBUFFER)
+      .setPrioritizeTimeOverSizeThresholds(true)
+      .createDefaultLoadControl();
+  }
+
+  /** Declared containers. */
+  public enum Container implements ExtractorsFactory {
+
+    /** Fragmented MP4 (live sockets). */
+    FRAGMENTED_MP4 {
+      @NonNull @Override
+      public final Extractor[] createExtractors()
+      {return new Extractor[] {new FragmentedMp4Extractor()};}
+    },
+
+    /** Plain MP4. */
+    MP4 {
+      @NonNull @Override
+      public final Extractor[] createExtractors()
+      {return new Extractor[] {new Mp4Extractor()};}
+    }
+  }
+}
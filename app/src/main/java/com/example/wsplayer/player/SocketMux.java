@@ -0,0 +1,470 @@
+/*
+ * SocketMux.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import com.example.wsplayer.utils.Json;
+import com.example.wsplayer.utils.schedulers.Schedulers;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.internal.ws.PerMessageDeflate;
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
+import okhttp3.internal.ws.WSUtilsInternal.Binary;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+
+/**
+ * Carries several media subscriptions over one socket per edge host.
+ *
+ * Protocol: a subscription is a text message
+ * {@code {"token", "mediaId", "channel"}}, and every binary message starts
+ * with a {@link #CHANNEL_HEADER}-byte big-endian channel id. Channels are
+ * dropped by {@code {"channel", "unsubscribe": true}}. Text messages go both
+ * ways with a {@code "channel"} field: those written to a channel get its id,
+ * and those received are delivered to the channel they name.
+ *
+ * Each channel buffers into its own ring. When a ring reaches the high
+ * watermark, {@code {"channel", "pause": true}} asks the server to hold that
+ * channel, and {@code "pause": false} resumes it once the player drained
+ * the ring to the low one, so a slow tile does not stall the others.
+ * Should a ring still overflow, the reader never blocks on it: the channel
+ * fails after its buffered bytes and drops the rest, so that the data
+ * source resubscribes and resynchronizes at the next fragment.
+ *
+ * The shared socket takes the frames pool, ping interval and compression of
+ * its first subscriber. A subscriber with other settings is refused, as
+ * {@link SocketPool} does, and opens a socket of its own.
+ *
+ * @author Gleb Nikitenko
+ * @since 12.02.20
+ **/
+public final class SocketMux implements Closeable {
+
+  /** Channel id size. */
+  public static final int CHANNEL_HEADER = 2;
+
+  /** Default channel ring capacity. */
+  public static final int CHANNEL_CAPACITY = 1 << 20;
+
+  /** Chunk of frame-mode reads. */
+  private static final int CHUNK = 16 * 1024;
+
+  /** OkHttp Client. */
+  private final Call.Factory mClient;
+
+  /** WS Logger. */
+  private final HttpLoggingInterceptor.Logger mLogger;
+
+  /** Channel ring capacity. */
+  private final int mCapacity;
+
+  /** Connections by url. */
+  private final Map<String, Connection> mConnections = new HashMap<>();
+
+  /** Mux was closed. */
+  private boolean mClosed = false;
+
+  /** Counters. */
+  private final AtomicLong
+    mOpened = new AtomicLong(),
+    mSubscribed = new AtomicLong(),
+    mPauses = new AtomicLong(),
+    mOverflows = new AtomicLong(),
+    mOrphans = new AtomicLong(),
+    mMismatches = new AtomicLong();
+
+  /**
+   * Constructs a new {@link SocketMux}.
+   *
+   * @param client http client
+   * @param logger http logger
+   */
+  public SocketMux(@NonNull Call.Factory client, @NonNull HttpLoggingInterceptor.Logger logger)
+  {this(client, logger, CHANNEL_CAPACITY);}
+
+  /**
+   * Constructs a new {@link SocketMux}.
+   *
+   * @param client   http client
+   * @param logger   http logger
+   * @param capacity channel ring capacity
+   */
+  public SocketMux(@NonNull Call.Factory client,
+                   @NonNull HttpLoggingInterceptor.Logger logger, int capacity)
+  {mClient = client; mLogger = logger; mCapacity = capacity;}
+
+  /**
+   * @param url     edge host socket url
+   * @param token   stream token
+   * @param mediaId stream media id
+   * @param pool    frames pool of the subscriber
+   * @param ping    keep-alive ping interval of the subscriber (mills)
+   * @param deflate the subscriber offers "permessage-deflate"
+   *
+   * @return subscribed channel, or null if the shared socket has other settings
+   *
+   * @throws IOException connection failure
+   */
+  @Nullable final BinaryWebSocket subscribe(@NonNull String url, @Nullable String token, long mediaId,
+                                            @NonNull FramePool pool, long ping, boolean deflate)
+    throws IOException {
+    while (true) {
+      Connection connection;
+      synchronized (this) {
+        if (mClosed) throw new IOException("Mux closed");
+        connection = mConnections.get(url);
+        if (connection == null)
+          mConnections.put(url, connection = new Connection(url, pool, ping, deflate));
+      }
+      if (pool != connection.pool || ping != connection.ping || deflate != connection.deflate)
+      {mMismatches.incrementAndGet(); return null;}
+      final Channel result;
+      try {
+        result = connection.subscribe(token, mediaId);
+      } catch (IOException exception) {
+        remove(connection); throw exception;
+      }
+      if (result != null) return result;
+      remove(connection); // closed by the last unsubscribe meanwhile, retry with a fresh one
+    }
+  }
+
+  /** @param connection failed or unused connection */
+  private void remove(@NonNull Connection connection) {
+    synchronized (this) {
+      if (mConnections.get(connection.url) == connection) mConnections.remove(connection.url);
+    }
+    connection.close();
+  }
+
+  /** @return count of shared sockets opened */
+  public final long opened() {return mOpened.get();}
+
+  /** @return count of subscriptions */
+  public final long subscribed() {return mSubscribed.get();}
+
+  /** @return count of pause requests */
+  public final long pauses() {return mPauses.get();}
+
+  /** @return count of channels failed by an overflow of their rings */
+  public final long overflows() {return mOverflows.get();}
+
+  /** @return count of messages for unknown channels */
+  public final long orphans() {return mOrphans.get();}
+
+  /** @return count of subscriptions refused for other socket settings */
+  public final long mismatches() {return mMismatches.get();}
+
+  /** @return count of live shared sockets */
+  public final synchronized int connections() {return mConnections.size();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    final List<Connection> connections;
+    synchronized (this) {
+      mClosed = true;
+      connections = new ArrayList<>(mConnections.values());
+      mConnections.clear();
+    }
+    for (final Connection connection : connections) connection.close();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "mux: sockets=" + connections() + ", opened=" + opened() + ", subscribed=" +
+      subscribed() + ", pauses=" + pauses() + ", overflows=" + overflows() + ", orphans=" + orphans() +
+      ", mismatches=" + mismatches();
+  }
+
+  /** Shared socket. */
+  private final class Connection {
+
+    /** Socket url. */
+    final String url;
+
+    /** Frames pool. */
+    final FramePool pool;
+
+    /** Keep-alive ping interval (mills). */
+    final long ping;
+
+    /** Offer "permessage-deflate". */
+    final boolean deflate;
+
+    /** Subscribed channels. */
+    private final Map<Integer, Channel> mChannels = new ConcurrentHashMap<>();
+
+    /** Shared socket, null until connected. */
+    private BinaryWebSocket mSocket = null;
+
+    /** Next channel id. */
+    private int mNext = 0;
+
+    /** Connection was closed. */
+    private volatile boolean mClosed = false;
+
+    /**
+     * Constructs a new {@link Connection}.
+     *
+     * @param url     socket url
+     * @param pool    frames pool
+     * @param ping    keep-alive ping interval (mills)
+     * @param deflate offer "permessage-deflate"
+     */
+    Connection(@NonNull String url, @NonNull FramePool pool, long ping, boolean deflate)
+    {this.url = url; this.pool = pool; this.ping = ping; this.deflate = deflate;}
+
+    /**
+     * @param token   stream token
+     * @param mediaId stream media id
+     *
+     * @return subscribed channel, null if the connection is closed
+     *
+     * @throws IOException connection failure
+     */
+    @Nullable final synchronized Channel subscribe(@Nullable String token, long mediaId)
+      throws IOException {
+      if (mClosed) return null;
+      if (mSocket == null) {
+        mSocket = BinaryWebSocket.create(mClient, url, mLogger, pool, ping, deflate);
+        mSocket.receive(this::text);
+        mOpened.incrementAndGet();
+        Schedulers.STREAM_EXECUTOR.execute(this::run);
+      }
+      int id = mNext; while (mChannels.containsKey(id)) id = (id + 1) & 0xffff;
+      mNext = (id + 1) & 0xffff;
+      final Channel result = new Channel(this, id, ByteRing.create(mCapacity), pool);
+      mChannels.put(id, result);
+      send(Json.newJson(body -> body
+        .put("token", token)
+        .put("mediaId", mediaId)
+        .put("channel", result.id)).toString());
+      mSubscribed.incrementAndGet();
+      return result;
+    }
+
+    /** Demultiplexes the socket until it ends or fails. */
+    private void run() {
+      final BinaryWebSocket socket; synchronized (this) {socket = mSocket;}
+      IOException failure = null;
+      try {
+        while (true) {
+          final Binary frame = socket.read();
+          if (frame == BinaryWebSocket.END_OF_STREAM) break;
+          try {dispatch(frame.content, frame.length);}
+          finally {pool.release(frame.content);}
+        }
+      } catch (IOException exception) {failure = exception;}
+      for (final Channel channel : mChannels.values())
+        if (failure != null) channel.ring.fail(failure); else channel.ring.finish();
+      remove(this);
+    }
+
+    /**
+     * @param content message content
+     * @param length  message length
+     */
+    private void dispatch(@NonNull byte[] content, int length) {
+      final Channel channel = length < CHANNEL_HEADER ? null :
+        mChannels.get((content[0] & 0xff) << 8 | content[1] & 0xff);
+      if (channel == null) {mOrphans.incrementAndGet(); return;}
+      if (channel.overflowed) return;
+      final int size = length - CHANNEL_HEADER;
+      try {
+        final ByteRing ring = channel.ring;
+        if (ring.offer(content, CHANNEL_HEADER, size) < size) {
+          channel.overflowed = true; mOverflows.incrementAndGet();
+          ring.fail(new IOException("Channel " + channel.id + " overflow"));
+          return;
+        }
+        if (!channel.paused && ring.level() >= ring.high()) {
+          channel.paused = true; mPauses.incrementAndGet();
+          control(channel, "pause", true);
+        }
+      } catch (IOException exception) {return;/* the channel was closed */}
+      final LongConsumer listener = channel.listener;
+      if (listener != null) listener.accept(size);
+    }
+
+    /** @param message text message, delivered to the channel it names */
+    private void text(@NonNull String message) {
+      final Channel channel;
+      try {channel = mChannels.get(new JSONObject(message).getInt("channel"));}
+      catch (JSONException exception) {return;/* not addressed to a channel */}
+      if (channel == null) {mOrphans.incrementAndGet(); return;}
+      final Consumer<String> listener = channel.texts;
+      if (listener != null) listener.accept(message);
+    }
+
+    /**
+     * @param channel target channel
+     * @param key     control key
+     * @param value   control value
+     */
+    final void control(@NonNull Channel channel, @NonNull String key, boolean value) {
+      try {
+        send(Json.newJson(body -> body
+          .put("channel", channel.id)
+          .put(key, value)).toString());
+      } catch (IOException ignored) {/* the reader will fail on its own */}
+    }
+
+    /**
+     * @param value text message
+     *
+     * @throws IOException write failure
+     */
+    final void send(@NonNull String value) throws IOException {
+      final BinaryWebSocket socket; synchronized (this) {socket = mSocket;}
+      if (socket == null) throw new IOException("Not connected");
+      socket.write(value);
+    }
+
+    /** @return shared socket, null if not connected */
+    @Nullable final synchronized BinaryWebSocket socket() {return mSocket;}
+
+    /** @param channel closed channel */
+    final void unsubscribe(@NonNull Channel channel) {
+      if (mChannels.remove(channel.id, channel)) control(channel, "unsubscribe", true);
+      final boolean unused;
+      synchronized (this) {if (unused = mChannels.isEmpty()) mClosed = true;}
+      if (unused) remove(this);
+    }
+
+    /** Closes the shared socket and all channels. */
+    final void close() {
+      final BinaryWebSocket socket;
+      synchronized (this) {mClosed = true; socket = mSocket; mSocket = null;}
+      for (final Channel channel : mChannels.values()) channel.ring.close();
+      mChannels.clear();
+      if (socket != null) try {socket.close();} catch (IOException ignored) {}
+    }
+  }
+
+  /** One subscription, seen by the data source as a socket of its own. */
+  private static final class Channel implements BinaryWebSocket {
+
+    /** Shared socket. */
+    private final Connection mConnection;
+
+    /** Channel id. */
+    final int id;
+
+    /** Channel ring. */
+    final ByteRing ring;
+
+    /** Frame-mode reads allocator. */
+    private final Allocator mAllocator;
+
+    /** Server was asked to hold the channel. */
+    volatile boolean paused = false;
+
+    /** Ring overflowed, the following messages are dropped (reader thread only). */
+    boolean overflowed = false;
+
+    /** Messages listener. */
+    volatile LongConsumer listener = null;
+
+    /** Text messages listener. */
+    volatile Consumer<String> texts = null;
+
+    /**
+     * Constructs a new {@link Channel}.
+     *
+     * @param connection shared socket
+     * @param id         channel id
+     * @param ring       channel ring
+     * @param allocator  frame-mode reads allocator
+     */
+    Channel(@NonNull Connection connection, int id,
+            @NonNull ByteRing ring, @NonNull Allocator allocator)
+    {mConnection = connection; this.id = id; this.ring = ring; mAllocator = allocator;}
+
+    @NonNull
+    @Override
+    public final Binary read() throws IOException {
+      final byte[] content = mAllocator.lease(CHUNK);
+      final int result;
+      try {result = read(content, 0, content.length);}
+      catch (IOException | RuntimeException exception)
+      {mAllocator.release(content); throw exception;}
+      if (result != -1) return new Binary(content, result);
+      mAllocator.release(content); return END_OF_STREAM;
+    }
+
+    @Override
+    public final int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      final int result = ring.read(buffer, offset, length);
+      if (paused && ring.level() <= ring.low()) {
+        paused = false; mConnection.control(this, "pause", false);
+      }
+      return result;
+    }
+
+    /** Text messages are json objects, sent with the channel id. */
+    @Override
+    public final void write(@NonNull String value) throws IOException {
+      final String message;
+      try {message = new JSONObject(value).put("channel", id).toString();}
+      catch (JSONException exception) {throw new IOException("Not a json object: " + value, exception);}
+      mConnection.send(message);
+    }
+
+    @NonNull
+    @Override
+    public final RttMeter rtt() {
+      final BinaryWebSocket socket = mConnection.socket();
+      return socket != null ? socket.rtt() : new RttMeter();
+    }
+
+    @Nullable
+    @Override
+    public final PerMessageDeflate deflate() {
+      final BinaryWebSocket socket = mConnection.socket();
+      return socket != null ? socket.deflate() : null;
+    }
+
+    @Override
+    public final void listen(@Nullable LongConsumer listener) {this.listener = listener;}
+
+    @Override
+    public final void receive(@Nullable Consumer<String> listener) {texts = listener;}
+
+    @Override
+    public final void close() {ring.close(); mConnection.unsubscribe(this);}
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * SocketPool.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import android.os.SystemClock;
+
+import com.example.wsplayer.utils.schedulers.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+
+/**
+ * Pool of pre-warmed binary sockets, keyed by the socket url.
+ *
+ * Sockets are upgraded ahead of time (dns, tcp, tls and http upgrade),
+ * while the token handshake is sent on adoption: an authorized idle socket
+ * would keep buffering media that is stale by the time it gets played.
+ * Idle sockets are closed on timeout, and only adopted by data sources
+ * with the same frames pool, ping interval and compression.
+ *
+ * @author Gleb Nikitenko
+ * @since 07.02.20
+ **/
+public final class SocketPool implements Closeable {
+
+  /** Defaults. */
+  public static final int MAX_IDLE_PER_URL = 1;
+  public static final long IDLE_TIMEOUT = 30_000L;
+
+  /** OkHttp Client. */
+  private final Call.Factory mClient;
+
+  /** WS Logger. */
+  private final HttpLoggingInterceptor.Logger mLogger;
+
+  /** Idle sockets limit per url. */
+  private final int mCapacity;
+
+  /** Idle timeout (mills). */
+  private final long mTimeout;
+
+  /** Frames pool of the sockets. */
+  private final FramePool mFramePool;
+
+  /** Keep-alive ping interval of the sockets (mills). */
+  private final long mPingInterval;
+
+  /** Sockets offer "permessage-deflate". */
+  private final boolean mDeflate;
+
+  /** Periodic eviction of expired sockets. */
+  private final ScheduledFuture<?> mEviction;
+
+  /** Idle sockets. */
+  private final Map<String, ArrayDeque<Idle>> mIdle = new HashMap<>();
+
+  /** Sockets being opened. */
+  private final Map<String, Integer> mPending = new HashMap<>();
+
+  /** Pool was closed. */
+  private boolean mClosed = false;
+
+  /** Counters. */
+  private final AtomicLong
+    mHits = new AtomicLong(),
+    mMisses = new AtomicLong(),
+    mOpened = new AtomicLong(),
+    mFailed = new AtomicLong(),
+    mExpired = new AtomicLong(),
+    mMismatches = new AtomicLong();
+
+  /**
+   * Constructs a new {@link SocketPool}.
+   *
+   * @param client http client
+   * @param logger http logger
+   */
+  public SocketPool(@NonNull Call.Factory client, @NonNull HttpLoggingInterceptor.Logger logger)
+  {this(client, logger, MAX_IDLE_PER_URL, IDLE_TIMEOUT);}
+
+  /**
+   * Constructs a new {@link SocketPool}.
+   *
+   * @param client   http client
+   * @param logger   http logger
+   * @param capacity idle sockets limit per url
+   * @param timeout  idle timeout (mills)
+   */
+  public SocketPool(@NonNull Call.Factory client, @NonNull HttpLoggingInterceptor.Logger logger,
+                    int capacity, long timeout) {
+    this(client, logger, capacity, timeout,
+      FramePool.SHARED, BinaryWebSocket.PING_INTERVAL, true);
+  }
+
+  /**
+   * Constructs a new {@link SocketPool}.
+   *
+   * @param client   http client
+   * @param logger   http logger
+   * @param capacity idle sockets limit per url
+   * @param timeout  idle timeout (mills)
+   * @param pool     frames pool of the sockets
+   * @param ping     keep-alive ping interval of the sockets (mills), zero to disable
+   * @param deflate  offer "permessage-deflate" compression
+   */
+  public SocketPool(@NonNull Call.Factory client, @NonNull HttpLoggingInterceptor.Logger logger,
+                    int capacity, long timeout, @NonNull FramePool pool, long ping,
+                    boolean deflate) {
+    if (timeout <= 0) throw new IllegalArgumentException("timeout = " + timeout);
+    mClient = client; mLogger = logger;
+    mCapacity = capacity; mTimeout = timeout;
+    mFramePool = pool; mPingInterval = ping; mDeflate = deflate;
+    final long period = Math.max(1, timeout / 2);
+    mEviction = Schedulers.IO_POOL.scheduleWithFixedDelay(this::evict, period, period, MILLISECONDS);
+  }
+
+  /**
+   * Opens sockets in background, up to the per-url limit.
+   *
+   * @param urls socket urls of likely next streams
+   */
+  public final void prewarm(@NonNull String... urls) {
+    for (final String url : urls) {
+      if (url == null) continue;
+      synchronized (this) {
+        if (mClosed) return;
+        final ArrayDeque<Idle> idle = mIdle.get(url);
+        final int pending = mPending.getOrDefault(url, 0);
+        if ((idle != null ? idle.size() : 0) + pending >= mCapacity) continue;
+        mPending.put(url, pending + 1);
+      }
+      Schedulers.IO_EXECUTOR.execute(() -> open(url));
+    }
+  }
+
+  /** @param url socket url */
+  private void open(@NonNull String url) {
+    BinaryWebSocket socket = null;
+    try {
+      socket = BinaryWebSocket.create(mClient, url, mLogger, mFramePool, mPingInterval, mDeflate);
+      mOpened.incrementAndGet();
+    } catch (IOException exception) {
+      mFailed.incrementAndGet();
+    } finally {
+      synchronized (this) {
+        final int pending = mPending.get(url) - 1;
+        if (pending == 0) mPending.remove(url);
+        else mPending.put(url, pending);
+        if (socket != null && !mClosed) {
+          mIdle.computeIfAbsent(url, key -> new ArrayDeque<>())
+            .addLast(new Idle(socket, SystemClock.elapsedRealtime()));
+          socket = null;
+        }
+      }
+      if (socket != null) close(socket);
+    }
+  }
+
+  /**
+   * @param url     socket url
+   * @param pool    frames pool of the adopter
+   * @param ping    keep-alive ping interval of the adopter (mills)
+   * @param deflate the adopter offers "permessage-deflate"
+   *
+   * @return pre-warmed socket, or null if there is no one or it has other settings
+   */
+  @Nullable final BinaryWebSocket adopt(@NonNull String url, @NonNull FramePool pool,
+                                        long ping, boolean deflate) {
+    if (pool != mFramePool || ping != mPingInterval || deflate != mDeflate)
+    {mMismatches.incrementAndGet(); return null;}
+    final List<BinaryWebSocket> expired = new ArrayList<>(0);
+    BinaryWebSocket result = null;
+    synchronized (this) {
+      final ArrayDeque<Idle> idle = mIdle.get(url);
+      final long now = SystemClock.elapsedRealtime();
+      while (idle != null && result == null && !idle.isEmpty()) {
+        final Idle entry = idle.pollLast();
+        if (now - entry.time < mTimeout) result = entry.socket;
+        else expired.add(entry.socket);
+      }
+      if (idle != null && idle.isEmpty()) mIdle.remove(url);
+      evict(now, expired);
+    }
+    for (final BinaryWebSocket socket : expired) close(socket);
+    (result != null ? mHits : mMisses).incrementAndGet();
+    return result;
+  }
+
+  /** Closes the sockets idle for longer than the timeout. */
+  private void evict() {
+    final List<BinaryWebSocket> expired = new ArrayList<>(0);
+    synchronized (this) {evict(SystemClock.elapsedRealtime(), expired);}
+    for (final BinaryWebSocket socket : expired) close(socket);
+  }
+
+  /**
+   * @param now     current time
+   * @param expired collector of expired sockets
+   */
+  private void evict(long now, @NonNull List<BinaryWebSocket> expired) {
+    final Iterator<ArrayDeque<Idle>> values = mIdle.values().iterator();
+    while (values.hasNext()) {
+      final ArrayDeque<Idle> idle = values.next();
+      while (!idle.isEmpty() && now - idle.peekFirst().time >= mTimeout)
+        expired.add(idle.pollFirst().socket);
+      if (idle.isEmpty()) values.remove();
+    }
+    mExpired.addAndGet(expired.size());
+  }
+
+  /** @param socket closing socket */
+  private static void close(@NonNull BinaryWebSocket socket)
+  {try {socket.close();} catch (IOException ignored) {}}
+
+  /** @return count of sockets adopted from the pool */
+  public final long hits() {return mHits.get();}
+
+  /** @return count of adoptions that found no socket */
+  public final long misses() {return mMisses.get();}
+
+  /** @return count of pre-warmed sockets */
+  public final long opened() {return mOpened.get();}
+
+  /** @return count of failed pre-warms */
+  public final long failed() {return mFailed.get();}
+
+  /** @return count of sockets expired unused */
+  public final long expired() {return mExpired.get();}
+
+  /** @return count of adoptions refused for other socket settings */
+  public final long mismatches() {return mMismatches.get();}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    final List<BinaryWebSocket> sockets = new ArrayList<>();
+    mEviction.cancel(false);
+    synchronized (this) {
+      mClosed = true;
+      for (final ArrayDeque<Idle> idle : mIdle.values())
+        for (final Idle entry : idle) sockets.add(entry.socket);
+      mIdle.clear();
+    }
+    for (final BinaryWebSocket socket : sockets) close(socket);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "sockets: hits=" + hits() + ", misses=" + misses() + ", opened=" + opened() +
+      ", failed=" + failed() + ", expired=" + expired() + ", mismatches=" + mismatches();
+  }
+
+  /** Idle socket. */
+  private static final class Idle {
+
+    /** Pre-warmed socket. */
+    final BinaryWebSocket socket;
+
+    /** Time of upgrade. */
+    final long time;
+
+    /**
+     * Constructs a new {@link Idle}.
+     *
+     * @param socket pre-warmed socket
+     * @param time   time of upgrade
+     */
+    Idle(@NonNull BinaryWebSocket socket, long time)
+    {this.socket = socket; this.time = time;}
+  }
+}
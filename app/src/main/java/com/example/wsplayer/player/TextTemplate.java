@@ -0,0 +1,158 @@
+/*
+ * TextTemplate.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+import static okhttp3.internal.ws.WSUtilsInternal.utf8;
+import static okhttp3.internal.ws.WSUtilsInternal.utf8Size;
+
+
+/**
+ * Pre-encoded text message with slots, e.g. a JSON control message:
+ * {@code new TextTemplate("{\"quality\":\"", "\",\"sequence\":", "}")}
+ * filled with {@code begin().append(id).append(sequence)}.
+ *
+ * The constant parts are encoded once, a fill reuses the same buffer,
+ * so repeated messages are sent with no allocations at all.
+ * Not thread-safe, meant to be owned by one sender.
+ *
+ * @author Gleb Nikitenko
+ * @since 16.02.20
+ **/
+public final class TextTemplate {
+
+  /** Encoded constant parts, the slots are between them. */
+  private final byte[][] mParts;
+
+  /** Message buffer. */
+  private byte[] mBuffer = new byte[128];
+
+  /** Message length. */
+  private int mLength = 0;
+
+  /** Next slot. */
+  private int mSlot = 0;
+
+  /**
+   * Constructs a new {@link TextTemplate}.
+   *
+   * @param parts constant parts, one more than the slots
+   */
+  public TextTemplate(@NonNull String... parts) {
+    if (parts.length == 0) throw new IllegalArgumentException("No parts");
+    mParts = new byte[parts.length][];
+    for (int i = 0; i < parts.length; i++) mParts[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+    begin();
+  }
+
+  /** @return this template, with the first part only */
+  @NonNull public final TextTemplate begin() {
+    mLength = 0; mSlot = 0; put(mParts[0]);
+    return this;
+  }
+
+  /**
+   * Fills the next slot with a JSON-escaped string.
+   *
+   * @param value slot value
+   *
+   * @return this template
+   */
+  @NonNull public final TextTemplate append(@NonNull CharSequence value) {
+    int length = value.length(), start = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\') continue;
+      text(value.subSequence(start, i)); start = i + 1;
+      ensure(6); mBuffer[mLength++] = '\\';
+      if (c == '"' || c == '\\') mBuffer[mLength++] = (byte) c;
+      else {
+        mBuffer[mLength++] = 'u'; mBuffer[mLength++] = '0'; mBuffer[mLength++] = '0';
+        mBuffer[mLength++] = (byte) Character.forDigit(c >> 4, 16);
+        mBuffer[mLength++] = (byte) Character.forDigit(c & 0xf, 16);
+      }
+    }
+    if (start == 0) text(value); else text(value.subSequence(start, length));
+    return next();
+  }
+
+  /**
+   * Fills the next slot with a decimal number.
+   *
+   * @param value slot value
+   *
+   * @return this template
+   */
+  @NonNull public final TextTemplate append(long value) {
+    ensure(20);
+    if (value == Long.MIN_VALUE) {text(String.valueOf(value)); return next();}
+    if (value < 0) {mBuffer[mLength++] = '-'; value = -value;}
+    int digits = 1;
+    for (long rest = value / 10; rest != 0; rest /= 10) digits++;
+    for (int i = mLength + digits - 1; i >= mLength; i--, value /= 10)
+      mBuffer[i] = (byte) ('0' + value % 10);
+    mLength += digits;
+    return next();
+  }
+
+  /** @return this template, with the part after the slot */
+  @NonNull private TextTemplate next() {
+    if (++mSlot >= mParts.length) throw new IllegalStateException("No more slots");
+    put(mParts[mSlot]);
+    return this;
+  }
+
+  /** @param value raw text */
+  private void text(@NonNull CharSequence value)
+  {ensure(utf8Size(value)); mLength = utf8(value, mBuffer, mLength);}
+
+  /** @param part encoded part */
+  private void put(@NonNull byte[] part) {
+    ensure(part.length);
+    System.arraycopy(part, 0, mBuffer, mLength, part.length);
+    mLength += part.length;
+  }
+
+  /** @param count bytes to append */
+  private void ensure(int count) {
+    if (mLength + count > mBuffer.length)
+      mBuffer = Arrays.copyOf(mBuffer, Math.max(mLength + count, mBuffer.length << 1));
+  }
+
+  /** @return true if every slot is filled */
+  public final boolean complete() {return mSlot == mParts.length - 1;}
+
+  /** @return message buffer, valid until the next fill */
+  @NonNull public final byte[] array() {
+    if (!complete()) throw new IllegalStateException("Unfilled slots");
+    return mBuffer;
+  }
+
+  /** @return message length */
+  public final int length() {return mLength;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {return new String(mBuffer, 0, mLength, StandardCharsets.UTF_8);}
+}
@@ -0,0 +1,349 @@
+/*
+ * TimeshiftBuffer.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import android.net.Uri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Timeshift window of a live stream, kept in a memory-mapped ring file.
+ *
+ * The data source tees every delivered byte here, and fragment starts
+ * are indexed by their arrival and decode times. Played back by
+ * {@link TimeshiftDataSource} from the fragment closest to the requested
+ * delay, following the live edge as new bytes arrive.
+ *
+ * Bytes live in the page cache, the heap holds only the fixed index
+ * and the init segment, whatever the window size is.
+ *
+ * @author Gleb Nikitenko
+ * @since 12.02.20
+ **/
+public final class TimeshiftBuffer implements FragmentListener, Closeable {
+
+  /** Uri scheme of timeshift playback. */
+  public static final String SCHEME = "timeshift";
+
+  /** Uri query parameter of the delay behind the live edge (mills). */
+  public static final String PARAM_BEHIND = "behind";
+
+  /** Uri query parameter of the decode time to start from (us). */
+  public static final String PARAM_TIME = "time";
+
+  /** Default count of indexed fragments. */
+  public static final int INDEX_CAPACITY = 4096;
+
+  /** Backing file. */
+  private final RandomAccessFile mFile;
+
+  /** Mapped ring. */
+  private final MappedByteBuffer mMap;
+
+  /** Ring capacity. */
+  private final int mCapacity;
+
+  /** Writer view of the ring. */
+  private final ByteBuffer mWriter;
+
+  /** Total bytes written since reset. */
+  private volatile long mWritten = 0;
+
+  /** Total bytes written once the current write completes, published ahead of it. */
+  private volatile long mWriting = 0;
+
+  /** Stream generation, bumped by reset. */
+  private volatile int mGeneration = 0;
+
+  /** Init segment of the stream. */
+  private volatile byte[] mInit = null;
+
+  /** Fragments index: stream positions, decode times (us), arrival times (nanos). */
+  private final long[] mPositions, mDecodeTimes, mArrivals;
+
+  /** Index bounds, absolute entry numbers. */
+  private long mFirst = 0, mNext = 0;
+
+  /** Readers waiting for new bytes. */
+  private int mWaiting = 0;
+
+  /** Buffer was closed. */
+  private volatile boolean mClosed = false;
+
+  /** Counters. */
+  private final AtomicLong
+    mBytesRead = new AtomicLong(),
+    mReads = new AtomicLong(),
+    mOverruns = new AtomicLong();
+
+  /**
+   * Constructs a new {@link TimeshiftBuffer}.
+   *
+   * @param file     backing file, overwritten
+   * @param capacity window size in bytes
+   *
+   * @throws IOException mapping failed
+   */
+  public TimeshiftBuffer(@NonNull File file, int capacity) throws IOException
+  {this(file, capacity, INDEX_CAPACITY);}
+
+  /**
+   * Constructs a new {@link TimeshiftBuffer}.
+   *
+   * @param file      backing file, overwritten
+   * @param capacity  window size in bytes
+   * @param fragments count of indexed fragments
+   *
+   * @throws IOException mapping failed
+   */
+  public TimeshiftBuffer(@NonNull File file, int capacity, int fragments) throws IOException {
+    if (capacity <= 0 || fragments <= 0) throw new IllegalArgumentException
+      ("capacity = " + capacity + ", fragments = " + fragments);
+    mFile = new RandomAccessFile(file, "rw");
+    try {
+      mFile.setLength(capacity);
+      mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException exception) {mFile.close(); throw exception;}
+    mCapacity = capacity; mWriter = mMap.duplicate();
+    mPositions = new long[fragments];
+    mDecodeTimes = new long[fragments];
+    mArrivals = new long[fragments];
+  }
+
+  /**
+   * @param behind delay behind the live edge (mills)
+   *
+   * @return uri of the timeshift playback
+   */
+  @NonNull public static Uri uri(long behind)
+  {return Uri.parse(SCHEME + "://local?" + PARAM_BEHIND + "=" + behind);}
+
+  /**
+   * @param time decode time (us)
+   *
+   * @return uri of the timeshift playback from the fragment at that time
+   */
+  @NonNull public static Uri uriAt(long time)
+  {return Uri.parse(SCHEME + "://local?" + PARAM_TIME + "=" + time);}
+
+  /** Starts a new stream, forgetting the previous one. */
+  final synchronized void reset() {
+    mGeneration++; mWritten = mWriting = 0; mInit = null;
+    mFirst = mNext = 0; notifyAll();
+  }
+
+  /**
+   * @param source delivered bytes
+   * @param offset source offset
+   * @param length count of bytes
+   */
+  final void write(@NonNull byte[] source, int offset, int length) {
+    if (mClosed || length <= 0) return;
+    final ByteBuffer writer = mWriter; final int capacity = mCapacity;
+    long written = mWritten;
+    mWriting = written + length; // readers of the bytes being overwritten fail from now on
+    while (length > 0) {
+      final int at = (int) (written % capacity);
+      final int count = Math.min(length, capacity - at);
+      writer.position(at); writer.put(source, offset, count);
+      offset += count; length -= count; written += count;
+    }
+    mWritten = written;
+    synchronized (this) {
+      evict(written);
+      if (mWaiting > 0) notifyAll();
+    }
+  }
+
+  /** @param written total bytes written */
+  private void evict(long written) {
+    final long oldest = written - mCapacity;
+    while (mFirst < mNext && mPositions[(int) (mFirst % mPositions.length)] < oldest) mFirst++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void onInitSegment(@NonNull byte[] init) {mInit = init;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final synchronized void onFragment(@NonNull Fragment fragment) {
+    final int length = mPositions.length;
+    if (mNext - mFirst == length) mFirst++;
+    final int index = (int) (mNext++ % length);
+    mPositions[index] = fragment.position;
+    mDecodeTimes[index] = fragment.decodeTimeUs();
+    mArrivals[index] = fragment.arrival;
+  }
+
+  /**
+   * @param behind delay behind the live edge
+   * @param unit   time unit
+   *
+   * @return stream position of the latest fragment that arrived at least
+   * that long ago (or the oldest one), -1 if nothing is indexed
+   */
+  final synchronized long seek(long behind, @NonNull TimeUnit unit) {
+    if (mFirst == mNext) return -1;
+    final long edge = System.nanoTime() - unit.toNanos(behind);
+    final int length = mPositions.length;
+    long result = mPositions[(int) (mFirst % length)];
+    for (long i = mFirst; i < mNext; i++) {
+      final int index = (int) (i % length);
+      if (mArrivals[index] > edge) break;
+      result = mPositions[index];
+    }
+    return result;
+  }
+
+  /**
+   * @param time decode time (us)
+   *
+   * @return stream position of the latest fragment starting at or before
+   * that decode time (or the oldest one), -1 if nothing is indexed
+   */
+  final synchronized long seekDecodeTime(long time) {
+    if (mFirst == mNext) return -1;
+    final int length = mPositions.length;
+    long result = mPositions[(int) (mFirst % length)];
+    for (long i = mFirst; i < mNext; i++) {
+      final int index = (int) (i % length);
+      if (mDecodeTimes[index] > time) break;
+      result = mPositions[index];
+    }
+    return result;
+  }
+
+  /** @return init segment of the stream, null if not received yet */
+  @Nullable final byte[] init() {return mInit;}
+
+  /** @return stream generation, changes on every new stream */
+  final int generation() {return mGeneration;}
+
+  /** @return reader view of the ring */
+  @NonNull final ByteBuffer reader() {return mMap.duplicate();}
+
+  /**
+   * Blocks until bytes at the position are available.
+   *
+   * @param view       reader view of the ring
+   * @param generation stream generation of the reader
+   * @param position   stream position
+   * @param target     target buffer
+   * @param offset     target offset
+   * @param length     maximum count of bytes
+   *
+   * @return count of bytes
+   *
+   * @throws IOException the position left the window or the stream was replaced
+   */
+  final int read(@NonNull ByteBuffer view, int generation, long position,
+                 @NonNull byte[] target, int offset, int length) throws IOException {
+    long written;
+    synchronized (this) {
+      while ((written = mWritten) <= position && !mClosed && generation == mGeneration) {
+        mWaiting++;
+        try {wait();}
+        catch (InterruptedException exception) {throw new InterruptedIOException();}
+        finally {mWaiting--;}
+      }
+    }
+    if (mClosed) throw new IOException("Timeshift closed");
+    if (generation != mGeneration) throw new IOException("Stream replaced");
+    check(position);
+    final int at = (int) (position % mCapacity);
+    final int count = (int) Math.min(Math.min(length, written - position), mCapacity - at);
+    view.position(at); view.get(target, offset, count);
+    mReads.incrementAndGet(); // fences the copy ahead of the check
+    check(position); // the writer could overtake the copy
+    mBytesRead.addAndGet(count);
+    return count;
+  }
+
+  /**
+   * @param position stream position
+   *
+   * @throws IOException the position left the window, or is being overwritten
+   */
+  private void check(long position) throws IOException {
+    if (position >= mWriting - mCapacity) return;
+    mOverruns.incrementAndGet();
+    throw new IOException("Fell behind the timeshift window");
+  }
+
+  /** @return window size in bytes */
+  public final int capacity() {return mCapacity;}
+
+  /** @return total bytes written to the window */
+  public final long written() {return mWritten;}
+
+  /** @return total bytes read back */
+  public final long bytesRead() {return mBytesRead.get();}
+
+  /** @return count of reads served */
+  public final long reads() {return mReads.get();}
+
+  /** @return count of readers overtaken by the writer */
+  public final long overruns() {return mOverruns.get();}
+
+  /** @return count of fragments in the window */
+  public final synchronized int fragments() {return (int) (mNext - mFirst);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return time covered by the window, from the oldest fragment arrival
+   */
+  public final synchronized long window(@NonNull TimeUnit unit) {
+    if (mFirst == mNext) return 0;
+    final long oldest = mArrivals[(int) (mFirst % mArrivals.length)];
+    return unit.convert(System.nanoTime() - oldest, NANOSECONDS);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() throws IOException {
+    synchronized (this) {mClosed = true; notifyAll();}
+    mFile.close();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "timeshift: " + fragments() + " fragments, " + window(TimeUnit.MILLISECONDS) +
+      "ms, written=" + written() + "B, read=" + bytesRead() + "B/" + reads() +
+      ", overruns=" + overruns();
+  }
+}
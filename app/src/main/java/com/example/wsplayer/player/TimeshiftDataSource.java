@@ -0,0 +1,144 @@
+/*
+ * TimeshiftDataSource.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+
+/**
+ * Plays the stream back from the {@link TimeshiftBuffer}.
+ *
+ * Opened with {@link TimeshiftBuffer#uri(long)}: serves the init segment,
+ * then the stream from the fragment closest to the requested delay,
+ * and keeps following the live edge with that delay. Opened with
+ * {@link TimeshiftBuffer#uriAt(long)}, starts from the fragment at the
+ * decode time instead, and may be reopened at any position of that stream.
+ *
+ * @author Gleb Nikitenko
+ * @since 12.02.20
+ **/
+public final class TimeshiftDataSource extends BaseDataSource {
+
+  /** Timeshift window. */
+  private final TimeshiftBuffer mBuffer;
+
+  /** Reader view of the ring. */
+  private ByteBuffer mView = null;
+
+  /** Init segment. */
+  private byte[] mInit = null;
+  private int mInitOffset = 0;
+
+  /** Stream generation and position. */
+  private int mGeneration = 0;
+  private long mPosition = 0;
+
+  /** Opened uri. */
+  private Uri mUri = null;
+
+  /**
+   * Constructs a new {@link TimeshiftDataSource}.
+   *
+   * @param buffer timeshift window
+   */
+  public TimeshiftDataSource(@NonNull TimeshiftBuffer buffer)
+  {super(false); mBuffer = buffer;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final long open(@NonNull DataSpec dataSpec) throws IOException {
+    final String behind = dataSpec.uri.getQueryParameter(TimeshiftBuffer.PARAM_BEHIND);
+    final String time = dataSpec.uri.getQueryParameter(TimeshiftBuffer.PARAM_TIME);
+    transferInitializing(dataSpec);
+    if (time == null && dataSpec.position != 0)
+      throw new IOException("Live edge playback is not seekable: " + dataSpec.position);
+    final TimeshiftBuffer buffer = mBuffer;
+    final int generation = buffer.generation();
+    final long position;
+    try {
+      position = time != null ? buffer.seekDecodeTime(Long.parseLong(time)) :
+        buffer.seek(behind != null ? Long.parseLong(behind) : 0, TimeUnit.MILLISECONDS);
+    } catch (NumberFormatException exception) {throw new IOException(exception);}
+    final byte[] init = buffer.init();
+    if (position == -1 || init == null) throw new IOException("Timeshift is empty");
+    final long skip = dataSpec.position;
+    mUri = dataSpec.uri; mView = buffer.reader();
+    mInit = init; mInitOffset = (int) Math.min(skip, init.length);
+    mGeneration = generation; mPosition = position + Math.max(0, skip - init.length);
+    transferStarted(dataSpec);
+    return C.LENGTH_UNSET;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    final ByteBuffer view = mView;
+    if (view == null) throw new IOException("Data source closed");
+    final int result;
+    final byte[] init = mInit;
+    if (init != null && mInitOffset < init.length) {
+      result = Math.min(length, init.length - mInitOffset);
+      System.arraycopy(init, mInitOffset, buffer, offset, result);
+      mInitOffset += result;
+    } else {
+      result = mBuffer.read(view, mGeneration, mPosition, buffer, offset, length);
+      mPosition += result;
+    }
+    bytesTransferred(result);
+    return result;
+  }
+
+  /** {@inheritDoc} */
+  @Nullable @Override
+  public final Uri getUri() {return mUri;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    mInit = null; mInitOffset = 0;
+    final boolean opened = mView != null;
+    mView = null; mUri = null;
+    if (opened) transferEnded();
+  }
+
+  /** @return stream position of the next read */
+  public final long getPosition() {return mPosition;}
+
+  /**
+   * @param buffer timeshift window
+   *
+   * @return factory of data sources reading that window
+   */
+  @NonNull public static DataSource.Factory factory(@NonNull TimeshiftBuffer buffer)
+  {return () -> new TimeshiftDataSource(buffer);}
+}
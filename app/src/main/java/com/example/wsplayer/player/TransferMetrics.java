@@ -0,0 +1,204 @@
+/*
+ * TransferMetrics.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.player;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Transfer metrics of one {@link BinarySocketDataSource}.
+ *
+ * Updated by the single thread reading the socket, without locks;
+ * readable from any thread, e.g. polled by the UI.
+ *
+ * Histograms are log2-bucketed: bucket {@code i} counts values
+ * in {@code [2^(i-1), 2^i)}, bucket zero counts zeros.
+ *
+ * @author Gleb Nikitenko
+ * @since 10.02.20
+ **/
+public final class TransferMetrics {
+
+  /** Count of histogram buckets. */
+  public static final int BUCKETS = 32;
+
+  /** Throughput window (nanos). */
+  private static final long RATE_WINDOW = 1_000_000_000L;
+
+  /** Message sizes (bytes) histogram. */
+  private final AtomicLongArray mFrameSizes = new AtomicLongArray(BUCKETS);
+
+  /** Gaps between messages (micros) histogram. */
+  private final AtomicLongArray mFrameGaps = new AtomicLongArray(BUCKETS);
+
+  /** Counters. */
+  private volatile long
+    mBytes = 0, mFrames = 0, mReads = 0, mBlocked = 0;
+
+  /** Open time, time to first byte (nanos). */
+  private volatile long mOpenTime = 0, mFirstByte = -1;
+
+  /** Arrival of the last message (nanos). */
+  private long mLastFrame = 0;
+
+  /** Throughput window. */
+  private volatile long mWindowStart = 0, mRate = 0;
+  private long mWindowBytes = 0;
+
+  /** Reconnects. */
+  private volatile int mReconnects = 0;
+  private volatile long mLastGap = 0, mTotalGap = 0;
+
+  /** Package-private constructor. */
+  TransferMetrics() {}
+
+  /** Marks the start of a new transfer. */
+  final void opened() {
+    final long now = System.nanoTime();
+    mOpenTime = now; mFirstByte = -1;
+    mLastFrame = 0; mWindowStart = now; mWindowBytes = 0; mRate = 0;
+  }
+
+  /**
+   * @param count   bytes received from the socket
+   * @param blocked nanos spent blocked in the socket read
+   */
+  final void received(int count, long blocked) {
+    final long now = System.nanoTime();
+    mReads++; mBlocked += blocked;
+    if (count <= 0) return;
+    if (mFirstByte == -1) mFirstByte = now - mOpenTime;
+    mBytes += count; mWindowBytes += count;
+    final long window = now - mWindowStart;
+    if (window >= RATE_WINDOW) {
+      mRate = mWindowBytes * RATE_WINDOW / window;
+      mWindowStart = now; mWindowBytes = 0;
+    }
+  }
+
+  /** @param size size of the completely received binary message */
+  final void frame(long size) {
+    final long now = System.nanoTime();
+    increment(mFrameSizes, bucket(size));
+    if (mLastFrame != 0) increment(mFrameGaps, bucket((now - mLastFrame) / 1000));
+    mLastFrame = now; mFrames++;
+  }
+
+  /** Counts a transparent reconnect. */
+  final void reconnected() {mReconnects++;}
+
+  /** @param gap nanos between the failure and the next fragment */
+  final void resynced(long gap) {mLastGap = gap; mTotalGap += gap;}
+
+  /**
+   * @param histogram target histogram
+   * @param bucket    bucket index
+   */
+  private static void increment(@NonNull AtomicLongArray histogram, int bucket)
+  {histogram.lazySet(bucket, histogram.get(bucket) + 1);}
+
+  /**
+   * @param value sample value
+   *
+   * @return histogram bucket
+   */
+  static int bucket(long value)
+  {return value <= 0 ? 0 : Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(value));}
+
+  /**
+   * @param histogram source histogram
+   *
+   * @return histogram copy
+   */
+  @NonNull private static long[] copy(@NonNull AtomicLongArray histogram) {
+    final long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) result[i] = histogram.get(i);
+    return result;
+  }
+
+  /** @return bytes received */
+  public final long bytes() {return mBytes;}
+
+  /** @return throughput over the last completed second, zero if stalled */
+  public final long bytesPerSecond() {
+    final long idle = System.nanoTime() - mWindowStart;
+    return idle > 2 * RATE_WINDOW ? 0 : mRate;
+  }
+
+  /** @return binary messages received */
+  public final long frames() {return mFrames;}
+
+  /** @return message sizes (bytes) histogram */
+  @NonNull public final long[] frameSizes() {return copy(mFrameSizes);}
+
+  /** @return gaps between messages (micros) histogram */
+  @NonNull public final long[] frameGaps() {return copy(mFrameGaps);}
+
+  /** @return count of socket reads */
+  public final long reads() {return mReads;}
+
+  /**
+   * @param unit time unit
+   *
+   * @return time spent blocked in socket reads
+   */
+  public final long blocked(@NonNull TimeUnit unit) {return unit.convert(mBlocked, NANOSECONDS);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return time from open to the first byte, -1 if nothing received yet
+   */
+  public final long timeToFirstByte(@NonNull TimeUnit unit) {
+    final long value = mFirstByte;
+    return value == -1 ? -1 : unit.convert(value, NANOSECONDS);
+  }
+
+  /** @return count of transparent reconnects */
+  public final int reconnects() {return mReconnects;}
+
+  /**
+   * @param unit time unit
+   *
+   * @return duration of the last gap between a failure and the next fragment
+   */
+  public final long lastGap(@NonNull TimeUnit unit) {return unit.convert(mLastGap, NANOSECONDS);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return total duration of gaps between failures and next fragments
+   */
+  public final long totalGap(@NonNull TimeUnit unit) {return unit.convert(mTotalGap, NANOSECONDS);}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    final TimeUnit ms = TimeUnit.MILLISECONDS;
+    return "transfer: " + mBytes + "B, " + bytesPerSecond() + "B/s, frames=" + mFrames +
+      ", ttfb=" + timeToFirstByte(ms) + "ms, blocked=" + blocked(ms) + "ms/" + mReads +
+      ", reconnects=" + mReconnects + ", gaps=" + totalGap(ms) + "ms";
+  }
+}
@@ -0,0 +1,125 @@
+package com.example.wsplayer.test;
+
+import android.os.Debug;
+
+import com.example.wsplayer.utils.schedulers.Schedulers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import androidx.annotation.NonNull;
+import okhttp3.logging.HttpLoggingInterceptor;
+import reactor.core.publisher.Flux;
+
+
+/**
+ * Cost of a hop onto the work looper: a runnable re-posting itself
+ * through {@code schedule(task, 0)}, {@code submit(task)} and
+ * {@code execute(task)}, and a {@link Flux} published on the work scheduler.
+ *
+ * Usage: {@code LooperBenchmark.run(logger)}, off the work looper.
+ *
+ * @author Gleb Nikitenko
+ * @since 16.02.20
+ **/
+public final class LooperBenchmark {
+
+  /** Measured hops. */
+  private static final int HOPS = 100_000;
+
+  /** Warm-up hops. */
+  private static final int WARM_UP = 10_000;
+
+  /**
+   * Process-wide allocation counters of the runtime, so the benchmark should
+   * run in a quiet process. Objects are counted on Android 12 and newer only.
+   */
+  private static final String
+    OBJECTS_ALLOCATED = "art.gc.objects-allocated",
+    BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+  /**
+   * The caller should be prevented from constructing objects of this class.
+   * Also, this prevents even the native class from calling this constructor.
+   **/
+  private LooperBenchmark() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param logger report logger
+   *
+   * @throws InterruptedException interrupted
+   */
+  public static void run(@NonNull HttpLoggingInterceptor.Logger logger) throws InterruptedException {
+    final ScheduledExecutorService executor = (ScheduledExecutorService) Schedulers.WORK_EXECUTOR;
+    logger.log(measure("schedule", task -> executor.schedule(task, 0, TimeUnit.NANOSECONDS)));
+    logger.log(measure("submit", ((ExecutorService) executor)::submit));
+    logger.log(measure("execute", executor::execute));
+    logger.log(measure("publishOn", null));
+  }
+
+  /**
+   * @param name report name
+   * @param hop  posts a runnable onto the looper, null for a publishing flux
+   *
+   * @return report line
+   *
+   * @throws InterruptedException interrupted
+   */
+  @NonNull private static String measure(@NonNull String name, Consumer<Runnable> hop)
+    throws InterruptedException {
+    hops(hop, WARM_UP);
+    final long objects = stat(OBJECTS_ALLOCATED), bytes = stat(BYTES_ALLOCATED);
+    final long start = System.nanoTime();
+    hops(hop, HOPS);
+    final long elapsed = System.nanoTime() - start;
+    final long count = stat(OBJECTS_ALLOCATED) - objects, size = stat(BYTES_ALLOCATED) - bytes;
+    return name + ": " + String.format("%d hops/s, %s allocs, %s bytes per hop",
+      HOPS * 1_000_000_000L / elapsed, perHop(objects, count, "%.2f"), perHop(bytes, size, "%.1f"));
+  }
+
+  /**
+   * @param name runtime statistic name
+   *
+   * @return value of the statistic, a process-wide counter, or -1 if not supported
+   */
+  private static long stat(@NonNull String name) {
+    final String value = Debug.getRuntimeStat(name);
+    if (value == null) return -1;
+    try {return Long.parseLong(value);}
+    catch (NumberFormatException exception) {return -1;}
+  }
+
+  /**
+   * @param start  statistic before the hops, -1 if not supported
+   * @param delta  statistic growth over the hops
+   * @param format value format
+   *
+   * @return statistic per hop, or "n/a"
+   */
+  @NonNull private static String perHop(long start, long delta, @NonNull String format)
+  {return start == -1 ? "n/a" : String.format(format, (float) delta / HOPS);}
+
+  /**
+   * @param hop   posts a runnable onto the looper, null for a publishing flux
+   * @param count count of hops
+   *
+   * @throws InterruptedException interrupted
+   */
+  private static void hops(Consumer<Runnable> hop, int count) throws InterruptedException {
+    if (hop == null) {
+      Flux.range(0, count).publishOn(Schedulers.WORK_SCHEDULER, 1).blockLast();
+      return;
+    }
+    final CountDownLatch done = new CountDownLatch(1);
+    hop.accept(new Runnable() {
+      private int mLeft = count;
+      @Override public final void run() {if (--mLeft > 0) hop.accept(this); else done.countDown();}
+    });
+    done.await();
+  }
+}
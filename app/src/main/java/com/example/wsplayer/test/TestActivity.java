@@ -4,6 +4,7 @@ import android.os.Bundle;
 import android.view.TextureView;
 
 import com.example.wsplayer.R;
+import com.example.wsplayer.player.SocketPool;
 import com.example.wsplayer.utils.schedulers.Schedulers;
 import com.google.android.exoplayer2.Player;
 
@@ -11,6 +12,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import androidx.appcompat.app.AppCompatActivity;
+import okhttp3.Call;
 import okhttp3.logging.HttpLoggingInterceptor;
 import ru.realtimetech.webka.client.Client;
 
@@ -20,6 +22,7 @@ public class TestActivity extends AppCompatActivity {
   private TextureView mTexture1, mTexture2;
   private Client mClient;
   private TempStorage mStorage;
+  private SocketPool mSockets;
 
   private HttpLoggingInterceptor.Logger mLogger = HttpLoggingInterceptor.Logger.DEFAULT;
 
@@ -38,21 +41,31 @@ public class TestActivity extends AppCompatActivity {
                     .data(mStorage::put, mStorage::get)
                     .verbose().build();
 
+    final Call.Factory http = TestUtils.http(this, mLogger);
+    mSockets = new SocketPool(http, mLogger);
+
     Translation.videoMain(mClient, 0, 1)
-               .transform(Schedulers::work_main)
+               .transform(Schedulers::compute_main)
                .subscribe((translations -> {
+                 mSockets.prewarm(Translation.wsAddresses(translations));
                  Translation translation = translations[0];
                  System.out.println("Translation.videoMain(0, 1)\n" + translation);
                  TestUtils.testRunHlsPlayer(TestActivity.this, mTexture1, translation.streamMediaUrl);
                }));
 
     Translation.bySessionId(mClient, "3Pr8PdMMXR")
-               .transform(Schedulers::work_main)
+               .transform(Schedulers::compute_main)
                .subscribe((translation -> {
                  System.out.println("Translation.bySessionId(3Pr8PdMMXR)\n" + translation);
                  TestActivity context = TestActivity.this;
-                 TestUtils.testRunWsPlayer(context, TestUtils.http(context, mLogger), mLogger, mTexture2, translation);
+                 TestUtils.testRunWsPlayer(context, http, mSockets, mLogger, mTexture2, translation);
                }));
   }
 
+  @Override
+  protected void onDestroy() {
+    mSockets.close();
+    super.onDestroy();
+  }
+
 }
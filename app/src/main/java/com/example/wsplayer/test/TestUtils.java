@@ -5,6 +5,11 @@ import android.net.Uri;
 import android.view.TextureView;
 
 import com.example.wsplayer.player.BinarySocketDataSource;
+import com.example.wsplayer.player.ConnectionSetup;
+import com.example.wsplayer.player.FirstFrameMeter;
+import com.example.wsplayer.player.SocketBandwidthMeter;
+import com.example.wsplayer.player.SocketMediaSource;
+import com.example.wsplayer.player.SocketPool;
 import com.example.wsplayer.utils.schedulers.Schedulers;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
@@ -74,6 +79,11 @@ public class TestUtils {
     "}";
 
   public static Call.Factory http(Context context, HttpLoggingInterceptor.Logger logger) {
+    return http(context, logger, new ConnectionSetup(logger));
+  }
+
+  public static Call.Factory http(Context context, HttpLoggingInterceptor.Logger logger,
+                                  ConnectionSetup setup) {
     final long timeouts = 2500L;
 
     final ExecutorService executor = (ExecutorService) Schedulers.IO_EXECUTOR;
@@ -81,7 +91,7 @@ public class TestUtils {
     dispatcher.setMaxRequests(64);
     dispatcher.setMaxRequestsPerHost(32);
 
-    OkHttpClient.Builder client = new OkHttpClient.Builder()
+    OkHttpClient.Builder client = setup.apply(new OkHttpClient.Builder())
       .retryOnConnectionFailure(true)
       .followRedirects(false)
       .followSslRedirects(false)
@@ -113,14 +123,25 @@ public class TestUtils {
     return player;
   }
 
-  public static Player testRunWsPlayer(Context context, Call.Factory http, HttpLoggingInterceptor.Logger logger,
+  public static Player testRunWsPlayer(Context context, Call.Factory http, SocketPool sockets,
+                                       HttpLoggingInterceptor.Logger logger,
                                        TextureView texture, Translation translation) {
 
-    DataSource.Factory dsFactory = () -> new BinarySocketDataSource(http, logger, translation.stramWsToken, translation.streamMediaId);
-    ProgressiveMediaSource.Factory pmsFactory = new ProgressiveMediaSource.Factory(dsFactory);
+    SocketBandwidthMeter meter = new SocketBandwidthMeter();
+    DataSource.Factory dsFactory = new BinarySocketDataSource.Factory(http, logger, translation.stramWsToken, translation.streamMediaId)
+      .setReadAhead(1 << 20)
+      .setBandwidthMeter(meter)
+      .setSocketPool(sockets);
+    FirstFrameMeter firstFrame = new FirstFrameMeter(ms -> logger.log("first frame: " + ms + "ms"));
+    ProgressiveMediaSource.Factory pmsFactory = SocketMediaSource.factory(dsFactory,
+      SocketMediaSource.Container.FRAGMENTED_MP4, firstFrame);
     ProgressiveMediaSource source = pmsFactory.createMediaSource(Uri.parse(translation.streamWsAddr));
 
-    SimpleExoPlayer player = new SimpleExoPlayer.Builder(context).build();
+    SimpleExoPlayer player = new SimpleExoPlayer.Builder(context)
+      .setBandwidthMeter(meter)
+      .setLoadControl(SocketMediaSource.loadControl())
+      .build();
+    player.addVideoListener(firstFrame);
     player.setVideoTextureView(texture);
     player.prepare(source);
     player.setPlayWhenReady(true);
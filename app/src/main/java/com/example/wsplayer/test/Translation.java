@@ -20,10 +20,12 @@
 package com.example.wsplayer.test;
 
 import com.example.wsplayer.utils.Json;
+import com.example.wsplayer.utils.schedulers.Schedulers;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.Arrays;
 import java.util.Objects;
 
 import reactor.core.publisher.Mono;
@@ -187,6 +189,19 @@ public final class Translation {
       .toArray(Translation[]::new);
   }
 
+  /**
+   * @param translations set of translations
+   *
+   * @return their websocket addresses, to pre-warm sockets for
+   */
+  public static String[] wsAddresses(Translation[] translations) {
+    return Arrays.stream(translations)
+      .map(translation -> translation.streamWsAddr)
+      .filter(Objects::nonNull)
+      .distinct()
+      .toArray(String[]::new);
+  }
+
   public static Mono<Void> size(Client client, int width, int height) {
     return Mono.from(client.put("translation/size", "width", width, "height", height)).then();
   }
@@ -205,14 +220,27 @@ public final class Translation {
     return Mono.from(client.delete("translation","translationId", translationId));
   }
 
+  /**
+   * @param client    api client
+   * @param sessionId session id
+   *
+   * @return translation, requested on the io-threads and parsed on the compute ones
+   */
   public static Mono<Translation> bySessionId(Client client, String sessionId) {
-    return Mono.from(client.get("translation/session", "sessionId", sessionId))
+    return Mono.from(Schedulers.io_compute(Mono.from(client.get("translation/session", "sessionId", sessionId))))
                .map(Json::object).map(Translation::new);
   }
 
+  /**
+   * @param client api client
+   * @param offset page offset
+   * @param limit  page size
+   *
+   * @return page of translations, requested on the io-threads and parsed on the compute ones
+   */
   public static Mono<Translation[]> videoMain(Client client, int offset, int limit) {
     final String cover = client.storage("1");
-    return Mono.from(client.get("video/main", "offset", offset, "limit", limit))
+    return Mono.from(Schedulers.io_compute(Mono.from(client.get("video/main", "offset", offset, "limit", limit))))
       //Mono.just(STUB)
       .map(Json::array).map(Translation::just)
       //.doOnNext(Collections::reverse)
@@ -0,0 +1,198 @@
+package com.example.wsplayer.test;
+
+import android.net.Uri;
+
+import com.example.wsplayer.player.BinarySocketDataSource;
+import com.example.wsplayer.player.SocketLoop;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.OkHttpUtilsInternal;
+import okhttp3.internal.ws.WebSocketProtocol;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+
+/**
+ * Threads and heap of N live sockets: a blocking socket per source
+ * (with read-ahead) against the event-loop transport.
+ *
+ * A loopback server streams 16KB binary messages every 20ms per socket,
+ * a single thread drains all the sources round-robin.
+ *
+ * Usage: {@code TransportBenchmark.run(logger, 16, 64)}.
+ *
+ * @author Gleb Nikitenko
+ * @since 13.02.20
+ **/
+public final class TransportBenchmark {
+
+  /** Server thread names. */
+  private static final String SERVER = "bench-server";
+
+  /** Streamed message size. */
+  private static final int MESSAGE = 16 * 1024;
+
+  /** Interval between messages (mills). */
+  private static final long INTERVAL = 20L;
+
+  /** Measured run duration (mills). */
+  private static final long DURATION = 3_000L;
+
+  /** Read-ahead of blocking sources. */
+  private static final int READ_AHEAD = SocketLoop.RING_CAPACITY;
+
+  /**
+   * The caller should be prevented from constructing objects of this class.
+   * Also, this prevents even the native class from calling this constructor.
+   **/
+  private TransportBenchmark() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param logger  report logger
+   * @param streams counts of streams to compare at
+   *
+   * @throws IOException benchmark failure
+   */
+  public static void run(@NonNull HttpLoggingInterceptor.Logger logger, int... streams)
+    throws IOException {
+    for (final int count : streams) {
+      logger.log(run(count, null));
+      try (final SocketLoop loop = new SocketLoop(2)) {logger.log(run(count, loop));}
+    }
+  }
+
+  /**
+   * @param streams count of streams
+   * @param loop    event-loop transport, null for blocking sockets
+   *
+   * @return report line
+   *
+   * @throws IOException benchmark failure
+   */
+  @NonNull public static String run(int streams, @Nullable SocketLoop loop) throws IOException {
+    try (final Server server = new Server()) {
+      final Call.Factory http = OkHttpUtilsInternal.factory(new OkHttpClient.Builder(), url -> true);
+      final BinarySocketDataSource.Factory factory =
+        new BinarySocketDataSource.Factory(http, message -> {}, null, 0)
+          .setReadAhead(READ_AHEAD).setTransport(loop);
+      final int threads = threads(); final long heap = heap();
+      final List<BinarySocketDataSource> sources = new ArrayList<>(streams);
+      try {
+        final Uri uri = Uri.parse("ws://127.0.0.1:" + server.port() + "/");
+        for (int i = 0; i < streams; i++) {
+          final BinarySocketDataSource source = factory.createDataSource();
+          source.open(new DataSpec(uri)); sources.add(source);
+        }
+        final byte[] buffer = new byte[64 * 1024]; long bytes = 0;
+        final long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < DURATION)
+          for (final BinarySocketDataSource source : sources)
+            bytes += Math.max(0, source.read(buffer, 0, buffer.length));
+        final int usedThreads = threads() - threads; final long usedHeap = heap() - heap;
+        return (loop != null ? "loop" : "blocking") + " x" + streams +
+          ": threads=" + usedThreads + ", heap=" + (usedHeap >> 10) + "KB" +
+          ", read=" + (bytes >> 20) + "MB" + (loop != null ? ", " + loop : "");
+      } finally {
+        for (final BinarySocketDataSource source : sources) source.close();
+      }
+    }
+  }
+
+  /** @return count of live threads, except the server ones */
+  private static int threads() {
+    int result = 0;
+    for (final Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet())
+      if (!entry.getKey().getName().startsWith(SERVER)) result++;
+    return result;
+  }
+
+  /** @return used heap after a collection */
+  private static long heap() {
+    final Runtime runtime = Runtime.getRuntime();
+    System.gc(); System.runFinalization(); System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /** Loopback server streaming binary messages to every socket. */
+  static final class Server implements Closeable {
+
+    /** Server socket. */
+    private final ServerSocket mSocket;
+
+    /** Accepted sockets. */
+    private final List<Socket> mClients = new ArrayList<>();
+
+    /**
+     * Constructs a new {@link Server}.
+     *
+     * @throws IOException bind failure
+     */
+    Server() throws IOException {
+      mSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+      final Thread thread = new Thread(this::accept, SERVER);
+      thread.setDaemon(true); thread.start();
+    }
+
+    /** @return bound port */
+    final int port() {return mSocket.getLocalPort();}
+
+    /** Accepts sockets until closed. */
+    private void accept() {
+      try {
+        for (int i = 0; ; i++) {
+          final Socket socket = mSocket.accept();
+          synchronized (mClients) {mClients.add(socket);}
+          final Thread thread = new Thread(() -> stream(socket), SERVER + "-" + i);
+          thread.setDaemon(true); thread.start();
+        }
+      } catch (IOException ignored) {/* closed */}
+    }
+
+    /** @param socket upgraded and streamed socket */
+    private static void stream(@NonNull Socket socket) {
+      try {
+        final BufferedReader reader = new BufferedReader
+          (new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        String key = null;
+        for (String line; (line = reader.readLine()) != null && !line.isEmpty();)
+          if (line.regionMatches(true, 0, "Sec-WebSocket-Key:", 0, 18))
+            key = line.substring(18).trim();
+        final OutputStream output = socket.getOutputStream();
+        output.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+          "Upgrade: websocket\r\n" +
+          "Connection: Upgrade\r\n" +
+          "Sec-WebSocket-Accept: " + WebSocketProtocol.acceptHeader(key) + "\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1));
+        final byte[] message = new byte[4 + MESSAGE];
+        message[0] = (byte) 0x82; message[1] = 126;
+        message[2] = (byte) (MESSAGE >> 8); message[3] = (byte) MESSAGE;
+        while (!socket.isClosed()) {output.write(message); output.flush(); Thread.sleep(INTERVAL);}
+      } catch (IOException | InterruptedException ignored) {/* client gone */}
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void close() throws IOException {
+      mSocket.close();
+      synchronized (mClients) {for (final Socket client : mClients) client.close();}
+    }
+  }
+}
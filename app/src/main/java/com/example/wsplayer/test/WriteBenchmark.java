@@ -0,0 +1,170 @@
+package com.example.wsplayer.test;
+
+import android.os.Debug;
+
+import com.example.wsplayer.player.TextTemplate;
+import com.example.wsplayer.utils.Json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import androidx.annotation.NonNull;
+import okhttp3.internal.ws.WSUtilsInternal;
+import okhttp3.internal.ws.WSUtilsInternal.Frame;
+import okhttp3.internal.ws.WSUtilsInternal.FrameWriter;
+import okhttp3.internal.ws.WSUtilsInternal.IORunnable;
+import okhttp3.internal.ws.WSUtilsInternal.Text;
+import okhttp3.logging.HttpLoggingInterceptor;
+import okio.BufferedSink;
+import okio.Okio;
+
+
+/**
+ * Allocations per control message write: a JSON message built and sent
+ * as a {@link Text} frame through the okhttp writer, against a filled
+ * {@link TextTemplate} sent through the {@link FrameWriter}.
+ *
+ * Messages go to a loopback socket drained by a server thread.
+ *
+ * Usage: {@code WriteBenchmark.run(logger)}.
+ *
+ * @author Gleb Nikitenko
+ * @since 16.02.20
+ **/
+public final class WriteBenchmark {
+
+  /** Measured writes. */
+  private static final int WRITES = 10_000;
+
+  /** Warm-up writes. */
+  private static final int WARM_UP = 1_000;
+
+  /**
+   * The caller should be prevented from constructing objects of this class.
+   * Also, this prevents even the native class from calling this constructor.
+   **/
+  private WriteBenchmark() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param logger report logger
+   *
+   * @throws IOException benchmark failure
+   */
+  public static void run(@NonNull HttpLoggingInterceptor.Logger logger) throws IOException {
+    try (final Drain drain = new Drain()) {
+      logger.log(measure("okhttp", drain, WSUtilsInternal::writer));
+      logger.log(measure("frames", drain, null));
+    }
+  }
+
+  /**
+   * @param name   report name
+   * @param drain  loopback server
+   * @param legacy okhttp writer factory, null for the frame writer
+   *
+   * @return report line
+   *
+   * @throws IOException write failure
+   */
+  @SuppressWarnings("deprecation")
+  @NonNull private static String measure(@NonNull String name, @NonNull Drain drain,
+                                         Legacy legacy) throws IOException {
+    try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), drain.port())) {
+      final BufferedSink sink = Okio.buffer(Okio.sink(socket));
+      final Random random = ThreadLocalRandom.current();
+      final Function<Frame, IORunnable> writer =
+        legacy != null ? legacy.create(true, sink, random) : null;
+      final FrameWriter frames = legacy == null ? WSUtilsInternal.frames(sink, null) : null;
+      final TextTemplate template =
+        new TextTemplate("{\"quality\":\"", "\",\"sequence\":", "}");
+      for (int i = 0; i < WARM_UP; i++) write(writer, frames, template, i);
+      Debug.startAllocCounting(); Debug.resetThreadAllocCount(); Debug.resetThreadAllocSize();
+      final long start = System.nanoTime();
+      for (int i = 0; i < WRITES; i++) write(writer, frames, template, i);
+      final long elapsed = System.nanoTime() - start;
+      final int count = Debug.getThreadAllocCount(), size = Debug.getThreadAllocSize();
+      Debug.stopAllocCounting();
+      return name + ": " + String.format("%.2f allocs, %.1f bytes per write, %d writes/s",
+        (float) count / WRITES, (float) size / WRITES, WRITES * 1_000_000_000L / elapsed);
+    }
+  }
+
+  /**
+   * @param writer   okhttp writer, or null
+   * @param frames   frame writer, or null
+   * @param template switch template
+   * @param sequence fragment sequence
+   *
+   * @throws IOException write failure
+   */
+  private static void write(Function<Frame, IORunnable> writer, FrameWriter frames,
+                            @NonNull TextTemplate template, long sequence) throws IOException {
+    if (writer != null) writer.apply(new Text(Json.newJson(body -> body
+      .put("quality", "720p")
+      .put("sequence", sequence)).toString())).run();
+    else {
+      template.begin().append("720p").append(sequence);
+      frames.write(FrameWriter.TEXT, template.array(), 0, template.length());
+    }
+  }
+
+  /** Factory of the okhttp writer. */
+  @FunctionalInterface
+  private interface Legacy {
+
+    /**
+     * @param client is a client
+     * @param sink   buffered sink
+     * @param random masks source
+     *
+     * @return okhttp writer
+     */
+    Function<Frame, IORunnable> create(boolean client, BufferedSink sink, Random random);
+  }
+
+  /** Loopback server draining every socket. */
+  private static final class Drain implements Closeable {
+
+    /** Server socket. */
+    private final ServerSocket mSocket;
+
+    /**
+     * Constructs a new {@link Drain}.
+     *
+     * @throws IOException bind failure
+     */
+    Drain() throws IOException {
+      mSocket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+      final Thread thread = new Thread(this::accept, "bench-drain");
+      thread.setDaemon(true); thread.start();
+    }
+
+    /** @return bound port */
+    final int port() {return mSocket.getLocalPort();}
+
+    /** Drains sockets one by one until closed. */
+    private void accept() {
+      final byte[] buffer = new byte[64 * 1024];
+      try {
+        while (true) try (final Socket socket = mSocket.accept()) {
+          final InputStream input = socket.getInputStream();
+          //noinspection StatementWithEmptyBody
+          while (input.read(buffer) != -1);
+        }
+      } catch (IOException ignored) {/* closed */}
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void close() throws IOException {mSocket.close();}
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Trace.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Low-overhead tracing of hot paths.
+ *
+ * Events are recorded into a fixed ring of longs (timestamp, event id and
+ * two arguments) without any allocation, and are formatted only on
+ * {@link #dump(Appendable)}. The level is a plain static field, so a
+ * disabled check costs a single field read and compare.
+ *
+ * Producers never lock: a slot is claimed by an atomic sequence number and
+ * stamped with it last, so {@link #dump(Appendable)} skips the slots being
+ * overwritten at the moment (a racing record may still rarely come torn).
+ *
+ * @author Gleb Nikitenko
+ * @since 10.02.20
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Trace {
+
+  /** Levels. */
+  public static final int
+    OFF = 0,
+    ERROR = 1,
+    INFO = 2,
+    DEBUG = 3,
+    VERBOSE = 4;
+
+  /** Ring capacity in events, a power of two. */
+  public static final int CAPACITY = 1 << 12;
+
+  /** Longs per event: timestamp, event id, two arguments. */
+  private static final int STRIDE = 4;
+
+  /** Current level, events above it are not recorded. */
+  private static int sLevel = INFO;
+
+  /** Event names by id. */
+  private static String[] sNames = new String[16];
+  private static int sEvents = 0;
+
+  /** Event records. */
+  private static final long[] RECORDS = new long[CAPACITY * STRIDE];
+
+  /** Sequence number stamped on each slot after it was written. */
+  private static final AtomicLongArray STAMPS = new AtomicLongArray(CAPACITY);
+
+  /** Next sequence number. */
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+
+  static {for (int i = 0; i < CAPACITY; i++) STAMPS.set(i, -1L);}
+
+  /**
+   * The caller should be prevented from constructing objects of this class.
+   * Also, this prevents even the native class from calling this constructor.
+   **/
+  private Trace() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Registers a new event type, normally once into a static constant.
+   *
+   * @param name event name
+   *
+   * @return event id
+   */
+  public static synchronized int event(String name) {
+    if (sEvents == sNames.length) sNames = Arrays.copyOf(sNames, sEvents * 2);
+    sNames[sEvents] = name; return sEvents++;
+  }
+
+  /** @param value new level, visible to other threads eventually */
+  public static void level(int value) {sLevel = value;}
+
+  /** @return current level */
+  public static int level() {return sLevel;}
+
+  /**
+   * @param value level to check
+   *
+   * @return true if events of this level are recorded
+   */
+  public static boolean on(int value) {return value <= sLevel;}
+
+  /**
+   * @param value event level
+   * @param event event id
+   * @param a     first argument
+   * @param b     second argument
+   */
+  public static void trace(int value, int event, long a, long b) {
+    if (value > sLevel) return;
+    final long sequence = SEQUENCE.getAndIncrement();
+    final int slot = (int) (sequence & (CAPACITY - 1)), index = slot * STRIDE;
+    STAMPS.set(slot, -1L);
+    RECORDS[index] = System.nanoTime();
+    RECORDS[index + 1] = event;
+    RECORDS[index + 2] = a;
+    RECORDS[index + 3] = b;
+    STAMPS.lazySet(slot, sequence);
+  }
+
+  /**
+   * @param event event id
+   * @param a     first argument
+   * @param b     second argument
+   */
+  public static void debug(int event, long a, long b) {trace(DEBUG, event, a, b);}
+
+  /**
+   * @param event event id
+   * @param a     first argument
+   * @param b     second argument
+   */
+  public static void verbose(int event, long a, long b) {trace(VERBOSE, event, a, b);}
+
+  /** @return count of recorded events, including overwritten ones */
+  public static long count() {return SEQUENCE.get();}
+
+  /**
+   * Formats retained events, oldest first, one per line:
+   * "time(us) name a b".
+   *
+   * @param out target
+   *
+   * @throws IOException append failure
+   */
+  public static void dump(Appendable out) throws IOException {
+    final long end = SEQUENCE.get(), start = Math.max(0, end - CAPACITY);
+    final String[] names; synchronized (Trace.class) {names = sNames;}
+    final long[] record = new long[STRIDE];
+    for (long sequence = start; sequence < end; sequence++) {
+      final int slot = (int) (sequence & (CAPACITY - 1));
+      if (STAMPS.get(slot) != sequence) continue;
+      System.arraycopy(RECORDS, slot * STRIDE, record, 0, STRIDE);
+      if (STAMPS.get(slot) != sequence) continue;
+      final int event = (int) record[1];
+      out.append(Long.toString(record[0] / 1000)).append(' ')
+        .append(event < names.length && names[event] != null ? names[event] : "#" + event)
+        .append(' ').append(Long.toString(record[2]))
+        .append(' ').append(Long.toString(record[3])).append('\n');
+    }
+  }
+
+  /** @return formatted retained events */
+  public static String dump() {
+    final StringBuilder result = new StringBuilder();
+    try {dump(result);} catch (IOException exception) {throw new AssertionError(exception);}
+    return result.toString();
+  }
+}
@@ -21,6 +21,8 @@ package com.example.wsplayer.utils.schedulers;
 
 import android.os.Process;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -124,6 +126,25 @@ final class AndroidThread extends Thread {
     };
   }
 
+  /**
+   * @param name    thread-name prefix
+   * @param thread  java-thread priority
+   * @param process android-process priority
+   *
+   * @return fork-join workers factory
+   */
+  static ForkJoinPool.ForkJoinWorkerThreadFactory forkJoinFactory
+  (String name, int thread, int process) {
+    final AtomicInteger number = new AtomicInteger(0);
+    return pool -> {
+      final ForkJoinWorkerThread result = new Worker(pool, process);
+      result.setName(name + "-" + number.getAndIncrement());
+      result.setDaemon(true);
+      result.setPriority(thread);
+      return result;
+    };
+  }
+
   /** {@inheritDoc} */
   @Override
   public final void run() {
@@ -138,4 +159,29 @@ final class AndroidThread extends Thread {
     if (hook != null) hook.run();
     super.interrupt();
   }
+
+  /** Fork-join worker with the android-process priority. */
+  private static final class Worker extends ForkJoinWorkerThread {
+
+    /** Process priority */
+    private final int mPriority;
+
+    /**
+     * Constructs a new {@link Worker}.
+     *
+     * @param pool     owner pool
+     * @param priority android-process priority
+     */
+    Worker(ForkJoinPool pool, int priority) {
+      super(pool);
+      mPriority = priority;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void onStart() {
+      super.onStart();
+      Process.setThreadPriority(mPriority);
+    }
+  }
 }
@@ -0,0 +1,266 @@
+/*
+ * ExecutorMetrics.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.utils.schedulers;
+
+import com.example.wsplayer.utils.Trace;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Tasks timings of an instrumented executor.
+ *
+ * Records the queue depth, the wait from an enqueue to the start and the
+ * run time of every task, the times going to power-of-two histograms of
+ * microseconds. A task running over the threshold is counted as slow
+ * together with its class, traced and reported to the listener.
+ *
+ * Recording is a handful of atomic adds, with no allocation and no lock,
+ * so it may stay on in production builds.
+ *
+ * @author Gleb Nikitenko
+ * @since 16.02.20
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ExecutorMetrics {
+
+  /** Default slow task threshold, a frame (mills). */
+  public static final long SLOW = 16L;
+
+  /** Count of histogram buckets, the last one is unbounded. */
+  public static final int BUCKETS = 24;
+
+  /** Executor name. */
+  private final String mName;
+
+  /** Slow task threshold (nanos). */
+  private final long mThreshold;
+
+  /** Trace event of slow tasks. */
+  private final int mTraceSlow;
+
+  /** Histograms: counts of tasks per bucket. */
+  private final AtomicLongArray
+    mWaits = new AtomicLongArray(BUCKETS),
+    mRuns = new AtomicLongArray(BUCKETS);
+
+  /** Count of queued tasks. */
+  private final AtomicInteger mDepth = new AtomicInteger();
+
+  /** Counters. */
+  private final AtomicLong
+    mTasks = new AtomicLong(),
+    mSlow = new AtomicLong(),
+    mWaitTime = new AtomicLong(),
+    mRunTime = new AtomicLong(),
+    mMaxWait = new AtomicLong(),
+    mMaxRun = new AtomicLong(),
+    mMaxDepth = new AtomicLong();
+
+  /** Class of the last slow task. */
+  private volatile Class<?> mLastSlow = null;
+
+  /** Slow tasks listener: task class and run time (nanos). */
+  private volatile BiConsumer<Class<?>, Long> mListener = null;
+
+  /**
+   * Constructs a new {@link ExecutorMetrics}.
+   *
+   * @param name      executor name
+   * @param threshold slow task threshold (mills)
+   */
+  public ExecutorMetrics(String name, long threshold) {
+    if (threshold <= 0) throw new IllegalArgumentException("threshold = " + threshold);
+    mName = name; mThreshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    mTraceSlow = Trace.event("executor.slow." + name);
+  }
+
+  /** A task was queued. */
+  final void enqueued() {max(mMaxDepth, mDepth.incrementAndGet());}
+
+  /** A queued task was started or removed. */
+  final void dequeued() {mDepth.decrementAndGet();}
+
+  /** @param wait time from the enqueue to the start (nanos) */
+  final void started(long wait) {
+    mWaitTime.addAndGet(wait); max(mMaxWait, wait);
+    mWaits.incrementAndGet(bucket(wait));
+  }
+
+  /**
+   * @param task finished task
+   * @param run  run time (nanos)
+   */
+  final void finished(Object task, long run) {
+    mTasks.incrementAndGet(); mRunTime.addAndGet(run); max(mMaxRun, run);
+    mRuns.incrementAndGet(bucket(run));
+    if (run < mThreshold) return;
+    mSlow.incrementAndGet();
+    final Class<?> type = task != null ? task.getClass() : Object.class;
+    mLastSlow = type;
+    Trace.debug(mTraceSlow, NANOSECONDS.toMillis(run), mDepth.get());
+    final BiConsumer<Class<?>, Long> listener = mListener;
+    if (listener != null) listener.accept(type, run);
+  }
+
+  /**
+   * @param maximum maximum value
+   * @param value   new value
+   */
+  private static void max(AtomicLong maximum, long value)
+  {if (value > maximum.get()) maximum.accumulateAndGet(value, Math::max);}
+
+  /**
+   * @param nanos duration
+   *
+   * @return histogram bucket of the duration
+   */
+  private static int bucket(long nanos) {
+    final long micros = NANOSECONDS.toMicros(nanos);
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+  }
+
+  /**
+   * @param index histogram bucket
+   * @param unit  time unit
+   *
+   * @return exclusive upper bound of the bucket durations
+   */
+  public static long bound(int index, TimeUnit unit)
+  {return index >= BUCKETS - 1 ? Long.MAX_VALUE : unit.convert(1L << index, MICROSECONDS);}
+
+  /** @param listener slow tasks listener: task class and run time (nanos), null to stop */
+  public final void listen(BiConsumer<Class<?>, Long> listener) {mListener = listener;}
+
+  /** @return executor name */
+  public final String name() {return mName;}
+
+  /** @return count of queued tasks */
+  public final int depth() {return mDepth.get();}
+
+  /** @return maximum count of queued tasks */
+  public final long maxDepth() {return mMaxDepth.get();}
+
+  /** @return count of finished tasks */
+  public final long tasks() {return mTasks.get();}
+
+  /** @return count of slow tasks */
+  public final long slow() {return mSlow.get();}
+
+  /** @return class of the last slow task, null if none */
+  public final Class<?> lastSlow() {return mLastSlow;}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average time from an enqueue to the start
+   */
+  public final long waitTime(TimeUnit unit) {return average(mWaitTime, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average run time
+   */
+  public final long runTime(TimeUnit unit) {return average(mRunTime, unit);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return maximum time from an enqueue to the start
+   */
+  public final long maxWaitTime(TimeUnit unit) {return unit.convert(mMaxWait.get(), NANOSECONDS);}
+
+  /**
+   * @param unit time unit
+   *
+   * @return maximum run time
+   */
+  public final long maxRunTime(TimeUnit unit) {return unit.convert(mMaxRun.get(), NANOSECONDS);}
+
+  /** @return wait times histogram, see {@link #bound(int, TimeUnit)} */
+  public final long[] waits() {return copy(mWaits);}
+
+  /** @return run times histogram, see {@link #bound(int, TimeUnit)} */
+  public final long[] runs() {return copy(mRuns);}
+
+  /**
+   * @param percentile percentile, from 0 to 100
+   * @param unit       time unit
+   *
+   * @return upper bound of the run times bucket holding the percentile
+   */
+  public final long runPercentile(double percentile, TimeUnit unit) {
+    final long[] runs = runs(); long total = 0;
+    for (final long count : runs) total += count;
+    final long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < runs.length; i++)
+      if ((seen += runs[i]) >= rank && seen > 0) return bound(i, unit);
+    return 0;
+  }
+
+  /**
+   * @param total total duration (nanos)
+   * @param unit  time unit
+   *
+   * @return average duration
+   */
+  private long average(AtomicLong total, TimeUnit unit) {
+    final long tasks = tasks();
+    return tasks == 0 ? 0 : unit.convert(total.get() / tasks, NANOSECONDS);
+  }
+
+  /**
+   * @param source histogram
+   *
+   * @return histogram snapshot
+   */
+  private static long[] copy(AtomicLongArray source) {
+    final long[] result = new long[source.length()];
+    for (int i = 0; i < result.length; i++) result[i] = source.get(i);
+    return result;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    final Class<?> slow = mLastSlow;
+    return mName + ": " + tasks() + " tasks, depth=" + depth() + " (max " + maxDepth() +
+      "), wait=" + waitTime(MICROSECONDS) + "us (max " + maxWaitTime(MICROSECONDS) +
+      "us), run=" + runTime(MICROSECONDS) + "us (p99 <" + runPercentile(99, MICROSECONDS) +
+      "us, max " + maxRunTime(MICROSECONDS) + "us), slow=" + slow() +
+      (slow != null ? " (last " + slow.getName() + ")" : "");
+  }
+
+  /** Executor that records its tasks into the metrics. */
+  interface Target {
+
+    /** @param metrics tasks metrics, null to stop recording */
+    void instrument(ExecutorMetrics metrics);
+  }
+}
@@ -24,8 +24,9 @@ import android.os.Process;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -42,18 +43,32 @@ final class ExecutorServices {
   /** Thread Names. */
   private static final String
     IO_NAME = prefix("io"),
+    TIMER_NAME = prefix("io-timer"),
+    STREAM_NAME = prefix("stream"),
+    COMPUTE_NAME = prefix("compute"),
     WORK_NAME = prefix("work"),
     MAIN_NAME = prefix("main");
 
   /** Thread Priorities. */
   private static final int
     IO_THREAD = Thread.NORM_PRIORITY, WORK_THREAD = Thread.NORM_PRIORITY,
+    COMPUTE_THREAD = Thread.NORM_PRIORITY,
     IO_PROCESS = Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE,
-    WORK_PROCESS = Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+    WORK_PROCESS = Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE,
+    COMPUTE_PROCESS = Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+
+  /** Compute pool size. */
+  static final int COMPUTE_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  /** IO pool sizes. */
+  private static final int
+    IO_CORE = 4, IO_MAX = 64, IO_QUEUE = 1024;
 
   /** Thread Factories. */
   private static final ThreadFactory
     IO_FACTORY = AndroidThread.factory(IO_NAME, IO_THREAD, IO_PROCESS, true),
+    TIMER_FACTORY = AndroidThread.factory(TIMER_NAME, IO_THREAD, IO_PROCESS, false),
+    STREAM_FACTORY = AndroidThread.factory(STREAM_NAME, IO_THREAD, IO_PROCESS, true),
     WORK_FACTORY = AndroidThread.factory(WORK_NAME, WORK_THREAD, WORK_PROCESS, false);
 
   /** Looper's. */
@@ -65,9 +80,18 @@ final class ExecutorServices {
   static final ExecutorService
     MAIN_EXECUTOR = new LooperExecutor(MAIN_LOOPER),
     WORK_EXECUTOR = new LooperExecutor(WORK_LOOPER),
-    IO_EXECUTOR = createIO(IO_FACTORY, true),
     IMMEDIATE_EXECUTOR = new ImmediateExecutor();
 
+  /** IO pool. */
+  static final IoExecutor IO_EXECUTOR = createIO(IO_FACTORY, TIMER_FACTORY);
+
+  /** Streams pool, a thread per long-lived task. */
+  static final ExecutorService STREAM_EXECUTOR = createStream(STREAM_FACTORY);
+
+  /** Compute pool. */
+  static final ForkJoinPool COMPUTE_EXECUTOR = new ForkJoinPool(COMPUTE_PARALLELISM,
+    AndroidThread.forkJoinFactory(COMPUTE_NAME, COMPUTE_THREAD, COMPUTE_PROCESS), null, true);
+
   /**
    * @param name the name of thread
    *
@@ -104,19 +128,30 @@ final class ExecutorServices {
   {try {return looper;} finally {looper.getThread().setName(name);}}
 
   /**
-   * @param factory   thread factory
-   * @param scheduled scheduled mode
+   * @param factory pool thread factory
+   * @param timer   timer thread factory
    *
    * @return executor service
    */
   @SuppressWarnings("SameParameterValue")
-  private static ExecutorService createIO(ThreadFactory factory, boolean scheduled) {
-    final int core = 0; final long time = 30L; final TimeUnit unit = SECONDS;
-    final ThreadPoolExecutor result = !scheduled ? new ThreadPoolExecutor(core,
-                                                                          Integer.MAX_VALUE, time, unit, new LinkedBlockingQueue<>(1/*28*/), factory) :
-      new ScheduledThreadPoolExecutor(core + 8, factory);
+  private static IoExecutor createIO(ThreadFactory factory, ThreadFactory timer) {
+    final long time = 30L; final TimeUnit unit = SECONDS;
+    final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, timer);
+    scheduler.setRemoveOnCancelPolicy(true);
+    final IoExecutor result =
+      new IoExecutor(IO_CORE, IO_MAX, IO_QUEUE, time, unit, factory, scheduler);
     result.allowCoreThreadTimeOut(false);
-    result.setKeepAliveTime(time, unit);
     return result;
   }
+
+  /**
+   * @param factory pool thread factory
+   *
+   * @return executor service, never queueing and never rejecting
+   */
+  @SuppressWarnings("SameParameterValue")
+  private static ExecutorService createStream(ThreadFactory factory) {
+    final long time = 30L; final TimeUnit unit = SECONDS;
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, time, unit, new SynchronousQueue<>(), factory);
+  }
 }
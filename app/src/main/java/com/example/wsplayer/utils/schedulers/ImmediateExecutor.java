@@ -37,7 +37,8 @@ import java.util.concurrent.TimeUnit;
  * @author Gleb Nikitenko
  * @since 19.06.19
  */
-public final class ImmediateExecutor extends AbstractExecutorService {
+public final class ImmediateExecutor extends AbstractExecutorService
+  implements ExecutorMetrics.Target {
 
   /** Lock used whenever accessing the state variables (runningTasks, shutdown) of the executor. */
   private final Object mLock = new Object();
@@ -52,6 +53,13 @@ public final class ImmediateExecutor extends AbstractExecutorService {
   private int runningTasks = 0;
   private boolean shutdown = false;
 
+  /** Tasks metrics, null if not instrumented. */
+  private volatile ExecutorMetrics mMetrics = null;
+
+  /** {@inheritDoc} */
+  @Override
+  public final void instrument(ExecutorMetrics metrics) {mMetrics = metrics;}
+
   /** {@inheritDoc} */
   @Override
   public final void shutdown() {
@@ -109,9 +117,12 @@ public final class ImmediateExecutor extends AbstractExecutorService {
   @Override
   public final void execute(Runnable command) {
     startTask();
+    final ExecutorMetrics metrics = mMetrics; long start = 0L;
+    if (metrics != null) start = System.nanoTime();
     try {
       command.run();
     } finally {
+      if (metrics != null) metrics.finished(command, System.nanoTime() - start);
       endTask();
     }
   }
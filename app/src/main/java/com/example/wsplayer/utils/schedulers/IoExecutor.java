@@ -0,0 +1,527 @@
+/*
+ * IoExecutor.java
+ * webka
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package com.example.wsplayer.utils.schedulers;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Elastic pool of the io-threads.
+ *
+ * Unlike a plain {@link ThreadPoolExecutor}, which adds threads over the
+ * core only once its queue is full, the pool grows up to the cap as soon
+ * as every thread is busy, so short calls do not queue behind blocking
+ * socket reads. Threads over the core are reaped after the keep-alive;
+ * a task is queued only at the cap, and rejected once the queue is full.
+ * Tasks holding a thread for the life of a stream belong on
+ * {@link Schedulers#STREAM_EXECUTOR}, as at the cap they would queue all the rest.
+ *
+ * Delayed and periodic tasks wait on a separate single-thread timer,
+ * which hands them over to the pool. A periodic run is skipped while the
+ * previous one is still running, and a failed run cancels the following
+ * ones, the failure being thrown by the future.
+ *
+ * @author Gleb Nikitenko
+ * @since 16.02.20
+ */
+@SuppressWarnings("NullableProblems")
+public final class IoExecutor
+  extends ThreadPoolExecutor
+  implements ScheduledExecutorService, ExecutorMetrics.Target {
+
+  /** Delayed tasks timer. */
+  private final ScheduledExecutorService mTimer;
+
+  /** Count of submitted and not finished tasks. */
+  private final AtomicInteger mPending = new AtomicInteger();
+
+  /** Count of running tasks. */
+  private final AtomicInteger mActive = new AtomicInteger();
+
+  /** Counters. */
+  private final AtomicLong
+    mRejected = new AtomicLong(),
+    mWaited = new AtomicLong(),
+    mWaitTime = new AtomicLong(),
+    mMaxWaitTime = new AtomicLong();
+
+  /** Tasks metrics, null if not instrumented. */
+  private volatile ExecutorMetrics mMetrics = null;
+
+  /**
+   * Constructs a new {@link IoExecutor}.
+   *
+   * @param core     core threads
+   * @param max      maximum threads
+   * @param capacity queue capacity at the maximum threads
+   * @param time     keep-alive of the threads over the core
+   * @param unit     keep-alive time unit
+   * @param factory  threads factory
+   * @param timer    delayed tasks timer
+   */
+  IoExecutor(int core, int max, int capacity, long time, TimeUnit unit,
+             ThreadFactory factory, ScheduledExecutorService timer) {
+    super(core, max, time, unit, new Queue(capacity), factory, IoExecutor::reject);
+    ((Queue) getQueue()).mExecutor = this; mTimer = timer;
+  }
+
+  /**
+   * @param task     rejected task
+   * @param executor this executor
+   */
+  private static void reject(Runnable task, ThreadPoolExecutor executor) {
+    final IoExecutor self = (IoExecutor) executor;
+    if (!self.isShutdown() && ((Queue) self.getQueue()).force(task)) return;
+    self.mPending.decrementAndGet(); self.mRejected.incrementAndGet();
+    final ExecutorMetrics metrics = ((Timed) task).metrics;
+    if (metrics != null) metrics.dequeued();
+    throw new RejectedExecutionException("IO pool saturated: " + self);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void execute(Runnable command) {
+    if (command == null) throw new NullPointerException();
+    final ExecutorMetrics metrics = mMetrics;
+    if (metrics != null) metrics.enqueued();
+    mPending.incrementAndGet(); super.execute(new Timed(command, metrics));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void instrument(ExecutorMetrics metrics) {mMetrics = metrics;}
+
+  /** {@inheritDoc} */
+  @Override
+  protected final <T> RunnableFuture<T> newTaskFor(Callable<T> call) {
+    return new Task<>(call, call);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected final <T> RunnableFuture<T> newTaskFor(Runnable run, T val) {
+    return new Task<>(Executors.callable(run, val), run);
+  }
+
+  /**
+   * @param task executed task
+   *
+   * @return submitted runnable or callable of the task
+   */
+  private static Object origin(Runnable task)
+  {return task instanceof Task ? ((Task<?>) task).origin : task;}
+
+  /** {@inheritDoc} */
+  @Override
+  protected final void beforeExecute(Thread thread, Runnable task) {
+    final Timed timed = (Timed) task; final long now = System.nanoTime(), wait = now - timed.time;
+    mActive.incrementAndGet(); mWaited.incrementAndGet(); mWaitTime.addAndGet(wait);
+    mMaxWaitTime.accumulateAndGet(wait, Math::max);
+    if (timed.metrics != null)
+      {timed.metrics.dequeued(); timed.metrics.started(wait); timed.start = now;}
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected final void afterExecute(Runnable task, Throwable throwable) {
+    final Timed timed = (Timed) task;
+    if (timed.metrics != null) timed.metrics.finished(origin(timed.task), System.nanoTime() - timed.start);
+    mActive.decrementAndGet(); mPending.decrementAndGet();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final ScheduledFuture<?> schedule
+  (Runnable command, long delay, TimeUnit unit) {
+    return schedule(Executors.callable(command), delay, unit);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final <V> ScheduledFuture<V> schedule
+  (Callable<V> callable, long delay, TimeUnit unit) {
+    return new DelayedTask<>(callable, delay, unit);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final ScheduledFuture<?> scheduleAtFixedRate
+  (Runnable command, long initial, long period, TimeUnit unit) {
+    final Periodic periodic = new Periodic(command);
+    return periodic.start(mTimer.scheduleAtFixedRate(periodic, initial, period, unit));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final ScheduledFuture<?> scheduleWithFixedDelay
+  (Runnable command, long initial, long delay, TimeUnit unit) {
+    final Periodic periodic = new Periodic(command);
+    return periodic.start(mTimer.scheduleWithFixedDelay(periodic, initial, delay, unit));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void shutdown() {
+    mTimer.shutdown(); super.shutdown();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final List<Runnable> shutdownNow() {
+    mTimer.shutdownNow();
+    final List<Runnable> tasks = super.shutdownNow();
+    for (int i = 0; i < tasks.size(); i++) tasks.set(i, dequeued((Timed) tasks.get(i)));
+    return tasks;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final boolean remove(Runnable task) {
+    if (task instanceof Timed) return super.remove(task); // a racing shutdown, rejected then
+    for (final Runnable queued : getQueue())
+      if (((Timed) queued).task == task && super.remove(queued))
+      {dequeued((Timed) queued); return true;}
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void purge() {
+    for (final Runnable queued : getQueue()) {
+      final Runnable task = ((Timed) queued).task;
+      if (task instanceof Future && ((Future<?>) task).isCancelled() && super.remove(queued))
+        dequeued((Timed) queued);
+    }
+  }
+
+  /**
+   * @param timed task taken off the queue without running
+   *
+   * @return source task
+   */
+  private Runnable dequeued(Timed timed) {
+    mPending.decrementAndGet();
+    if (timed.metrics != null) timed.metrics.dequeued();
+    return timed.task;
+  }
+
+  /** @return count of running tasks */
+  public final int active() {return mActive.get();}
+
+  /** @return count of queued tasks */
+  public final int queued() {return getQueue().size();}
+
+  /** @return count of rejected tasks */
+  public final long rejected() {return mRejected.get();}
+
+  /**
+   * @param unit time unit
+   *
+   * @return average time from a submit to the start of a task
+   */
+  public final long waitTime(TimeUnit unit) {
+    final long waited = mWaited.get();
+    return waited == 0 ? 0 : unit.convert(mWaitTime.get() / waited, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param unit time unit
+   *
+   * @return maximum time from a submit to the start of a task
+   */
+  public final long maxWaitTime(TimeUnit unit)
+  {return unit.convert(mMaxWaitTime.get(), TimeUnit.NANOSECONDS);}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return "io: threads=" + getPoolSize() + "/" + getMaximumPoolSize() + " (largest " +
+      getLargestPoolSize() + "), active=" + active() + ", queued=" + queued() +
+      ", rejected=" + rejected() + ", completed=" + getCompletedTaskCount() + ", wait=" +
+      waitTime(TimeUnit.MICROSECONDS) + "us (max " + maxWaitTime(TimeUnit.MICROSECONDS) + "us)";
+  }
+
+  /**
+   * Submitted task.
+   *
+   * @param <T> type of result
+   */
+  private static final class Task<T> extends FutureTask<T> {
+
+    /** Submitted runnable or callable. */
+    final Object origin;
+
+    /**
+     * Constructs a new {@link Task}.
+     *
+     * @param call   callable task
+     * @param origin submitted runnable or callable
+     */
+    Task(Callable<T> call, Object origin) {super(call); this.origin = origin;}
+  }
+
+  /** Task with its submit time. */
+  private static final class Timed implements Runnable {
+
+    /** Source task. */
+    final Runnable task;
+
+    /** Metrics at the submit, or null. */
+    final ExecutorMetrics metrics;
+
+    /** Submit time (nanos). */
+    final long time = System.nanoTime();
+
+    /** Start time (nanos), if instrumented. */
+    long start = 0L;
+
+    /**
+     * Constructs a new {@link Timed}.
+     *
+     * @param task    source task
+     * @param metrics metrics at the submit, or null
+     */
+    Timed(Runnable task, ExecutorMetrics metrics) {this.task = task; this.metrics = metrics;}
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {task.run();}
+  }
+
+  /**
+   * Delayed hand-over from the timer to the pool.
+   *
+   * @param <V> type of result
+   */
+  private final class DelayedTask<V> implements ScheduledFuture<V> {
+
+    /** Pool-side task. */
+    private final FutureTask<V> mTask;
+
+    /** Timer-side hand-over. */
+    private final ScheduledFuture<?> mHandOver;
+
+    /**
+     * Constructs a new {@link DelayedTask}.
+     *
+     * @param callable source task
+     * @param delay    schedule delay
+     * @param unit     schedule time-unit
+     */
+    DelayedTask(Callable<V> callable, long delay, TimeUnit unit) {
+      mTask = new FutureTask<>(callable);
+      mHandOver = mTimer.schedule(() -> {
+        try {execute(mTask);}
+        catch (RejectedExecutionException exception) {mTask.cancel(false);}
+      }, delay, unit);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final long getDelay(TimeUnit unit) {return mHandOver.getDelay(unit);}
+
+    /** {@inheritDoc} */
+    @Override
+    public final int compareTo(Delayed other) {
+      final long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+      return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean cancel(boolean interrupt) {
+      mHandOver.cancel(false); return mTask.cancel(interrupt);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isCancelled() {return mTask.isCancelled();}
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isDone() {return mTask.isDone();}
+
+    /** {@inheritDoc} */
+    @Override
+    public final V get() throws InterruptedException, ExecutionException {return mTask.get();}
+
+    /** {@inheritDoc} */
+    @Override
+    public final V get(long time, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+    {return mTask.get(time, unit);}
+  }
+
+  /** Periodic hand-over from the timer to the pool, cancelled by a failed run. */
+  private final class Periodic implements Runnable, ScheduledFuture<Object> {
+
+    /** Previous run is still in progress. */
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+
+    /** Pool-side run. */
+    private final Runnable mRun;
+
+    /** Timer-side hand-over, null until started. */
+    private volatile ScheduledFuture<?> mHandOver = null;
+
+    /** Failure of a run, null if none. */
+    private volatile Throwable mFailure = null;
+
+    /**
+     * Constructs a new {@link Periodic}.
+     *
+     * @param command source task
+     */
+    Periodic(Runnable command) {
+      if (command == null) throw new NullPointerException();
+      mRun = () -> {
+        try {command.run();}
+        catch (Throwable throwable) {fail(throwable);}
+        finally {mRunning.set(false);}
+      };
+    }
+
+    /**
+     * @param handOver timer-side hand-over
+     *
+     * @return this periodic task
+     */
+    final Periodic start(ScheduledFuture<?> handOver) {
+      mHandOver = handOver;
+      if (mFailure != null) handOver.cancel(false);
+      return this;
+    }
+
+    /** @param throwable failure of a run */
+    private void fail(Throwable throwable) {
+      mFailure = throwable;
+      final ScheduledFuture<?> handOver = mHandOver;
+      if (handOver != null) handOver.cancel(false);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      if (mFailure != null || !mRunning.compareAndSet(false, true)) return;
+      try {execute(mRun);}
+      catch (RejectedExecutionException exception) {mRunning.set(false);}
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final long getDelay(TimeUnit unit) {return mHandOver.getDelay(unit);}
+
+    /** {@inheritDoc} */
+    @Override
+    public final int compareTo(Delayed other) {
+      final long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+      return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean cancel(boolean interrupt) {return mFailure == null && mHandOver.cancel(false);}
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isCancelled() {return mFailure == null && mHandOver.isCancelled();}
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isDone() {return mHandOver.isDone();}
+
+    /** {@inheritDoc} */
+    @Override
+    public final Object get() throws InterruptedException, ExecutionException {
+      try {return mHandOver.get();}
+      catch (CancellationException exception) {throw failure(exception);}
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final Object get(long time, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      try {return mHandOver.get(time, unit);}
+      catch (CancellationException exception) {throw failure(exception);}
+    }
+
+    /**
+     * @param exception cancellation of the hand-over
+     *
+     * @return failure of a run
+     *
+     * @throws CancellationException cancelled, not failed
+     */
+    private ExecutionException failure(CancellationException exception) {
+      final Throwable failure = mFailure;
+      if (failure == null) throw exception;
+      return new ExecutionException(failure);
+    }
+  }
+
+  /** Queue that makes the pool grow before queuing. */
+  @SuppressWarnings("serial")
+  private static final class Queue extends LinkedBlockingQueue<Runnable> {
+
+    /** Owner executor. */
+    IoExecutor mExecutor;
+
+    /**
+     * Constructs a new {@link Queue}.
+     *
+     * @param capacity queue capacity
+     */
+    Queue(int capacity) {super(capacity);}
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean offer(Runnable task) {
+      final IoExecutor executor = mExecutor; final int threads = executor.getPoolSize();
+      return (threads >= executor.getMaximumPoolSize() ||
+        executor.mPending.get() <= threads) && super.offer(task);
+    }
+
+    /**
+     * @param task task rejected by the threads cap
+     *
+     * @return true if the task was queued
+     */
+    final boolean force(Runnable task) {return super.offer(task);}
+  }
+}
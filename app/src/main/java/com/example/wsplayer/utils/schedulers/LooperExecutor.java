@@ -21,12 +21,15 @@ package com.example.wsplayer.utils.schedulers;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -38,6 +41,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.function.Consumer;
 
@@ -51,11 +55,17 @@ import java.util.function.Consumer;
 @SuppressWarnings("NullableProblems")
 final class LooperExecutor
   extends AbstractExecutorService
-  implements ScheduledExecutorService {
+  implements ScheduledExecutorService, ExecutorMetrics.Target {
 
   /** Default time unit. */
   private static final TimeUnit TIME_UNIT = TimeUnit.NANOSECONDS;
 
+  /** Message of an executed runnable. */
+  private static final int EXECUTE = 1;
+
+  /** Argument of a message counted by the metrics queue depth. */
+  private static final int QUEUED = 1;
+
   /** Android Handler. */
   private final Handler mHandler;
 
@@ -80,6 +90,9 @@ final class LooperExecutor
   /** Terminated state. */
   private volatile long mTerminated = NOT_TERMINATED;
 
+  /** Executed tasks metrics, null if not instrumented. */
+  private volatile ExecutorMetrics mMetrics = null;
+
   /**
    * Constructs a new {@link LooperExecutor}.
    *
@@ -87,23 +100,26 @@ final class LooperExecutor
    */
   LooperExecutor(Looper looper) {
     mThread = (mLooper = looper).getThread();
-    mHandler = new Handler(mLooper);
+    mHandler = new Handler(mLooper, this::handle);
     mErrors = e -> {if ((e = e.getCause()) instanceof Error) throw (Error) e;};
   }
 
   /** {@inheritDoc} */
   @Override
   protected final <T> RunnableFuture<T> newTaskFor(Callable<T> call) {
-    return new ScheduledTask<>(call, 0, TIME_UNIT, mHandler::removeCallbacks, mErrors);
+    return new Task<>(call, call);
   }
 
   /** {@inheritDoc} */
   @Override
   protected final <T> RunnableFuture<T> newTaskFor(Runnable run, T val) {
-    return new ScheduledTask<>(Executors.callable(run, val), 0,
-                               TIME_UNIT, mHandler::removeCallbacks, mErrors);
+    return new Task<>(Executors.callable(run, val), run);
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public final void instrument(ExecutorMetrics metrics) {mMetrics = metrics;}
+
   /** {@inheritDoc} */
   @Override
   public final ScheduledFuture<?> schedule
@@ -137,14 +153,18 @@ final class LooperExecutor
   @Override
   public final ScheduledFuture<?> scheduleAtFixedRate
   (Runnable command, long initial, long period, TimeUnit unit) {
-    return schedule(command, initial, unit);
+    if (period <= 0) throw new IllegalArgumentException("period = " + period);
+    return new PeriodicTask(command, unit.toNanos(initial), unit.toNanos(period), true,
+                            mHandler, mErrors).post();
   }
 
   /** {@inheritDoc} */
   @Override
   public final ScheduledFuture<?> scheduleWithFixedDelay
   (Runnable command, long initial, long delay, TimeUnit unit) {
-    return schedule(command, initial, unit);
+    if (delay <= 0) throw new IllegalArgumentException("delay = " + delay);
+    return new PeriodicTask(command, unit.toNanos(initial), unit.toNanos(delay), false,
+                            mHandler, mErrors).post();
   }
 
   /** {@inheritDoc} */
@@ -191,7 +211,39 @@ final class LooperExecutor
   /** {@inheritDoc} */
   @Override
   public final void execute(Runnable command) {
-    schedule(command, 0, TIME_UNIT);
+    if (command == null) throw new NullPointerException();
+    final ExecutorMetrics metrics = mMetrics;
+    final Message message = Message.obtain(mHandler, EXECUTE, command);
+    if (metrics != null) {metrics.enqueued(); message.arg1 = QUEUED;}
+    if (!mHandler.sendMessage(message)) {
+      if (metrics != null) metrics.dequeued();
+      mErrors.accept(new Throwable(new Error("Looper was terminated")));
+    }
+  }
+
+  /**
+   * Runs an executed runnable, the message itself is recycled by the looper.
+   *
+   * @param message handler message
+   *
+   * @return true if the message was handled
+   */
+  private boolean handle(Message message) {
+    if (message.what != EXECUTE) return false;
+    final ExecutorMetrics metrics = mMetrics;
+    final Runnable task = (Runnable) message.obj; long start = 0L;
+    if (metrics != null) {
+      if (message.arg1 == QUEUED) metrics.dequeued();
+      metrics.started(TimeUnit.MILLISECONDS.toNanos(SystemClock.uptimeMillis() - message.getWhen()));
+      start = System.nanoTime();
+    }
+    try {task.run();}
+    catch (Throwable throwable) {mErrors.accept(new ExecutionException(throwable));}
+    finally {
+      if (metrics != null)
+        metrics.finished(task instanceof Task ? ((Task<?>) task).mOrigin : task, System.nanoTime() - start);
+    }
+    return true;
   }
 
   /**
@@ -219,6 +271,41 @@ final class LooperExecutor
     {if (failed != null) failed.accept(exception);}
   }
 
+  /**
+   * Submitted task, a single object on top of the pooled message.
+   *
+   * @param <T> type of result
+   */
+  private final class Task<T> extends FutureTask<T> {
+
+    /** Submitted runnable or callable. */
+    final Object mOrigin;
+
+    /**
+     * Constructs a new {@link Task}.
+     *
+     * @param call   callable task
+     * @param origin submitted runnable or callable
+     */
+    Task(Callable<T> call, Object origin) {super(call); mOrigin = origin;}
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void setException(Throwable throwable) {
+      super.setException(throwable);
+      mErrors.accept(new ExecutionException(throwable));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean cancel(boolean interrupt) {
+      if (!super.cancel(interrupt)) return false;
+      // an instrumented message stays queued as a no-op, paired with its depth count
+      if (mMetrics == null) mHandler.removeMessages(EXECUTE, this);
+      return true;
+    }
+  }
+
   /**
    * Scheduled task.
    *
@@ -312,4 +399,159 @@ final class LooperExecutor
       return mFutureTask.get(time, unit);
     }
   }
+
+  /**
+   * Periodic task.
+   *
+   * The same task is re-posted after every run, at an absolute uptime:
+   * a fixed rate advances it by the period from the previous target, not
+   * from the actual run, so the late runs do not accumulate a drift. Runs
+   * missed while the looper was busy collapse into the late one, keeping
+   * the phase of the rate, instead of firing back-to-back.
+   */
+  private static final class PeriodicTask
+    implements RunnableScheduledFuture<Object> {
+
+    /** States. */
+    private static final int
+      RUNNING = 0,
+      CANCELLED = 1,
+      FAILED = 2;
+
+    /** State updater. */
+    private static final AtomicIntegerFieldUpdater<PeriodicTask> STATE_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(PeriodicTask.class, "mState");
+
+    /** Source task. */
+    private final Runnable mCommand;
+
+    /** Period or delay (nanos). */
+    private final long mPeriod;
+
+    /** Fixed rate, otherwise - fixed delay. */
+    private final boolean mFixedRate;
+
+    /** Android Handler. */
+    private final Handler mHandler;
+
+    /** Errors consumer. */
+    private final Consumer<Throwable> mErrors;
+
+    /** Released on cancellation or failure. */
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /** Next run uptime (nanos). */
+    private volatile long mNext;
+
+    /** Current state. */
+    private volatile int mState = RUNNING;
+
+    /** Failure of the source task. */
+    private volatile Throwable mFailure = null;
+
+    /**
+     * Constructs a new {@link PeriodicTask}.
+     *
+     * @param command   source task
+     * @param initial   initial delay (nanos)
+     * @param period    period or delay (nanos)
+     * @param fixedRate fixed rate, otherwise - fixed delay
+     * @param handler   android handler
+     * @param errors    errors callback
+     */
+    PeriodicTask(Runnable command, long initial, long period, boolean fixedRate,
+                 Handler handler, Consumer<Throwable> errors) {
+      if (command == null) throw new NullPointerException();
+      mCommand = command; mPeriod = period; mFixedRate = fixedRate;
+      mHandler = handler; mErrors = errors;
+      mNext = uptime() + Math.max(initial, 0L);
+    }
+
+    /** @return current uptime (nanos) */
+    private static long uptime()
+    {return TimeUnit.MILLISECONDS.toNanos(SystemClock.uptimeMillis());}
+
+    /** @return this task, posted at the next run uptime */
+    final PeriodicTask post() {
+      final long at = TimeUnit.NANOSECONDS.toMillis(mNext + 999_999L);
+      if (!mHandler.postAtTime(this, at))
+        mErrors.accept(new Throwable(new Error("Looper was terminated")));
+      return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      if (mState != RUNNING) return;
+      try {mCommand.run();} catch (Throwable throwable) {
+        if (!STATE_UPDATER.compareAndSet(this, RUNNING, FAILED)) return;
+        mFailure = throwable; mDone.countDown();
+        mErrors.accept(new ExecutionException(throwable));
+        return;
+      }
+      if (mState != RUNNING) return;
+      final long now = uptime();
+      if (!mFixedRate) mNext = now + mPeriod;
+      else if ((mNext += mPeriod) <= now)
+        mNext += ((now - mNext) / mPeriod + 1) * mPeriod;
+      post();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isPeriodic() {return true;}
+
+    /** {@inheritDoc} */
+    public final long getDelay(TimeUnit unit) {
+      return unit.convert(mNext - uptime(), TimeUnit.NANOSECONDS);
+    }
+
+    /** {@inheritDoc} */
+    public final int compareTo(Delayed other) {
+      if (other == this) return 0;
+      final long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+      return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean cancel(boolean interrupt) {
+      if (!STATE_UPDATER.compareAndSet(this, RUNNING, CANCELLED)) return false;
+      mHandler.removeCallbacks(this); mDone.countDown();
+      return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isCancelled() {return mState == CANCELLED;}
+
+    /** {@inheritDoc} */
+    @Override
+    public final boolean isDone() {return mState != RUNNING;}
+
+    /** {@inheritDoc} */
+    @Override
+    public final Object get() throws ExecutionException, InterruptedException {
+      mDone.await();
+      return report();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final Object get(long time, TimeUnit unit)
+      throws ExecutionException, InterruptedException, TimeoutException {
+      if (!mDone.await(time, unit)) throw new TimeoutException();
+      return report();
+    }
+
+    /**
+     * @return never, a periodic task does not complete normally
+     *
+     * @throws ExecutionException the source task failed
+     */
+    private Object report() throws ExecutionException {
+      if (mState == CANCELLED) throw new CancellationException();
+      throw new ExecutionException(mFailure);
+    }
+  }
 }
@@ -29,6 +29,7 @@ import java.util.concurrent.TimeUnit;
 import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.ParallelFlux;
 import reactor.core.scheduler.Scheduler;
 
 
@@ -49,8 +50,21 @@ public final class Schedulers {
     MAIN_EXECUTOR = ExecutorServices.MAIN_EXECUTOR,
     WORK_EXECUTOR = ExecutorServices.WORK_EXECUTOR,
     IO_EXECUTOR = ExecutorServices.IO_EXECUTOR,
+    COMPUTE_EXECUTOR = ExecutorServices.COMPUTE_EXECUTOR,
     IMMEDIATE_EXECUTOR = ExecutorServices.IMMEDIATE_EXECUTOR;
 
+  /** Count of compute threads, and of {@link #parallel(Flux)} rails. */
+  public static final int COMPUTE_PARALLELISM = ExecutorServices.COMPUTE_PARALLELISM;
+
+  /** IO pool, with its saturation metrics. */
+  public static final IoExecutor IO_POOL = ExecutorServices.IO_EXECUTOR;
+
+  /**
+   * Long-lived tasks, e.g. socket readers, a thread each. They would otherwise
+   * hold the capped {@link #IO_POOL} threads and queue short tasks behind them.
+   */
+  public static final Executor STREAM_EXECUTOR = ExecutorServices.STREAM_EXECUTOR;
+
   /** Looper's. */
   public static final Looper
     MAIN_LOOPER = ExecutorServices.MAIN_LOOPER,
@@ -61,6 +75,7 @@ public final class Schedulers {
     MAIN_SCHEDULER = reactor.core.scheduler.Schedulers.fromExecutorService(ExecutorServices.MAIN_EXECUTOR),
     WORK_SCHEDULER = reactor.core.scheduler.Schedulers.fromExecutorService(ExecutorServices.WORK_EXECUTOR),
     IO_SCHEDULER = reactor.core.scheduler.Schedulers.fromExecutorService(ExecutorServices.IO_EXECUTOR),
+    COMPUTE_SCHEDULER = reactor.core.scheduler.Schedulers.fromExecutorService(ExecutorServices.COMPUTE_EXECUTOR),
     IMMEDIATE_SCHEDULER = reactor.core.scheduler.Schedulers.immediate();
 
   /**
@@ -107,6 +122,48 @@ public final class Schedulers {
   public static <T> Publisher<T> main_work(Publisher<T> publisher)
   {return transform(publisher, MAIN_SCHEDULER, WORK_SCHEDULER);}
 
+  /**
+   * @param publisher source publisher
+   * @param <T>       data type
+   *
+   * @return transformed publisher
+   */
+  public static <T> Publisher<T> io_compute(Publisher<T> publisher)
+  {return transform(publisher, IO_SCHEDULER, COMPUTE_SCHEDULER);}
+
+  /**
+   * @param publisher source publisher
+   * @param <T>       data type
+   *
+   * @return transformed publisher
+   */
+  public static <T> Publisher<T> compute_main(Publisher<T> publisher)
+  {return transform(publisher, COMPUTE_SCHEDULER, MAIN_SCHEDULER);}
+
+  /**
+   * @param publisher source publisher
+   * @param <T>       data type
+   *
+   * @return transformed publisher
+   */
+  public static <T> Publisher<T> compute_work(Publisher<T> publisher)
+  {return transform(publisher, COMPUTE_SCHEDULER, WORK_SCHEDULER);}
+
+  /**
+   * Splits a flux into a rail per compute thread, e.g.
+   * {@code parallel(pages).map(Translation::parse).sequential()}.
+   *
+   * Each rail is drained by one worker at a time, so the rail operators
+   * need no synchronization of their own.
+   *
+   * @param flux source flux
+   * @param <T>  data type
+   *
+   * @return parallel flux on the compute threads
+   */
+  public static <T> ParallelFlux<T> parallel(Flux<T> flux)
+  {return flux.parallel(COMPUTE_PARALLELISM).runOn(COMPUTE_SCHEDULER);}
+
   /**
    * @param publisher source publisher
    * @param <T>       data type
@@ -201,6 +258,24 @@ public final class Schedulers {
     return IO_SCHEDULER.schedulePeriodically(task, period, period, TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * Starts or stops the tasks metrics of an executor, e.g.
+   * {@code instrument(MAIN_EXECUTOR, "main", ExecutorMetrics.SLOW)}.
+   *
+   * @param executor  main, work, io or immediate executor
+   * @param name      metrics name
+   * @param threshold slow task threshold (mills), zero to stop
+   *
+   * @return new metrics of the executor, null if stopped
+   */
+  public static ExecutorMetrics instrument(Executor executor, String name, long threshold) {
+    if (!(executor instanceof ExecutorMetrics.Target))
+      throw new IllegalArgumentException("Not instrumentable: " + executor);
+    final ExecutorMetrics result = threshold > 0 ? new ExecutorMetrics(name, threshold) : null;
+    ((ExecutorMetrics.Target) executor).instrument(result);
+    return result;
+  }
+
   /** Check if current operation calls on IO-Thread */
   public static void trowIfNotIOThread() {
     final Thread thread = Thread.currentThread();
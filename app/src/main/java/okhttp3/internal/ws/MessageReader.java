@@ -0,0 +1,423 @@
+/*
+ * MessageReader.java
+ * internals
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package okhttp3.internal.ws;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import okhttp3.internal.ws.WSUtilsInternal.Allocator;
+import okhttp3.internal.ws.WSUtilsInternal.Binary;
+import okhttp3.internal.ws.WSUtilsInternal.Close;
+import okhttp3.internal.ws.WSUtilsInternal.Frame;
+import okhttp3.internal.ws.WSUtilsInternal.MessageStream;
+import okhttp3.internal.ws.WSUtilsInternal.Ping;
+import okhttp3.internal.ws.WSUtilsInternal.Pong;
+import okhttp3.internal.ws.WSUtilsInternal.Text;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Source;
+import okio.Timeout;
+
+import static java.lang.Integer.toHexString;
+import static okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_FIN;
+import static okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_RSV1;
+import static okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_RSV2;
+import static okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_RSV3;
+import static okhttp3.internal.ws.WebSocketProtocol.B0_MASK_OPCODE;
+import static okhttp3.internal.ws.WebSocketProtocol.B1_FLAG_MASK;
+import static okhttp3.internal.ws.WebSocketProtocol.B1_MASK_LENGTH;
+import static okhttp3.internal.ws.WebSocketProtocol.CLOSE_NO_STATUS_CODE;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_BINARY;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTINUATION;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTROL_CLOSE;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTROL_PING;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTROL_PONG;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_FLAG_CONTROL;
+import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_TEXT;
+import static okhttp3.internal.ws.WebSocketProtocol.PAYLOAD_BYTE_MAX;
+import static okhttp3.internal.ws.WebSocketProtocol.PAYLOAD_LONG;
+import static okhttp3.internal.ws.WebSocketProtocol.PAYLOAD_SHORT;
+
+
+/**
+ * Client-side websocket reader.
+ *
+ * Unlike {@link WebSocketReader} it reads binary payloads straight
+ * into arrays leased from an {@link Allocator}, bypassing
+ * intermediate {@link Buffer}'s and {@link ByteString}'s.
+ *
+ * In streaming mode the payload of the current binary message
+ * is never materialized: it is read incrementally, across
+ * continuation frames, right from the source segments.
+ * Server-sent frames are never masked, so there is nothing to unmask.
+ *
+ * Messages flagged with RSV1 are inflated on the fly, if the
+ * {@link PerMessageDeflate} extension was negotiated.
+ *
+ * @author Nikitenko Gleb
+ * @since 1.0, 04/02/2020
+ */
+final class MessageReader implements MessageStream {
+
+  /** Frames source. */
+  private final BufferedSource mSource;
+
+  /** Payload allocator. */
+  private final Allocator mAllocator;
+
+  /** Frames callback. */
+  private final Consumer<Frame> mCallback;
+
+  /** Negotiated compression, or null. */
+  private final PerMessageDeflate mDeflate;
+
+  /** Close frame was read. */
+  private boolean mClosed = false;
+
+  /** Current frame header. */
+  private int mOpcode;
+  private long mFrameLength;
+  private boolean mFinalFrame, mControlFrame;
+
+  /** Binary message is being streamed. */
+  private boolean mStreaming = false;
+
+  /** Unread bytes of the streamed frame. */
+  private long mPending = 0;
+
+  /** Current message is compressed. */
+  private boolean mCompressed = false;
+
+  /** Compressed payload reader. */
+  private final PerMessageDeflate.Raw mRaw = this::raw;
+
+  /** Sink cursor of the inflated payload. */
+  private final Buffer.UnsafeCursor mCursor = new Buffer.UnsafeCursor();
+
+  /** Payload view of the streamed message. */
+  private final Source mPayload = new Source() {
+    @Override
+    public final long read(Buffer sink, long count) throws IOException {
+      if (mCompressed) return inflate(sink, count);
+      if (!pending()) return -1;
+      final long result = mSource.read(sink, Math.min(count, mPending));
+      if (result == -1) throw new EOFException();
+      mPending -= result; return result;
+    }
+
+    @Override
+    public final Timeout timeout() {return mSource.timeout();}
+
+    @Override
+    public final void close() throws IOException {skip();}
+  };
+
+  /**
+   * Constructs a new {@link MessageReader}.
+   *
+   * @param source    frames source
+   * @param allocator payload allocator
+   * @param callback  frames callback
+   */
+  MessageReader(BufferedSource source, Allocator allocator, Consumer<Frame> callback)
+  {this(source, allocator, null, callback);}
+
+  /**
+   * Constructs a new {@link MessageReader}.
+   *
+   * @param source    frames source
+   * @param allocator payload allocator
+   * @param deflate   negotiated compression, or null
+   * @param callback  frames callback
+   */
+  MessageReader(BufferedSource source, Allocator allocator,
+                PerMessageDeflate deflate, Consumer<Frame> callback)
+  {mSource = source; mAllocator = allocator; mDeflate = deflate; mCallback = callback;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final void run() throws IOException {
+    readHeader();
+    if (mControlFrame) readControlFrame();
+    else readMessage();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final boolean next() throws IOException {
+    skip(); readHeader();
+    if (mControlFrame) readControlFrame();
+    else if (mOpcode == OPCODE_BINARY) {stream(); return true;}
+    else readMessage();
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final int read(byte[] target, int offset, int length) throws IOException
+  {return mCompressed ? mDeflate.inflate(target, offset, length, mRaw) : raw(target, offset, length);}
+
+  /**
+   * @param target target array
+   * @param offset target offset
+   * @param length maximum count of bytes
+   *
+   * @return count of wire payload bytes, or -1 at the end of message
+   *
+   * @throws IOException read failure
+   */
+  private int raw(byte[] target, int offset, int length) throws IOException {
+    if (!pending()) return -1;
+    final int result = mSource.read(target, offset, (int) Math.min(length, mPending));
+    if (result == -1) throw new EOFException();
+    mPending -= result; return result;
+  }
+
+  /**
+   * @param sink  target buffer
+   * @param count maximum count of bytes
+   *
+   * @return count of inflated bytes, or -1 at the end of message
+   *
+   * @throws IOException read failure
+   */
+  private long inflate(Buffer sink, long count) throws IOException {
+    final Buffer.UnsafeCursor cursor = sink.readAndWriteUnsafe(mCursor);
+    try {
+      final long size = sink.size();
+      final int capacity = (int) Math.min(count, cursor.expandBuffer(1));
+      final int result = mDeflate.inflate(cursor.data, cursor.start, capacity, mRaw);
+      cursor.resizeBuffer(size + Math.max(result, 0));
+      return result;
+    } finally {cursor.close();}
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final Source payload() {return mPayload;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final boolean closed() {return mClosed;}
+
+  /**
+   * @return true if the streamed message has unread bytes
+   *
+   * @throws IOException read failure
+   */
+  private boolean pending() throws IOException {
+    while (mStreaming && mPending == 0) {
+      if (mFinalFrame) mStreaming = false;
+      else {readUntilNonControlFrame(); mPending = mFrameLength;}
+    }
+    return mStreaming;
+  }
+
+  /**
+   * Skips the rest of the streamed message, also the raw bytes left behind
+   * a compressed one whose deflate stream ended with a final block.
+   *
+   * @throws IOException read failure
+   */
+  private void skip() throws IOException {
+    while (pending()) {mSource.skip(mPending); mPending = 0;}
+  }
+
+  /** @throws IOException read failure */
+  private void readHeader() throws IOException {
+    if (mClosed) throw new IOException("closed");
+
+    // Disable the timeout to read the first byte of a new frame.
+    final int b0; final long timeout = mSource.timeout().timeoutNanos();
+    mSource.timeout().clearTimeout();
+    try {b0 = mSource.readByte() & 0xff;}
+    finally {mSource.timeout().timeout(timeout, TimeUnit.NANOSECONDS);}
+
+    mOpcode = b0 & B0_MASK_OPCODE;
+    mFinalFrame = (b0 & B0_FLAG_FIN) != 0;
+    mControlFrame = (b0 & OPCODE_FLAG_CONTROL) != 0;
+
+    // Control frames must be final frames (cannot contain continuations).
+    if (mControlFrame && !mFinalFrame)
+      throw new ProtocolException("Control frames must be final.");
+    if ((b0 & (B0_FLAG_RSV2 | B0_FLAG_RSV3)) != 0)
+      throw new ProtocolException("Reserved flags are unsupported.");
+
+    // Only the first frame of a data message may be flagged as compressed.
+    final boolean rsv1 = (b0 & B0_FLAG_RSV1) != 0;
+    if (rsv1 && (mDeflate == null || mControlFrame || mOpcode == OPCODE_CONTINUATION))
+      throw new ProtocolException("Unexpected rsv1 flag.");
+    if (!mControlFrame && mOpcode != OPCODE_CONTINUATION) mCompressed = rsv1;
+
+    final int b1 = mSource.readByte() & 0xff;
+    if ((b1 & B1_FLAG_MASK) != 0)
+      throw new ProtocolException("Server-sent frames must not be masked.");
+
+    mFrameLength = b1 & B1_MASK_LENGTH;
+    if (mFrameLength == PAYLOAD_SHORT)
+      mFrameLength = mSource.readShort() & 0xffffL;
+    else if (mFrameLength == PAYLOAD_LONG && (mFrameLength = mSource.readLong()) < 0)
+      throw new ProtocolException("Frame length 0x" +
+        Long.toHexString(mFrameLength) + " > 0x7FFFFFFFFFFFFFFF");
+
+    if (mControlFrame && mFrameLength > PAYLOAD_BYTE_MAX)
+      throw new ProtocolException("Control frame must be less than " + PAYLOAD_BYTE_MAX + "B.");
+  }
+
+  /** @throws IOException read failure */
+  private void readControlFrame() throws IOException {
+    final ByteString payload =
+      mFrameLength > 0 ? mSource.readByteString(mFrameLength) : ByteString.EMPTY;
+    switch (mOpcode) {
+      case OPCODE_CONTROL_PING: mCallback.accept(new Ping(payload)); break;
+      case OPCODE_CONTROL_PONG: mCallback.accept(new Pong(payload)); break;
+      case OPCODE_CONTROL_CLOSE:
+        int code = CLOSE_NO_STATUS_CODE; String reason = "";
+        final long size = payload.size();
+        if (size == 1) throw new ProtocolException("Malformed close payload length of 1.");
+        else if (size != 0) {
+          code = ((payload.getByte(0) & 0xff) << 8) | (payload.getByte(1) & 0xff);
+          final String message = WebSocketProtocol.closeCodeExceptionMessage(code);
+          if (message != null) throw new ProtocolException(message);
+          reason = payload.substring(2).utf8();
+        }
+        mCallback.accept(new Close(code, reason));
+        mClosed = true; break;
+      default: throw new ProtocolException("Unknown control opcode: " + toHexString(mOpcode));
+    }
+  }
+
+  /** Starts streaming of the current message. */
+  private void stream() {
+    mStreaming = true; mPending = mFrameLength;
+    if (mCompressed) mDeflate.begin();
+  }
+
+  /** @throws IOException read failure */
+  private void readMessage() throws IOException {
+    final int opcode = mOpcode;
+    if (mCompressed) readCompressedMessage();
+    else if (opcode == OPCODE_TEXT) {
+      final Buffer buffer = new Buffer();
+      while (true) {
+        mSource.readFully(buffer, mFrameLength);
+        if (mFinalFrame) break;
+        readUntilNonControlFrame();
+      }
+      mCallback.accept(new Text(buffer.readUtf8()));
+    } else if (opcode == OPCODE_BINARY) {
+      byte[] content = mAllocator.lease(length(0)); int length = 0;
+      try {
+        while (true) {
+          final int required = length(length);
+          if (required > content.length) {
+            final byte[] grown = mAllocator.lease(required);
+            System.arraycopy(content, 0, grown, 0, length);
+            mAllocator.release(content); content = grown;
+          }
+          readFully(content, length, (int) mFrameLength);
+          length = required;
+          if (mFinalFrame) break;
+          readUntilNonControlFrame();
+        }
+      } catch (IOException | RuntimeException exception)
+      {mAllocator.release(content); throw exception;}
+      mCallback.accept(new Binary(content, length));
+    } else throw new ProtocolException("Unknown opcode: " + toHexString(opcode));
+  }
+
+  /** @throws IOException read failure */
+  private void readCompressedMessage() throws IOException {
+    final int opcode = mOpcode; stream();
+    if (opcode == OPCODE_TEXT) {
+      final Buffer buffer = new Buffer(); buffer.writeAll(mPayload); skip();
+      mCallback.accept(new Text(buffer.readUtf8()));
+    } else if (opcode == OPCODE_BINARY) {
+      length(0); // Compressed payload usually inflates a few times over.
+      byte[] content = mAllocator.lease((int) Math.min(Integer.MAX_VALUE - 8, mFrameLength * 4 + 64));
+      int length = 0;
+      try {
+        while (true) {
+          if (length == content.length) {
+            if (length > (Integer.MAX_VALUE - 8) / 2)
+              throw new ProtocolException("Message too large: " + length);
+            final byte[] grown = mAllocator.lease(length * 2);
+            System.arraycopy(content, 0, grown, 0, length);
+            mAllocator.release(content); content = grown;
+          }
+          final int read = read(content, length, content.length - length);
+          if (read == -1) break; length += read;
+        }
+        skip();
+      } catch (IOException | RuntimeException exception)
+      {mAllocator.release(content); throw exception;}
+      mCallback.accept(new Binary(content, length));
+    } else throw new ProtocolException("Unknown opcode: " + toHexString(opcode));
+  }
+
+  /**
+   * @param length already read length
+   *
+   * @return total message length after the current frame
+   *
+   * @throws ProtocolException message too large for an array
+   */
+  private int length(int length) throws ProtocolException {
+    final long result = length + mFrameLength;
+    if (result > Integer.MAX_VALUE - 8)
+      throw new ProtocolException("Message too large: " + result);
+    return (int) result;
+  }
+
+  /**
+   * @param target target array
+   * @param offset target offset
+   * @param length count of bytes
+   *
+   * @throws IOException read failure
+   */
+  private void readFully(byte[] target, int offset, int length) throws IOException {
+    while (length > 0) {
+      final int read = mSource.read(target, offset, length);
+      if (read == -1) throw new EOFException();
+      offset += read; length -= read;
+    }
+  }
+
+  /**
+   * Read headers and process any control frames
+   * until we reach a non-control frame.
+   *
+   * @throws IOException read failure
+   */
+  private void readUntilNonControlFrame() throws IOException {
+    while (!mClosed) {
+      readHeader();
+      if (!mControlFrame) break;
+      readControlFrame();
+    }
+    if (mOpcode != OPCODE_CONTINUATION)
+      throw new ProtocolException("Expected continuation opcode. Got: " + toHexString(mOpcode));
+  }
+}
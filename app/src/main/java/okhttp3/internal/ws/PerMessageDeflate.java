@@ -0,0 +1,241 @@
+/*
+ * PerMessageDeflate.java
+ * internals
+ *
+ * Copyright (C) 2019, Realtime Technologies Ltd. All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains the
+ * property of Realtime Technologies Limited and its SUPPLIERS, if any.
+ *
+ * The intellectual and technical concepts contained herein are
+ * proprietary to Realtime Technologies Limited and its suppliers and
+ * may be covered by Russian Federation and Foreign Patents, patents
+ * in process, and are protected by trade secret or copyright law.
+ *
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Realtime Technologies Limited.
+ */
+
+package okhttp3.internal.ws;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import okhttp3.Headers;
+
+
+/**
+ * The "permessage-deflate" extension (RFC 7692).
+ *
+ * Incoming RSV1 messages are inflated with one reused {@link Inflater},
+ * outgoing text messages are deflated with one reused {@link Deflater};
+ * both keep the LZ77 window between messages unless the corresponding
+ * "no_context_takeover" was negotiated.
+ *
+ * @author Nikitenko Gleb
+ * @since 1.0, 10/02/2020
+ */
+public final class PerMessageDeflate {
+
+  /** Extension name. */
+  public static final String NAME = "permessage-deflate";
+
+  /** Outgoing messages shorter than this are sent as is. */
+  public static final int MIN_DEFLATE_SIZE = 64;
+
+  /** Tail, stripped by the sender off every message. */
+  private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+  /** Widest LZ77 window, the only one java.util.zip deflater supports. */
+  private static final int MAX_WINDOW_BITS = 15;
+
+  /** Negotiated parameters. */
+  private final boolean mServerNoContextTakeover, mClientNoContextTakeover, mOutgoing;
+
+  /** Inflater state. */
+  private final Inflater mInflater = new Inflater(true);
+  private final byte[] mInput = new byte[8192];
+  private boolean mTail = false;
+
+  /** Deflater state. */
+  private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private byte[] mOutput = new byte[256];
+
+  /** Counters. */
+  private volatile long
+    mInflateIn = 0, mInflateOut = 0, mInflateTime = 0,
+    mDeflateIn = 0, mDeflateOut = 0, mDeflateTime = 0;
+
+  /**
+   * Constructs a new {@link PerMessageDeflate}.
+   *
+   * @param serverNoContextTakeover server resets its window per message
+   * @param clientNoContextTakeover client must reset its window per message
+   * @param outgoing                compress outgoing messages
+   */
+  private PerMessageDeflate(boolean serverNoContextTakeover,
+                            boolean clientNoContextTakeover, boolean outgoing) {
+    mServerNoContextTakeover = serverNoContextTakeover;
+    mClientNoContextTakeover = clientNoContextTakeover;
+    mOutgoing = outgoing;
+  }
+
+  /**
+   * @param headers upgrade response headers
+   *
+   * @return negotiated extension, or null if the server declined it
+   *
+   * @throws ProtocolException malformed extension response
+   */
+  public static PerMessageDeflate negotiate(Headers headers) throws ProtocolException {
+    final String header = headers.get("Sec-WebSocket-Extensions");
+    if (header == null) return null;
+    for (final String extension : header.split(",")) {
+      final String[] params = extension.split(";");
+      if (!NAME.equalsIgnoreCase(params[0].trim())) continue;
+      boolean serverNoContext = false, clientNoContext = false; int clientBits = MAX_WINDOW_BITS;
+      for (int i = 1; i < params.length; i++) {
+        final String param = params[i].trim();
+        final int eq = param.indexOf('=');
+        final String key = (eq == -1 ? param : param.substring(0, eq)).trim();
+        final String value = eq == -1 ? null : param.substring(eq + 1).trim().replace("\"", "");
+        if ("server_no_context_takeover".equalsIgnoreCase(key)) serverNoContext = true;
+        else if ("client_no_context_takeover".equalsIgnoreCase(key)) clientNoContext = true;
+        else if ("server_max_window_bits".equalsIgnoreCase(key)) bits(header, value);
+        else if ("client_max_window_bits".equalsIgnoreCase(key))
+          clientBits = value == null ? MAX_WINDOW_BITS : bits(header, value);
+        else throw new ProtocolException("Unexpected extension parameter: " + header);
+      }
+      return new PerMessageDeflate(serverNoContext, clientNoContext, clientBits == MAX_WINDOW_BITS);
+    }
+    throw new ProtocolException("Unexpected extension: " + header);
+  }
+
+  /**
+   * @param header extensions header
+   * @param value  window bits value
+   *
+   * @return window bits
+   *
+   * @throws ProtocolException malformed value
+   */
+  private static int bits(String header, String value) throws ProtocolException {
+    try {
+      final int result = Integer.parseInt(value);
+      if (result >= 8 && result <= MAX_WINDOW_BITS) return result;
+    } catch (NumberFormatException | NullPointerException ignored) {}
+    throw new ProtocolException("Invalid window bits: " + header);
+  }
+
+  /** Starts inflation of a new message. */
+  final void begin() {
+    if (mServerNoContextTakeover || mInflater.finished()) mInflater.reset();
+    mTail = false;
+  }
+
+  /**
+   * @param target target array
+   * @param offset target offset
+   * @param length maximum count of bytes
+   * @param raw    compressed payload of the current message
+   *
+   * @return count of bytes, or -1 at the end of message (or of the deflate
+   * stream, the caller skips the raw bytes left after a final block then)
+   *
+   * @throws IOException read failure
+   */
+  final int inflate(byte[] target, int offset, int length, Raw raw) throws IOException {
+    final Inflater inflater = mInflater; if (length == 0) return 0;
+    while (true) {
+      final long start = System.nanoTime(); final int result;
+      try {result = inflater.inflate(target, offset, length);}
+      catch (DataFormatException exception) {throw new ProtocolException(exception.getMessage());}
+      finally {mInflateTime += System.nanoTime() - start;}
+      if (result > 0) {mInflateOut += result; return result;}
+      if (inflater.finished() || inflater.needsDictionary() || mTail) return -1;
+      final int read = raw.read(mInput, 0, mInput.length);
+      if (read == -1) {inflater.setInput(TAIL); mTail = true;}
+      else {inflater.setInput(mInput, 0, read); mInflateIn += read;}
+    }
+  }
+
+  /**
+   * @param source message content
+   * @param offset content offset
+   * @param length content length
+   *
+   * @return compressed length, see {@link #deflated()}, or -1 if the message should be sent as is
+   */
+  final int deflate(byte[] source, int offset, int length) {
+    if (!mOutgoing || length < MIN_DEFLATE_SIZE) return -1;
+    final Deflater deflater = mDeflater; final long start = System.nanoTime(); int size = 0;
+    try {
+      deflater.setInput(source, offset, length);
+      do {
+        if (size == mOutput.length) mOutput = Arrays.copyOf(mOutput, size << 1);
+        size += deflater.deflate(mOutput, size, mOutput.length - size, Deflater.SYNC_FLUSH);
+      } while (size == mOutput.length);
+      if (mClientNoContextTakeover) deflater.reset();
+    } finally {mDeflateTime += System.nanoTime() - start;}
+    size -= TAIL.length; // The tail stays behind.
+    mDeflateIn += length; mDeflateOut += size;
+    return size;
+  }
+
+  /** @return compressed payload of the last deflated message */
+  final byte[] deflated() {return mOutput;}
+
+  /** @return compressed bytes received */
+  public final long inflatedIn() {return mInflateIn;}
+
+  /** @return bytes inflated out of them */
+  public final long inflatedOut() {return mInflateOut;}
+
+  /** @return nanoseconds spent inflating */
+  public final long inflateTime() {return mInflateTime;}
+
+  /** @return text bytes deflated */
+  public final long deflatedIn() {return mDeflateIn;}
+
+  /** @return compressed bytes sent */
+  public final long deflatedOut() {return mDeflateOut;}
+
+  /** @return nanoseconds spent deflating */
+  public final long deflateTime() {return mDeflateTime;}
+
+  /** @return incoming compression ratio (raw/compressed), 0 if nothing was inflated */
+  public final float inflateRatio()
+  {final long in = mInflateIn; return in == 0 ? 0f : (float) mInflateOut / in;}
+
+  /** @return outgoing compression ratio (raw/compressed), 0 if nothing was deflated */
+  public final float deflateRatio()
+  {final long out = mDeflateOut; return out == 0 ? 0f : (float) mDeflateIn / out;}
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    return NAME + ": in " + mInflateIn + "->" + mInflateOut + "B (" + mInflateTime / 1000 + "us), " +
+      "out " + mDeflateIn + "->" + mDeflateOut + "B (" + mDeflateTime / 1000 + "us)";
+  }
+
+  /** Compressed payload source. */
+  @FunctionalInterface
+  interface Raw {
+
+    /**
+     * @param target target array
+     * @param offset target offset
+     * @param length maximum count of bytes
+     *
+     * @return count of bytes, or -1 at the end of message
+     *
+     * @throws IOException read failure
+     */
+    int read(byte[] target, int offset, int length) throws IOException;
+  }
+}
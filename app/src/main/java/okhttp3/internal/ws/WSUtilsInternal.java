@@ -20,18 +20,24 @@
 package okhttp3.internal.ws;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+import com.example.wsplayer.utils.Trace;
+
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
-import okio.OkioUtilsInternal;
 import okio.Sink;
+import okio.Source;
 
+import static okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_FIN;
+import static okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_RSV1;
 import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_BINARY;
 import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTROL_CLOSE;
 import static okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTROL_PING;
@@ -47,6 +53,9 @@ import static okio.ByteString.encodeUtf8;
 @SuppressWarnings("ALL")
 public final class WSUtilsInternal {
 
+  /** Trace event of written frames. */
+  private static final int TRACE_WRITE = Trace.event("ws.write");
+
   /**
    * @param client  is a client
    * @param sink    buffered sink
@@ -60,7 +69,7 @@ public final class WSUtilsInternal {
     return new Function<Frame, IORunnable>() {
       @Override
       public IORunnable apply(Frame frame) {
-        System.out.println("WSUtilsInternal.writer.apply: frame = [" + frame + "]");
+        Trace.verbose(TRACE_WRITE, frame.op, 0);
         return new IORunnable() {
           @Override
           public void run() throws IOException {frame.send(writer);}
@@ -70,49 +79,36 @@ public final class WSUtilsInternal {
   }
 
   /**
-   * @param client    is a client
-   * @param callback  messages callback
-   * @param source    buffered source
+   * @param sink    buffered sink
+   * @param deflate negotiated compression of text messages, or null
    *
-   * @return next puller
+   * @return allocation-free writer of client frames
    */
-  public static IORunnable reader
-  (boolean client, BufferedSource source, Consumer<Frame> callback) {
-    final WebSocketReader reader = new WebSocketReader(client, source,
-        new WebSocketReader.FrameCallback() {
-          @Override
-          public void onReadMessage(String value) {
-            System.out.println("WSUtilsInternal.onReadMessage: value = [" + value + "]");
-            callback.accept(new Text(value));
-          }
-
-          @Override
-          public void onReadMessage(ByteString value) {
-            System.out.println("WSUtilsInternal.onReadMessage: value = [" + value + "]");
-            callback.accept(new Binary(OkioUtilsInternal.bytes(value)));
-          }
+  public static FrameWriter frames(BufferedSink sink, PerMessageDeflate deflate)
+  {return new FrameWriter(sink, deflate);}
 
-          @Override
-          public void onReadClose(int code, String value) {
-            System.out.println("WSUtilsInternal.onReadClose: code = [" + code + "], value = [" + value + "]");
-            callback.accept(new Close(code, value));
-          }
-
-          @Override
-          public void onReadPing(ByteString value) {
-            System.out.println("WSUtilsInternal.onReadPing: value = [" + value + "]");
-            callback.accept(new Ping(value));
-          }
-
-          @Override
-          public void onReadPong(ByteString value) {
-            System.out.println("WSUtilsInternal.onReadPong: value = [" + value + "]");
-            callback.accept(new Pong(value));
-          }
+  /**
+   * @param source    buffered source
+   * @param allocator binary payloads allocator
+   * @param callback  messages callback
+   *
+   * @return binary messages stream
+   */
+  public static MessageStream stream
+  (BufferedSource source, Allocator allocator, Consumer<Frame> callback)
+  {return stream(source, allocator, null, callback);}
 
-        });
-    return () -> {reader.processNextFrame();};
-  }
+  /**
+   * @param source    buffered source
+   * @param allocator binary payloads allocator
+   * @param deflate   negotiated compression, or null
+   * @param callback  messages callback
+   *
+   * @return binary messages stream, inflating compressed messages
+   */
+  public static MessageStream stream
+  (BufferedSource source, Allocator allocator, PerMessageDeflate deflate, Consumer<Frame> callback)
+  {return new MessageReader(source, allocator, deflate, callback);}
 
   /** Websocket Base Frame. */
   public static abstract class Frame {
@@ -192,25 +188,37 @@ public final class WSUtilsInternal {
     /** Bytes content. */
     public final byte[] content;
 
+    /** Content length. */
+    public final int length;
+
     /**
      * Constructs a new {@link Binary}.
      *
      * @param value bytes value
      */
-    public Binary(byte[] value) {
+    public Binary(byte[] value) {this(value, value.length);}
+
+    /**
+     * Constructs a new {@link Binary}.
+     *
+     * @param value  bytes value, may be longer than the message
+     * @param length message length
+     */
+    public Binary(byte[] value, int length) {
       super(OPCODE_BINARY);
       content = value;
+      this.length = length;
     }
 
     /** {@inheritDoc} */
     @Override
     final Buffer buffer()
-    {return new Buffer().write(content);}
+    {return new Buffer().write(content, 0, length);}
 
     /** {@inheritDoc} */
     @Override
     public final String toString()
-    {return "bin :" + content.length; }
+    {return "bin :" + length; }
   }
 
 
@@ -305,6 +313,296 @@ public final class WSUtilsInternal {
 
   }
 
+  /**
+   * @param value text value
+   *
+   * @return count of UTF-8 bytes
+   */
+  public static int utf8Size(CharSequence value) {
+    int result = 0;
+    for (int i = 0, length = value.length(); i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) result++;
+      else if (c < 0x800) result += 2;
+      else if (Character.isHighSurrogate(c) && i + 1 < length &&
+        Character.isLowSurrogate(value.charAt(i + 1))) {result += 4; i++;}
+      else result += 3;
+    }
+    return result;
+  }
+
+  /**
+   * Unpaired surrogates are encoded as '?'.
+   *
+   * @param value  text value
+   * @param target target array, at least {@link #utf8Size(CharSequence)} bytes from the offset
+   * @param offset target offset
+   *
+   * @return offset after the encoded bytes
+   */
+  public static int utf8(CharSequence value, byte[] target, int offset) {
+    for (int i = 0, length = value.length(); i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) target[offset++] = (byte) c;
+      else if (c < 0x800) {
+        target[offset++] = (byte) (0xc0 | c >> 6);
+        target[offset++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+        Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int code = Character.toCodePoint(c, value.charAt(++i));
+        target[offset++] = (byte) (0xf0 | code >> 18);
+        target[offset++] = (byte) (0x80 | code >> 12 & 0x3f);
+        target[offset++] = (byte) (0x80 | code >> 6 & 0x3f);
+        target[offset++] = (byte) (0x80 | code & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+        target[offset++] = '?'; target[offset++] = '?'; target[offset++] = '?';
+      } else {
+        target[offset++] = (byte) (0xe0 | c >> 12);
+        target[offset++] = (byte) (0x80 | c >> 6 & 0x3f);
+        target[offset++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Allocation-free writer of client frames.
+   *
+   * A frame is encoded and masked in place into one reused buffer, and goes
+   * out with a single write and flush of the sink (or a batch of frames
+   * with one flush, when the auto-flush is off). Text messages are deflated
+   * through a reused output when "permessage-deflate" was negotiated. Not
+   * thread-safe: the caller serializes the writes, like with the writer above,
+   * but they may come from any thread, each masking with its own random.
+   */
+  public static final class FrameWriter {
+
+    /** Op codes. */
+    public static final int
+      TEXT = OPCODE_TEXT,
+      BINARY = OPCODE_BINARY,
+      CLOSE = OPCODE_CONTROL_CLOSE,
+      PING = OPCODE_CONTROL_PING,
+      PONG = OPCODE_CONTROL_PONG;
+
+    /** Maximal header: flags, length, extended length, mask. */
+    private static final int HEADER = 2 + 8 + 4;
+
+    /** Socket sink. */
+    private final BufferedSink mSink;
+
+    /** Negotiated compression of text messages, or null. */
+    private final PerMessageDeflate mDeflate;
+
+    /** Frame buffer, the payload starts at {@link #HEADER}. */
+    private byte[] mBuffer = new byte[HEADER + 256];
+
+    /** Count of written frames. */
+    private long mFrames = 0;
+
+    /** Flush after every frame. */
+    private boolean mAutoFlush = true;
+
+    /**
+     * Constructs a new {@link FrameWriter}.
+     *
+     * @param sink    socket sink
+     * @param deflate negotiated compression of text messages, or null
+     */
+    FrameWriter(BufferedSink sink, PerMessageDeflate deflate) {mSink = sink; mDeflate = deflate;}
+
+    /**
+     * @param op     op code
+     * @param source payload
+     * @param offset payload offset
+     * @param length payload length
+     *
+     * @throws IOException write failed
+     */
+    public final void write(int op, byte[] source, int offset, int length) throws IOException
+    {System.arraycopy(source, offset, buffer(length), HEADER, length); frame(op, length);}
+
+    /**
+     * @param op      op code
+     * @param payload payload, from its position to the limit, the position is not moved
+     *
+     * @throws IOException write failed
+     */
+    public final void write(int op, ByteBuffer payload) throws IOException {
+      final int length = payload.remaining();
+      payload.duplicate().get(buffer(length), HEADER, length); frame(op, length);
+    }
+
+    /**
+     * @param op    op code
+     * @param value text payload, encoded as UTF-8
+     *
+     * @throws IOException write failed
+     */
+    public final void write(int op, CharSequence value) throws IOException {
+      final int length = utf8Size(value);
+      utf8(value, buffer(length), HEADER); frame(op, length);
+    }
+
+    /**
+     * @param op    op code
+     * @param value payload
+     *
+     * @throws IOException write failed
+     */
+    public final void write(int op, ByteString value) throws IOException {
+      final int length = value.size(); final byte[] buffer = buffer(length);
+      for (int i = 0; i < length; i++) buffer[HEADER + i] = value.getByte(i);
+      frame(op, length);
+    }
+
+    /**
+     * @param frame any frame
+     *
+     * @throws IOException write failed
+     */
+    public final void write(Frame frame) throws IOException {
+      Trace.verbose(TRACE_WRITE, frame.op, 0);
+      if (frame instanceof Text) write(TEXT, ((Text) frame).content);
+      else if (frame instanceof Binary)
+        write(BINARY, ((Binary) frame).content, 0, ((Binary) frame).length);
+      else if (frame instanceof PingPong) write(frame.op, ((PingPong) frame).content);
+      else if (frame instanceof Close) {
+        final Close close = (Close) frame;
+        final String reason = close.reason != null ? close.reason : "";
+        final int length = 2 + utf8Size(reason); final byte[] buffer = buffer(length);
+        buffer[HEADER] = (byte) (close.code >> 8); buffer[HEADER + 1] = (byte) close.code;
+        utf8(reason, buffer, HEADER + 2); frame(CLOSE, length);
+      } else throw new IllegalArgumentException(String.valueOf(frame));
+    }
+
+    /**
+     * @param length payload length
+     *
+     * @return frame buffer, grown to fit the payload
+     */
+    private byte[] buffer(int length) {
+      if (HEADER + length > mBuffer.length)
+        mBuffer = new byte[Math.max(HEADER + length, mBuffer.length << 1)];
+      return mBuffer;
+    }
+
+    /**
+     * Deflates a text payload, puts the header in front of the payload,
+     * masks it and writes the frame.
+     *
+     * @param op     op code
+     * @param length payload length
+     *
+     * @throws IOException write failed
+     */
+    private void frame(int op, int length) throws IOException {
+      if (op >= OPCODE_CONTROL_CLOSE && length > 125)
+        throw new IllegalArgumentException("Control frame payload: " + length);
+      int flags = B0_FLAG_FIN;
+      if (op == TEXT && mDeflate != null) {
+        final int deflated = mDeflate.deflate(mBuffer, HEADER, length);
+        if (deflated != -1) {
+          System.arraycopy(mDeflate.deflated(), 0, buffer(deflated), HEADER, deflated);
+          length = deflated; flags |= B0_FLAG_RSV1;
+        }
+      }
+      final byte[] buffer = mBuffer;
+      final int extra = length <= 125 ? 0 : length <= 0xffff ? 2 : 8;
+      final int start = HEADER - 2 - extra - 4;
+      int at = start;
+      buffer[at++] = (byte) (flags | op);
+      if (extra == 0) buffer[at++] = (byte) (0x80 | length);
+      else if (extra == 2) {
+        buffer[at++] = (byte) (0x80 | 126);
+        buffer[at++] = (byte) (length >> 8); buffer[at++] = (byte) length;
+      } else {
+        buffer[at++] = (byte) (0x80 | 127);
+        for (int shift = 56; shift >= 0; shift -= 8) buffer[at++] = (byte) ((long) length >> shift);
+      }
+      final int mask = ThreadLocalRandom.current().nextInt(); // Of the writing thread.
+      buffer[at++] = (byte) (mask >> 24); buffer[at++] = (byte) (mask >> 16);
+      buffer[at++] = (byte) (mask >> 8); buffer[at] = (byte) mask;
+      for (int i = 0; i < length; i++) buffer[HEADER + i] ^= buffer[HEADER - 4 + (i & 3)];
+      mSink.write(buffer, start, HEADER - start + length);
+      if (mAutoFlush) mSink.flush();
+      mFrames++;
+    }
+
+    /**
+     * @param value flush after every frame, or only on {@link #flush()}
+     *
+     * @return this writer
+     */
+    public final FrameWriter autoFlush(boolean value) {mAutoFlush = value; return this;}
+
+    /** @throws IOException flush failed */
+    public final void flush() throws IOException {mSink.flush();}
+
+    /** @return count of written frames */
+    public final long frames() {return mFrames;}
+
+    /** @return capacity of the frame buffer */
+    public final int capacity() {return mBuffer.length;}
+  }
+
+  /** Binary payloads allocator. */
+  public interface Allocator {
+
+    /** Plain heap allocator. */
+    Allocator HEAP = new Allocator() {
+      @Override public byte[] lease(int size) {return new byte[size];}
+      @Override public void release(byte[] array) {}
+    };
+
+    /**
+     * @param size minimal array size
+     *
+     * @return array of at least {@code size} bytes
+     */
+    byte[] lease(int size);
+
+    /** @param array no longer used array */
+    void release(byte[] array);
+  }
+
+  /**
+   * Streaming reader of binary messages.
+   *
+   * {@link #run()} reads the next whole frame, while {@link #next()}
+   * starts streaming of the next binary message, so the both
+   * modes should not be mixed within one message.
+   */
+  public interface MessageStream extends IORunnable {
+
+    /**
+     * Skips the rest of the current binary message and reads the next frame.
+     * Any frame except a binary one is delivered to the callback.
+     *
+     * @return true if a binary message was started
+     *
+     * @throws IOException read failure
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @param target target array
+     * @param offset target offset
+     * @param length maximum count of bytes
+     *
+     * @return count of bytes, or -1 at the end of the current message
+     *
+     * @throws IOException read failure
+     */
+    int read(byte[] target, int offset, int length) throws IOException;
+
+    /** @return payload of the current binary message */
+    Source payload();
+
+    /** @return true if close frame was read */
+    boolean closed();
+  }
+
   /** Input/Output Operation. */
   @FunctionalInterface
   public interface IORunnable {